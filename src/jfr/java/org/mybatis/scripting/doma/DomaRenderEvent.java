@@ -0,0 +1,94 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.function.Supplier;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.apache.ibatis.mapping.BoundSql;
+
+/** A Flight Recorder event emitted for each statement rendered by a {@link DomaSqlSource}. */
+@Name("org.mybatis.scripting.doma.Render")
+@Label("Doma Render")
+@Category({"MyBatis", "Doma"})
+@Description("Creates the SQL of a statement from its Doma template")
+@StackTrace(false)
+public final class DomaRenderEvent extends Event {
+  // only asked whether the event is enabled, never committed
+  private static final DomaRenderEvent probe = new DomaRenderEvent();
+
+  @Label("Statement Id")
+  @Description("The id of the statement, known once the statement has been executed")
+  String statementId;
+
+  @Label("Template Hash")
+  @Description("The hash code of the template text")
+  int templateHash;
+
+  @Label("SQL Length")
+  @DataAmount(DataAmount.BYTES)
+  int sqlLength;
+
+  @Label("Bind Values")
+  int bindValueCount;
+
+  @Label("Shape Cache Hit")
+  boolean shapeCacheHit;
+
+  /**
+   * @return the factory of the recordings used by {@link DomaRenderRecording}
+   */
+  public static Supplier<?> factory() {
+    return () -> {
+      if (!probe.isEnabled()) {
+        return null;
+      }
+      DomaRenderEvent event = new DomaRenderEvent();
+      event.begin();
+      return new Recording(event);
+    };
+  }
+
+  private static final class Recording extends DomaRenderRecording {
+    private final DomaRenderEvent event;
+
+    Recording(DomaRenderEvent event) {
+      this.event = event;
+    }
+
+    @Override
+    void setShapeCacheHit(boolean shapeCacheHit) {
+      event.shapeCacheHit = shapeCacheHit;
+    }
+
+    @Override
+    void end(DomaSqlSource sqlSource, BoundSql boundSql) {
+      event.end();
+      if (event.shouldCommit()) {
+        event.statementId = sqlSource.getStatementId();
+        event.templateHash = sqlSource.getTemplateHash();
+        event.sqlLength = boundSql.getSql().length();
+        event.bindValueCount = boundSql.getParameterMappings().size();
+        event.commit();
+      }
+    }
+  }
+}
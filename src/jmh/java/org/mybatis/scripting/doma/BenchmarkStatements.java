@@ -0,0 +1,141 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.reflection.ParamNameResolver;
+import org.apache.ibatis.session.Configuration;
+
+/** The statements and parameter objects shared by the benchmarks. */
+public final class BenchmarkStatements {
+
+  /** Equivalent statements written as Doma and MyBatis XML templates. */
+  public enum Statement {
+    STATIC(
+        "select * from emp where name = /* name */'a' and salary = /* salary */0",
+        "select * from emp where name = #{name} and salary = #{salary}",
+        1),
+    IF(
+        "select * from emp where /*%if name != null*/ name = /* name */'a' /*%end*/"
+            + " /*%if salary != null*/ and salary >= /* salary */0 /*%end*/"
+            + " /*%if ids == null*/ and id is null /*%end*/"
+            + " /*%if name == null*/ and name is null /*%end*/ order by id",
+        "<script>select * from emp <where>"
+            + "<if test='name != null'>name = #{name}</if>"
+            + "<if test='salary != null'> and salary &gt;= #{salary}</if>"
+            + "<if test='ids == null'> and id is null</if>"
+            + "<if test='name == null'> and name is null</if>"
+            + "</where> order by id</script>",
+        1),
+    FOR(
+        "select * from emp where /*%for id : ids*/ id = /* id */0"
+            + " /*%if id_has_next*/ /*# \"or\" */ /*%end*/ /*%end*/",
+        "<script>select * from emp where"
+            + " <foreach collection='ids' item='id' separator=' or '>id = #{id}</foreach>"
+            + "</script>",
+        10),
+    IN(
+        "select * from emp where id in /* ids */(1)",
+        "<script>select * from emp where id in"
+            + " <foreach collection='ids' item='id' open='(' separator=',' close=')'>"
+            + "#{id}</foreach></script>",
+        500);
+
+    final String doma;
+    final String xml;
+    final int idCount;
+
+    Statement(String doma, String xml, int idCount) {
+      this.doma = doma;
+      this.xml = xml;
+      this.idCount = idCount;
+    }
+  }
+
+  /** A parameter object with properties. */
+  public static class EmployeeQuery {
+    private final String name;
+    private final Integer salary;
+    private final List<Integer> ids;
+
+    EmployeeQuery(String name, Integer salary, List<Integer> ids) {
+      this.name = name;
+      this.salary = salary;
+      this.ids = ids;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public Integer getSalary() {
+      return salary;
+    }
+
+    public List<Integer> getIds() {
+      return ids;
+    }
+  }
+
+  /** A mapper whose arguments are named with {@link Param}. */
+  interface EmployeeMapper {
+    void select(
+        @Param("name") String name,
+        @Param("salary") Integer salary,
+        @Param("ids") List<Integer> ids);
+  }
+
+  private BenchmarkStatements() {}
+
+  /**
+   * Creates a parameter object.
+   *
+   * @param kind {@code bean}, {@code map} or {@code param} for the map created from the {@link
+   *     Param} arguments of a mapper method
+   * @param statement the statement to create the parameter for
+   * @param configuration a configuration
+   * @return a parameter object
+   */
+  static Object createParameter(String kind, Statement statement, Configuration configuration) {
+    String name = "abc";
+    Integer salary = 1234;
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < statement.idCount; i++) {
+      ids.add(i);
+    }
+    switch (kind) {
+      case "bean":
+        return new EmployeeQuery(name, salary, ids);
+      case "map":
+        Map<String, Object> map = new HashMap<>();
+        map.put("name", name);
+        map.put("salary", salary);
+        map.put("ids", ids);
+        return map;
+      case "param":
+        Method method = EmployeeMapper.class.getMethods()[0];
+        return new ParamNameResolver(configuration, method)
+            .getNamedParams(new Object[] {name, salary, ids});
+      default:
+        throw new IllegalArgumentException("Unknown parameter:" + kind);
+    }
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.scripting.LanguageDriver;
+import org.apache.ibatis.scripting.xmltags.XMLLanguageDriver;
+import org.apache.ibatis.session.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link DomaSqlSource#getBoundSql(Object)} against the {@link XMLLanguageDriver} of
+ * MyBatis for equivalent statements.
+ *
+ * <ul>
+ *   <li>doma: values inlined as literals, the default
+ *   <li>domaBind: values bound as parameters, with the shape cache
+ *   <li>xml: the XML language driver of MyBatis
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DomaRenderBenchmark {
+
+  @Param({"STATIC", "IF", "FOR", "IN"})
+  public BenchmarkStatements.Statement statement;
+
+  @Param({"bean", "map", "param"})
+  public String parameter;
+
+  @Param({"doma", "domaBind", "xml"})
+  public String language;
+
+  private SqlSource sqlSource;
+  private Object parameterObject;
+
+  @Setup
+  public void setUp() {
+    Configuration configuration = new Configuration();
+    LanguageDriver driver;
+    String script;
+    switch (language) {
+      case "doma":
+        driver = new DomaLanguageDriver(DomaLanguageDriverConfig.newInstance(config -> {}));
+        script = statement.doma;
+        break;
+      case "domaBind":
+        driver =
+            new DomaLanguageDriver(
+                DomaLanguageDriverConfig.newInstance(
+                    config -> {
+                      config.setBindParameters(true);
+                      config.setShapeCacheSize(16);
+                    }));
+        script = statement.doma;
+        break;
+      case "xml":
+        driver = new XMLLanguageDriver();
+        script = statement.xml;
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown language:" + language);
+    }
+    sqlSource = driver.createSqlSource(configuration, script, Object.class);
+    parameterObject = BenchmarkStatements.createParameter(parameter, statement, configuration);
+  }
+
+  @Benchmark
+  public BoundSql getBoundSql() {
+    return sqlSource.getBoundSql(parameterObject);
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.ibatis.session.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.seasar.doma.jdbc.PreparedSql;
+
+/** Benchmarks {@link DomaSqlTemplate#execute(DomaVariableValues)} without the SQL source. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DomaTemplateBenchmark {
+
+  @Param({"STATIC", "IF", "FOR", "IN"})
+  public BenchmarkStatements.Statement statement;
+
+  @Param({"bean", "map", "param"})
+  public String parameter;
+
+  private Configuration configuration;
+  private DomaSqlTemplate template;
+  private Object parameterObject;
+
+  @Setup
+  public void setUp() {
+    configuration = new Configuration();
+    template = new DomaSqlTemplate(statement.doma);
+    parameterObject = BenchmarkStatements.createParameter(parameter, statement, configuration);
+  }
+
+  @Benchmark
+  public PreparedSql execute() {
+    return template.execute(new VariableValues(configuration, parameterObject, Object.class));
+  }
+}
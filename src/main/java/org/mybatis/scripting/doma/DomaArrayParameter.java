@@ -0,0 +1,197 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Array;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import org.seasar.doma.jdbc.dialect.Dialect;
+
+/**
+ * The values of an IN list bound as a single {@link Array} parameter.
+ *
+ * <p>The values are held until the statement is prepared, because an {@link Array} is created
+ * from the connection. {@link DomaParameterHandler} creates it with {@link
+ * java.sql.Connection#createArrayOf(String, Object[])}, using the SQL type of the first non-null
+ * value.
+ */
+class DomaArrayParameter implements Array {
+  private final Object[] elements;
+
+  DomaArrayParameter(Object[] elements) {
+    this.elements = elements;
+  }
+
+  /**
+   * Returns the SQL that replaces an IN list whose values are bound as an array.
+   *
+   * @param dialect a dialect. Must not be null.
+   * @return a format with one {@code %s} for the bind variable, or null if the database cannot
+   *     compare a value with the elements of an array parameter
+   */
+  static String getInListFormat(Dialect dialect) {
+    String name = dialect.getName();
+    if (name.startsWith("hsql")) {
+      return "(UNNEST(%s))";
+    }
+    if (name.startsWith("postgres")) {
+      return "(SELECT UNNEST(%s))";
+    }
+    return null;
+  }
+
+  /**
+   * Binds the values as an array.
+   *
+   * @param ps a prepared statement. Must not be null.
+   * @param index the index of the parameter
+   * @throws SQLException if the array cannot be created or bound
+   */
+  void bind(PreparedStatement ps, int index) throws SQLException {
+    ps.setArray(index, ps.getConnection().createArrayOf(getBaseTypeName(), elements));
+  }
+
+  @Override
+  public String getBaseTypeName() throws SQLException {
+    for (Object element : elements) {
+      if (element != null) {
+        return getTypeName(element.getClass());
+      }
+    }
+    return "VARCHAR";
+  }
+
+  private static String getTypeName(Class<?> elementClass) throws SQLException {
+    if (elementClass == String.class || elementClass == Character.class) {
+      return "VARCHAR";
+    }
+    if (elementClass == Integer.class) {
+      return "INTEGER";
+    }
+    if (elementClass == Long.class || elementClass == BigInteger.class) {
+      return "BIGINT";
+    }
+    if (elementClass == Short.class || elementClass == Byte.class) {
+      return "SMALLINT";
+    }
+    if (elementClass == BigDecimal.class) {
+      return "DECIMAL";
+    }
+    if (elementClass == Double.class) {
+      return "DOUBLE";
+    }
+    if (elementClass == Float.class) {
+      return "REAL";
+    }
+    if (elementClass == Boolean.class) {
+      return "BOOLEAN";
+    }
+    if (elementClass == LocalDate.class || elementClass == Date.class) {
+      return "DATE";
+    }
+    if (elementClass == LocalTime.class || elementClass == Time.class) {
+      return "TIME";
+    }
+    if (elementClass == LocalDateTime.class
+        || elementClass == Timestamp.class
+        || elementClass == java.util.Date.class) {
+      return "TIMESTAMP";
+    }
+    if (elementClass == UUID.class) {
+      return "UUID";
+    }
+    throw new SQLException("Unsupported array element type:" + elementClass.getName());
+  }
+
+  @Override
+  public int getBaseType() {
+    return Types.OTHER;
+  }
+
+  @Override
+  public Object getArray() {
+    return elements;
+  }
+
+  @Override
+  public Object getArray(Map<String, Class<?>> map) {
+    return elements;
+  }
+
+  @Override
+  public Object getArray(long index, int count) {
+    return Arrays.copyOfRange(elements, (int) index - 1, (int) index - 1 + count);
+  }
+
+  @Override
+  public Object getArray(long index, int count, Map<String, Class<?>> map) {
+    return getArray(index, count);
+  }
+
+  @Override
+  public ResultSet getResultSet() throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public ResultSet getResultSet(Map<String, Class<?>> map) throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public ResultSet getResultSet(long index, int count) throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public ResultSet getResultSet(long index, int count, Map<String, Class<?>> map)
+      throws SQLException {
+    throw new SQLFeatureNotSupportedException();
+  }
+
+  @Override
+  public void free() {}
+
+  @Override
+  public String toString() {
+    return Arrays.toString(elements);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return obj instanceof DomaArrayParameter
+        && Arrays.equals(elements, ((DomaArrayParameter) obj).elements);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(elements);
+  }
+}
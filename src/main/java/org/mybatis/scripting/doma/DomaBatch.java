@@ -0,0 +1,167 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.keygen.SelectKeyGenerator;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.reflection.ParamNameResolver;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+
+/**
+ * Executes an insert, update or delete statement for many parameter objects as JDBC batches.
+ *
+ * <p>MyBatis adds a row to the current batch only when its SQL is the same as the SQL of the
+ * previous row, so rows whose {@code %if} directives render different SQL start a new batch every
+ * time they alternate. {@link #execute(SqlSession, String, Collection, boolean)} can group the rows
+ * by the SQL they render before executing them, so that each distinct SQL is executed as one
+ * batch. The rows are then executed in the order of the first row of each group, so the order of
+ * the rows is not kept across groups. Otherwise the rows are executed in order, and only
+ * consecutive rows with the same SQL share a batch.
+ *
+ * <p>The session must be opened with {@link ExecutorType#BATCH}, and the statement must use {@link
+ * DomaLanguageDriverConfig#setBindParameters(boolean) bindParameters}: values inlined as literals
+ * make the SQL of every row different.
+ *
+ * <p>Each row is rendered once: the groups are handed to {@link DomaExecutorInterceptor}, which
+ * executes each of them through the executor of the session with a copy of the statement that
+ * returns the SQL rendered for the grouping. Rows of a statement with a {@code selectKey} are
+ * executed one by one as they are, since the key changes the parameter object after the grouping.
+ */
+public final class DomaBatch {
+
+  private DomaBatch() {}
+
+  /** Rows with the same SQL, executed as one batch. */
+  static final class Group {
+    final String sql;
+    final List<Object> parameterObjects = new ArrayList<>();
+    final Map<Object, BoundSql> boundSqls = new IdentityHashMap<>();
+
+    Group(String sql) {
+      this.sql = sql;
+    }
+
+    void add(Object parameterObject, BoundSql boundSql) {
+      parameterObjects.add(parameterObject);
+      boundSqls.put(parameterObject, boundSql);
+    }
+  }
+
+  /** The rows of one call, handed to {@link DomaExecutorInterceptor} as the parameter object. */
+  static final class Groups {
+    final List<Group> groups;
+
+    Groups(List<Group> groups) {
+      this.groups = groups;
+    }
+  }
+
+  /**
+   * Executes a statement for each parameter object in order and flushes the batches.
+   *
+   * @param sqlSession a session opened with {@link ExecutorType#BATCH}. Must not be null.
+   * @param statement the id of an insert, update or delete statement
+   * @param parameters the parameter objects. Must not be null.
+   * @return the results of the batches, one per run of consecutive rows with the same SQL
+   */
+  public static List<BatchResult> execute(
+      SqlSession sqlSession, String statement, Collection<?> parameters) {
+    return execute(sqlSession, statement, parameters, false);
+  }
+
+  /**
+   * Executes a statement for each parameter object and flushes the batches.
+   *
+   * @param sqlSession a session opened with {@link ExecutorType#BATCH}. Must not be null.
+   * @param statement the id of an insert, update or delete statement
+   * @param parameters the parameter objects. Must not be null.
+   * @param reorder true to group all the rows with the same SQL into one batch, which executes the
+   *     rows out of order; false to execute them in order
+   * @return the results of the batches
+   */
+  public static List<BatchResult> execute(
+      SqlSession sqlSession, String statement, Collection<?> parameters, boolean reorder) {
+    MappedStatement mappedStatement = sqlSession.getConfiguration().getMappedStatement(statement);
+    // a key selected before the statement changes the parameter object after the grouping
+    if (!(mappedStatement.getSqlSource() instanceof DomaSqlSource)
+        || mappedStatement.getKeyGenerator() instanceof SelectKeyGenerator
+        || !DomaExecutorInterceptor.isRegistered(sqlSession.getConfiguration())) {
+      for (Object parameter : parameters) {
+        sqlSession.update(statement, parameter);
+      }
+      return sqlSession.flushStatements();
+    }
+
+    List<Group> groups = new ArrayList<>();
+    Map<String, Group> groupsBySql = new LinkedHashMap<>();
+    Group group = null;
+    for (Object parameter : parameters) {
+      Object parameterObject = ParamNameResolver.wrapToMapIfCollection(parameter, null);
+      BoundSql boundSql = mappedStatement.getBoundSql(parameterObject);
+      if (reorder) {
+        group = groupsBySql.computeIfAbsent(boundSql.getSql(), Group::new);
+      } else if (group == null || !group.sql.equals(boundSql.getSql())) {
+        group = new Group(boundSql.getSql());
+        groups.add(group);
+      }
+      group.add(parameterObject, boundSql);
+    }
+    if (reorder) {
+      groups.addAll(groupsBySql.values());
+    }
+    sqlSession.update(statement, new Groups(groups));
+    return sqlSession.flushStatements();
+  }
+
+  /**
+   * Executes the groups of rows handed to {@link DomaExecutorInterceptor}.
+   *
+   * @param executor the executor of the session. Must not be null.
+   * @param mappedStatement the statement. Must not be null.
+   * @param groups the rows. Must not be null.
+   * @return the sum of the update counts, or {@link BatchExecutor#BATCH_UPDATE_RETURN_VALUE}
+   */
+  static int execute(Executor executor, MappedStatement mappedStatement, Groups groups)
+      throws SQLException {
+    int updateCount = 0;
+    for (Group group : groups.groups) {
+      // one statement per group, since a batch is continued only by the same statement
+      MappedStatement groupStatement =
+          DomaExecutorInterceptor.copy(mappedStatement, group.boundSqls::get);
+      for (Object parameterObject : group.parameterObjects) {
+        int count = executor.update(groupStatement, parameterObject);
+        if (count == BatchExecutor.BATCH_UPDATE_RETURN_VALUE) {
+          updateCount = count;
+        } else if (updateCount != BatchExecutor.BATCH_UPDATE_RETURN_VALUE) {
+          updateCount += count;
+        }
+      }
+    }
+    return updateCount;
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.List;
+import java.util.Map;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+
+/** The {@link BoundSql} that holds the values captured while rendering a Doma template. */
+public class DomaBoundSql extends BoundSql {
+  private final List<Object> parameterValues;
+  private boolean parameterValuesSet;
+
+  /**
+   * Constructor.
+   *
+   * @param configuration a MyBatis configuration
+   * @param sql a SQL statement with {@code ?} placeholders
+   * @param parameterMappings the parameter mappings for each placeholder
+   * @param parameterObject a parameter object
+   * @param parameterValues the values for each placeholder. Must be the same size as {@code
+   *     parameterMappings}.
+   */
+  public DomaBoundSql(
+      Configuration configuration,
+      String sql,
+      List<ParameterMapping> parameterMappings,
+      Object parameterObject,
+      List<Object> parameterValues) {
+    super(configuration, sql, parameterMappings, parameterObject);
+    this.parameterValues = parameterValues;
+  }
+
+  // the values are only set as additional parameters when those are used, since the doma
+  // parameter handler binds the values directly
+  private void setParameterValues() {
+    if (parameterValuesSet) {
+      return;
+    }
+    parameterValuesSet = true;
+    List<ParameterMapping> parameterMappings = getParameterMappings();
+    for (int i = 0; i < parameterMappings.size(); i++) {
+      super.setAdditionalParameter(parameterMappings.get(i).getProperty(), parameterValues.get(i));
+    }
+  }
+
+  @Override
+  public boolean hasAdditionalParameter(String name) {
+    setParameterValues();
+    return super.hasAdditionalParameter(name);
+  }
+
+  @Override
+  public void setAdditionalParameter(String name, Object value) {
+    setParameterValues();
+    super.setAdditionalParameter(name, value);
+  }
+
+  @Override
+  public Object getAdditionalParameter(String name) {
+    setParameterValues();
+    return super.getAdditionalParameter(name);
+  }
+
+  @Override
+  public Map<String, Object> getAdditionalParameters() {
+    setParameterValues();
+    return super.getAdditionalParameters();
+  }
+
+  /**
+   * @return the values for each placeholder.
+   */
+  public List<Object> getParameterValues() {
+    return parameterValues;
+  }
+}
@@ -0,0 +1,464 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.seasar.doma.internal.expr.EvaluationResult;
+import org.seasar.doma.internal.expr.ExpressionParser;
+import org.seasar.doma.internal.expr.Value;
+import org.seasar.doma.internal.jdbc.sql.node.AnonymousNode;
+import org.seasar.doma.internal.jdbc.sql.node.BindVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.ClauseNode;
+import org.seasar.doma.internal.jdbc.sql.node.CommentNode;
+import org.seasar.doma.internal.jdbc.sql.node.ElseNode;
+import org.seasar.doma.internal.jdbc.sql.node.ElseifNode;
+import org.seasar.doma.internal.jdbc.sql.node.EmbeddedVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.EndNode;
+import org.seasar.doma.internal.jdbc.sql.node.EolNode;
+import org.seasar.doma.internal.jdbc.sql.node.ForBlockNode;
+import org.seasar.doma.internal.jdbc.sql.node.ForNode;
+import org.seasar.doma.internal.jdbc.sql.node.IfBlockNode;
+import org.seasar.doma.internal.jdbc.sql.node.IfNode;
+import org.seasar.doma.internal.jdbc.sql.node.LogicalOperatorNode;
+import org.seasar.doma.internal.jdbc.sql.node.OtherNode;
+import org.seasar.doma.internal.jdbc.sql.node.ParensNode;
+import org.seasar.doma.internal.jdbc.sql.node.RemovableClauseNode;
+import org.seasar.doma.internal.jdbc.sql.node.SelectStatementNode;
+import org.seasar.doma.internal.jdbc.sql.node.UpdateStatementNode;
+import org.seasar.doma.internal.jdbc.sql.node.WhitespaceNode;
+import org.seasar.doma.internal.jdbc.sql.node.WordNode;
+import org.seasar.doma.jdbc.SqlNode;
+
+/**
+ * Renders a template with bind parameters straight into the SQL text, the parameter mappings and
+ * the values of a MyBatis {@code BoundSql}, in a single pass over the parsed template.
+ *
+ * <p>{@code NodePreparedSqlBuilder} also renders the formatted SQL and wraps every value, which
+ * this builder does not. It renders what {@code NodePreparedSqlBuilder} renders verbatim, and
+ * gives up wherever Doma would remove a keyword or a parenthesized group whose conditions are all
+ * excluded, format a literal, or report an error. The template is then rendered by Doma, so the
+ * result is always the one of Doma.
+ *
+ * <p>A builder is reused for many renders, one at a time. Its SQL buffer, its lists and its loop
+ * variables are kept between renders, so that a render allocates little more than its result.
+ */
+final class DomaBoundSqlBuilder implements DomaVariableValues {
+  private static final String HAS_NEXT_SUFFIX = "_has_next";
+  private static final String INDEX_SUFFIX = "_index";
+  // larger buffers, filled by long IN lists, are not kept for the next render
+  private static final int MAX_RETAINED_SIZE = 1024;
+  private static final int MAX_RETAINED_SQL_LENGTH = 64 * 1024;
+
+  private final DomaExpressionEvaluator evaluator;
+  private final Map<String, DomaCompiledExpression> expressions;
+  private final Value inLists;
+  private final int capacity;
+  private final Map<String, Value> loopValues = new HashMap<>();
+  // the children of each node, resolved on the first render: Doma allocates a list view and an
+  // iterator each time the children of a node are traversed
+  private final Map<SqlNode, SqlNode[]> children = new IdentityHashMap<>();
+  private DomaTypeHandlers typeHandlers;
+  private DomaVariableValues variableValues;
+  private StringBuilder sql;
+  private List<ParameterMapping> parameterMappings = new ArrayList<>();
+  private List<Object> parameterValues = new ArrayList<>();
+  // whether the current clause or group has rendered a condition, as Doma tracks it
+  private boolean available;
+
+  /**
+   * @param runtime the shared Doma objects
+   * @param expressions the compiled expressions of the template
+   * @param inLists the value of {@link DomaInListPadding#VARIABLE_NAME}, or null if the template
+   *     has no padded IN lists
+   * @param capacity the expected length of the SQL
+   */
+  DomaBoundSqlBuilder(
+      DomaRuntime runtime,
+      Map<String, DomaCompiledExpression> expressions,
+      Value inLists,
+      int capacity) {
+    this.expressions = expressions;
+    this.inLists = inLists;
+    this.capacity = capacity;
+    this.sql = new StringBuilder(capacity);
+    this.evaluator = runtime.createReusableEvaluator(this);
+  }
+
+  /**
+   * Prepares the next render.
+   *
+   * @param typeHandlers the type handlers that bind the values
+   * @param variableValues the values to render the template with
+   */
+  void reset(DomaTypeHandlers typeHandlers, DomaVariableValues variableValues) {
+    clear();
+    this.typeHandlers = typeHandlers;
+    this.variableValues = variableValues;
+  }
+
+  /** Forgets the values and the result of the last render. */
+  void clear() {
+    typeHandlers = null;
+    variableValues = null;
+    evaluator.clearResults();
+    loopValues.clear();
+    available = false;
+    if (sql.capacity() > MAX_RETAINED_SQL_LENGTH) {
+      sql = new StringBuilder(capacity);
+    } else {
+      sql.setLength(0);
+    }
+    if (parameterValues.size() > MAX_RETAINED_SIZE) {
+      parameterMappings = new ArrayList<>();
+      parameterValues = new ArrayList<>();
+    } else {
+      parameterMappings.clear();
+      parameterValues.clear();
+    }
+  }
+
+  @Override
+  public Value getValue(String name) {
+    Value value = loopValues.isEmpty() ? null : loopValues.get(name);
+    if (value != null) {
+      return value;
+    }
+    if (inLists != null && name.equals(DomaInListPadding.VARIABLE_NAME)) {
+      return inLists;
+    }
+    return variableValues.getValue(name);
+  }
+
+  /**
+   * Renders the template.
+   *
+   * @param sqlNode a parsed template
+   * @return false if the template must be rendered by Doma. A template that fails to render is
+   *     also rendered by Doma so that Doma reports the error.
+   */
+  boolean build(SqlNode sqlNode) {
+    try {
+      return visit(sqlNode);
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the SQL text with {@code ?} placeholders, trimmed as Doma trims it
+   */
+  String getSql() {
+    int start = 0;
+    int end = sql.length();
+    while (start < end && sql.charAt(start) <= ' ') {
+      start++;
+    }
+    while (end > start && sql.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    return sql.substring(start, end);
+  }
+
+  /**
+   * @return the parameter mappings in placeholder order, owned by this builder and valid until it
+   *     is cleared
+   */
+  List<ParameterMapping> getParameterMappings() {
+    return parameterMappings;
+  }
+
+  /**
+   * @return the bind values in placeholder order, owned by this builder and valid until it is
+   *     cleared
+   */
+  List<Object> getParameterValues() {
+    return parameterValues;
+  }
+
+  private boolean visit(SqlNode node) {
+    if (node instanceof WordNode) {
+      sql.append(((WordNode) node).getWord());
+      available = true;
+      return true;
+    }
+    if (node instanceof WhitespaceNode) {
+      sql.append(((WhitespaceNode) node).getWhitespace());
+      return true;
+    }
+    if (node instanceof OtherNode) {
+      sql.append(((OtherNode) node).getOther());
+      return true;
+    }
+    if (node instanceof EolNode) {
+      sql.append(((EolNode) node).getEol());
+      return true;
+    }
+    if (node instanceof CommentNode) {
+      sql.append(((CommentNode) node).getComment());
+      return true;
+    }
+    if (node instanceof BindVariableNode) {
+      return visitBindVariableNode((BindVariableNode) node);
+    }
+    if (node instanceof EmbeddedVariableNode) {
+      return visitEmbeddedVariableNode((EmbeddedVariableNode) node);
+    }
+    if (node instanceof IfBlockNode) {
+      return visitIfBlockNode((IfBlockNode) node);
+    }
+    if (node instanceof ForBlockNode) {
+      return visitForBlockNode((ForBlockNode) node);
+    }
+    if (node instanceof ClauseNode) {
+      return visitClauseNode((ClauseNode) node);
+    }
+    if (node instanceof LogicalOperatorNode) {
+      return visitLogicalOperatorNode((LogicalOperatorNode) node);
+    }
+    if (node instanceof ParensNode) {
+      return visitParensNode((ParensNode) node);
+    }
+    if (node instanceof AnonymousNode
+        || node instanceof SelectStatementNode
+        || node instanceof UpdateStatementNode) {
+      return visitChildren(node);
+    }
+    // literal variables, %expand, %populate and anything not known to render verbatim
+    return false;
+  }
+
+  private boolean visitChildren(SqlNode node) {
+    SqlNode[] nodeChildren = children.get(node);
+    if (nodeChildren == null) {
+      nodeChildren = node.getChildren().toArray(new SqlNode[0]);
+      children.put(node, nodeChildren);
+    }
+    for (SqlNode child : nodeChildren) {
+      if (!visit(child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Doma drops a WHERE, GROUP BY, HAVING or ORDER BY clause without conditions, so only such a
+  // clause with conditions is rendered here. The other clauses are rendered as they are.
+  private boolean visitClauseNode(ClauseNode node) {
+    sql.append(node.getWordNode().getWord());
+    if (!(node instanceof RemovableClauseNode)) {
+      available = true;
+      return visitChildren(node);
+    }
+    available = false;
+    if (!visitChildren(node) || !available) {
+      return false;
+    }
+    available = true;
+    return true;
+  }
+
+  // Doma drops an AND or OR that does not follow a condition
+  private boolean visitLogicalOperatorNode(LogicalOperatorNode node) {
+    if (!available) {
+      return false;
+    }
+    sql.append(node.getWordNode().getWord());
+    return visitChildren(node);
+  }
+
+  private boolean visitParensNode(ParensNode node) {
+    if (node.isAttachedWithValue()) {
+      // rendered by the bind variable
+      return true;
+    }
+    if (node.isEmpty()) {
+      return visitParens(node);
+    }
+    // Doma drops a group without conditions
+    available = false;
+    return visitParens(node) && available;
+  }
+
+  private boolean visitParens(ParensNode node) {
+    sql.append(node.getOpenedFragmentNode().getOther());
+    if (!visitChildren(node)) {
+      return false;
+    }
+    sql.append(node.getClosedFragmentNode().getOther());
+    return true;
+  }
+
+  private boolean visitEmbeddedVariableNode(EmbeddedVariableNode node) {
+    Object value = evaluate(node.getVariableName()).getValue();
+    if (value == null) {
+      return visitChildren(node);
+    }
+    String fragment = value.toString();
+    if (fragment.indexOf('\'') >= 0
+        || fragment.indexOf(';') >= 0
+        || fragment.contains("--")
+        || fragment.contains("/*")) {
+      // rejected by Doma
+      return false;
+    }
+    if (!available && !fragment.trim().isEmpty()) {
+      // Doma may treat a leading keyword of the fragment specially
+      return false;
+    }
+    sql.append(fragment);
+    return visitChildren(node);
+  }
+
+  private boolean visitIfBlockNode(IfBlockNode node) {
+    IfNode ifNode = node.getIfNode();
+    if (evaluate(ifNode.getExpression()).getBooleanValue()) {
+      return visitChildren(ifNode) && visitEndNode(node.getEndNode());
+    }
+    for (ElseifNode elseifNode : node.getElseifNodes()) {
+      if (evaluate(elseifNode.getExpression()).getBooleanValue()) {
+        return visitChildren(elseifNode) && visitEndNode(node.getEndNode());
+      }
+    }
+    ElseNode elseNode = node.getElseNode();
+    if (elseNode != null && !visitChildren(elseNode)) {
+      return false;
+    }
+    return visitEndNode(node.getEndNode());
+  }
+
+  private boolean visitForBlockNode(ForBlockNode node) {
+    ForNode forNode = node.getForNode();
+    Object iterable = evaluate(forNode.getExpression()).getValue();
+    if (!(iterable instanceof Iterable)) {
+      return false;
+    }
+    String identifier = forNode.getIdentifier();
+    String hasNextVariable = identifier + HAS_NEXT_SUFFIX;
+    String indexVariable = identifier + INDEX_SUFFIX;
+    Value preservedItem = loopValues.remove(identifier);
+    Value preservedHasNext = loopValues.remove(hasNextVariable);
+    Value preservedIndex = loopValues.remove(indexVariable);
+
+    int index = 0;
+    for (Iterator<?> it = ((Iterable<?>) iterable).iterator(); it.hasNext(); index++) {
+      Object each = it.next();
+      Class<?> eachClass = each == null ? Object.class : each.getClass();
+      loopValues.put(identifier, new Value(eachClass, each));
+      loopValues.put(hasNextVariable, new Value(boolean.class, it.hasNext()));
+      loopValues.put(indexVariable, new Value(int.class, index));
+      if (!visitChildren(forNode)) {
+        return false;
+      }
+    }
+
+    restore(identifier, preservedItem);
+    restore(hasNextVariable, preservedHasNext);
+    restore(indexVariable, preservedIndex);
+    return visitEndNode(node.getEndNode());
+  }
+
+  private void restore(String name, Value value) {
+    if (value == null) {
+      loopValues.remove(name);
+    } else {
+      loopValues.put(name, value);
+    }
+  }
+
+  private boolean visitEndNode(EndNode endNode) {
+    return endNode == null || visitChildren(endNode);
+  }
+
+  private boolean visitBindVariableNode(BindVariableNode node) {
+    EvaluationResult result = evaluate(node.getVariableName());
+    Object value = result.getValue();
+    if (node.isWordNodeIgnored()) {
+      if (value instanceof Iterable) {
+        // rejected by Doma
+        return false;
+      }
+      addParameter(value, result.getValueClass());
+      available = true;
+      return true;
+    }
+    if (!node.isParensNodeIgnored()) {
+      return false;
+    }
+    ParensNode parensNode = node.getParensNode();
+    sql.append(parensNode.getOpenedFragmentNode().getOther());
+    int count = 0;
+    if (value instanceof Iterable) {
+      for (Object each : (Iterable<?>) value) {
+        if (!addElement(each, count++)) {
+          return false;
+        }
+      }
+    } else if (value != null && value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      for (; count < length; count++) {
+        if (!addElement(Array.get(value, count), count)) {
+          return false;
+        }
+      }
+    } else {
+      return false;
+    }
+    if (count == 0) {
+      // Doma renders an empty list in its own way
+      return false;
+    }
+    sql.append(parensNode.getClosedFragmentNode().getOther());
+    available = true;
+    return true;
+  }
+
+  private boolean addElement(Object each, int index) {
+    if (each == null) {
+      // rejected by Doma
+      return false;
+    }
+    if (index > 0) {
+      sql.append(", ");
+    }
+    if (each == DomaInListPadding.NULL_ELEMENT) {
+      addParameter(null, Object.class);
+    } else {
+      addParameter(each, each.getClass());
+    }
+    return true;
+  }
+
+  private void addParameter(Object value, Class<?> valueClass) {
+    sql.append('?');
+    parameterMappings.add(typeHandlers.getParameterMapping(parameterMappings.size(), valueClass));
+    parameterValues.add(value);
+  }
+
+  private EvaluationResult evaluate(String expression) {
+    DomaCompiledExpression compiled = expressions.get(expression);
+    if (compiled != null) {
+      return compiled.evaluate(evaluator);
+    }
+    return evaluator.evaluate(new ExpressionParser(expression).parse());
+  }
+}
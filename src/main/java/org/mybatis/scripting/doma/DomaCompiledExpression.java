@@ -0,0 +1,624 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import org.seasar.doma.internal.expr.EvaluationResult;
+import org.seasar.doma.internal.expr.ExpressionEvaluator;
+import org.seasar.doma.internal.expr.ExpressionException;
+import org.seasar.doma.internal.expr.node.AbstractComparisonOperatorNode;
+import org.seasar.doma.internal.expr.node.AndOperatorNode;
+import org.seasar.doma.internal.expr.node.CommaOperatorNode;
+import org.seasar.doma.internal.expr.node.ComparisonOperatorNode;
+import org.seasar.doma.internal.expr.node.EmptyNode;
+import org.seasar.doma.internal.expr.node.EqOperatorNode;
+import org.seasar.doma.internal.expr.node.ExpressionLocation;
+import org.seasar.doma.internal.expr.node.ExpressionNode;
+import org.seasar.doma.internal.expr.node.ExpressionNodeVisitor;
+import org.seasar.doma.internal.expr.node.GeOperatorNode;
+import org.seasar.doma.internal.expr.node.GtOperatorNode;
+import org.seasar.doma.internal.expr.node.LeOperatorNode;
+import org.seasar.doma.internal.expr.node.LiteralNode;
+import org.seasar.doma.internal.expr.node.LogicalBinaryOperatorNode;
+import org.seasar.doma.internal.expr.node.LtOperatorNode;
+import org.seasar.doma.internal.expr.node.MethodOperatorNode;
+import org.seasar.doma.internal.expr.node.NeOperatorNode;
+import org.seasar.doma.internal.expr.node.NotOperatorNode;
+import org.seasar.doma.internal.expr.node.OrOperatorNode;
+import org.seasar.doma.internal.expr.node.ParensNode;
+import org.seasar.doma.internal.expr.node.VariableNode;
+import org.seasar.doma.internal.util.MethodUtil;
+import org.seasar.doma.message.Message;
+
+/**
+ * An expression of a template compiled into a tree of evaluators.
+ *
+ * <p>Variables, literals, logical operators, comparisons and method calls are evaluated directly.
+ * Subtrees without variables are folded into constants when the template is parsed. A method call
+ * is resolved the way Doma resolves it, and the resolved method is cached as a {@link
+ * MethodHandle} for the classes it was last called with. Any other node is evaluated by Doma, and
+ * so is a compiled node whose operands are of types it does not handle, with the operands it has
+ * evaluated already, so the results and the error messages are the same as Doma's and no operand
+ * is evaluated twice.
+ *
+ * <p>Instances hold no state per call and are shared by all threads.
+ */
+abstract class DomaCompiledExpression {
+  private static final EvaluationResult TRUE = new EvaluationResult(true, boolean.class);
+  private static final EvaluationResult FALSE = new EvaluationResult(false, boolean.class);
+
+  /**
+   * Evaluates this expression.
+   *
+   * @param evaluator an evaluator that resolves variables. Must not be null.
+   * @return the result. Must not be null.
+   */
+  abstract EvaluationResult evaluate(ExpressionEvaluator evaluator);
+
+  boolean isConstant() {
+    return false;
+  }
+
+  /**
+   * Compiles an expression.
+   *
+   * @param node a parsed expression. Must not be null.
+   * @param constantEvaluator an evaluator without variables that folds constant subtrees. Must not
+   *     be null.
+   * @return the compiled expression. Must not be null.
+   */
+  static DomaCompiledExpression compile(
+      ExpressionNode node, ExpressionEvaluator constantEvaluator) {
+    DomaCompiledExpression compiled = compileNode(node, constantEvaluator);
+    if (compiled.isConstant() || !isFoldable(node, compiled)) {
+      return compiled;
+    }
+    try {
+      return new Constant(constantEvaluator.evaluate(node));
+    } catch (RuntimeException e) {
+      // reported by Doma when the expression is evaluated
+      return compiled;
+    }
+  }
+
+  private static boolean isFoldable(ExpressionNode node, DomaCompiledExpression compiled) {
+    if (compiled instanceof Logical) {
+      Logical logical = (Logical) compiled;
+      return logical.left.isConstant() && (logical.right == null || logical.right.isConstant());
+    }
+    if (compiled instanceof Comparison) {
+      Comparison comparison = (Comparison) compiled;
+      return comparison.left.isConstant() && comparison.right.isConstant();
+    }
+    return node instanceof LiteralNode;
+  }
+
+  private static DomaCompiledExpression compileNode(
+      ExpressionNode node, ExpressionEvaluator constantEvaluator) {
+    if (node instanceof VariableNode) {
+      return new Variable((VariableNode) node);
+    }
+    if (node instanceof ParensNode) {
+      return compile(((ParensNode) node).getNode(), constantEvaluator);
+    }
+    if (node instanceof AndOperatorNode) {
+      AndOperatorNode and = (AndOperatorNode) node;
+      return new Logical(
+          node,
+          Logical.AND,
+          compile(and.getLeftNode(), constantEvaluator),
+          compile(and.getRightNode(), constantEvaluator));
+    }
+    if (node instanceof OrOperatorNode) {
+      OrOperatorNode or = (OrOperatorNode) node;
+      return new Logical(
+          node,
+          Logical.OR,
+          compile(or.getLeftNode(), constantEvaluator),
+          compile(or.getRightNode(), constantEvaluator));
+    }
+    if (node instanceof NotOperatorNode) {
+      return new Logical(
+          node, Logical.NOT, compile(((NotOperatorNode) node).getNode(), constantEvaluator), null);
+    }
+    if (node instanceof ComparisonOperatorNode) {
+      ComparisonOperatorNode comparison = (ComparisonOperatorNode) node;
+      return new Comparison(
+          comparison,
+          compile(comparison.getLeftNode(), constantEvaluator),
+          compile(comparison.getRightNode(), constantEvaluator));
+    }
+    if (node instanceof MethodOperatorNode) {
+      return compileMethod((MethodOperatorNode) node, constantEvaluator);
+    }
+    return new Interpreted(node);
+  }
+
+  private static DomaCompiledExpression compileMethod(
+      MethodOperatorNode node, ExpressionEvaluator constantEvaluator) {
+    List<ExpressionNode> parameterNodes = new ArrayList<>();
+    collectParameters(node.getParametersNode(), parameterNodes);
+    DomaCompiledExpression[] arguments = new DomaCompiledExpression[parameterNodes.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(parameterNodes.get(i), constantEvaluator);
+    }
+    return new MethodCall(node, compile(node.getTargetObjectNode(), constantEvaluator), arguments);
+  }
+
+  // splits the parameters the way Doma does, which evaluates each of them once
+  private static void collectParameters(ExpressionNode node, List<ExpressionNode> parameterNodes) {
+    if (node instanceof ParensNode) {
+      collectParameters(((ParensNode) node).getNode(), parameterNodes);
+    } else if (node instanceof CommaOperatorNode) {
+      for (ExpressionNode child : ((CommaOperatorNode) node).getNodes()) {
+        collectParameters(child, parameterNodes);
+      }
+    } else if (node != null && !(node instanceof EmptyNode)) {
+      parameterNodes.add(node);
+    }
+  }
+
+  /**
+   * @param type a type
+   * @return the wrapper class of a primitive type, or the type itself
+   */
+  static Class<?> box(Class<?> type) {
+    if (!type.isPrimitive()) {
+      return type;
+    }
+    if (type == int.class) {
+      return Integer.class;
+    }
+    if (type == long.class) {
+      return Long.class;
+    }
+    if (type == boolean.class) {
+      return Boolean.class;
+    }
+    if (type == double.class) {
+      return Double.class;
+    }
+    if (type == float.class) {
+      return Float.class;
+    }
+    if (type == short.class) {
+      return Short.class;
+    }
+    if (type == byte.class) {
+      return Byte.class;
+    }
+    if (type == char.class) {
+      return Character.class;
+    }
+    return Void.class;
+  }
+
+  private static final class Constant extends DomaCompiledExpression {
+    private final EvaluationResult result;
+
+    Constant(EvaluationResult result) {
+      this.result = result;
+    }
+
+    @Override
+    EvaluationResult evaluate(ExpressionEvaluator evaluator) {
+      return result;
+    }
+
+    @Override
+    boolean isConstant() {
+      return true;
+    }
+  }
+
+  private static final class Interpreted extends DomaCompiledExpression {
+    private final ExpressionNode node;
+
+    Interpreted(ExpressionNode node) {
+      this.node = node;
+    }
+
+    @Override
+    EvaluationResult evaluate(ExpressionEvaluator evaluator) {
+      return evaluator.evaluate(node);
+    }
+  }
+
+  private static final class Variable extends DomaCompiledExpression {
+    private final VariableNode node;
+
+    Variable(VariableNode node) {
+      this.node = node;
+    }
+
+    @Override
+    EvaluationResult evaluate(ExpressionEvaluator evaluator) {
+      return evaluator.visitVariableNode(node, null);
+    }
+  }
+
+  private static final class Logical extends DomaCompiledExpression {
+    static final int AND = 0;
+    static final int OR = 1;
+    static final int NOT = 2;
+
+    private final ExpressionNode node;
+    private final int operator;
+    final DomaCompiledExpression left;
+    final DomaCompiledExpression right;
+
+    Logical(
+        ExpressionNode node,
+        int operator,
+        DomaCompiledExpression left,
+        DomaCompiledExpression right) {
+      this.node = node;
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    EvaluationResult evaluate(ExpressionEvaluator evaluator) {
+      EvaluationResult leftResult = left.evaluate(evaluator);
+      if (!(leftResult.getValue() instanceof Boolean)) {
+        return evaluateByDoma(evaluator, leftResult, null);
+      }
+      boolean value = (Boolean) leftResult.getValue();
+      if (operator == NOT) {
+        return value ? FALSE : TRUE;
+      }
+      if (operator == AND ? !value : value) {
+        return value ? TRUE : FALSE;
+      }
+      EvaluationResult rightResult = right.evaluate(evaluator);
+      if (!(rightResult.getValue() instanceof Boolean)) {
+        return evaluateByDoma(evaluator, leftResult, rightResult);
+      }
+      return (Boolean) rightResult.getValue() ? TRUE : FALSE;
+    }
+
+    /**
+     * @param rightResult the result of the right operand, or null if it is not evaluated yet
+     */
+    private EvaluationResult evaluateByDoma(
+        ExpressionEvaluator evaluator, EvaluationResult leftResult, EvaluationResult rightResult) {
+      ExpressionLocation location = node.getLocation();
+      if (operator == NOT) {
+        NotOperatorNode not = new NotOperatorNode(location, node.getExpression());
+        not.setNode(new Evaluated(((NotOperatorNode) node).getNode(), leftResult));
+        return evaluator.evaluate(not);
+      }
+      LogicalBinaryOperatorNode binary = (LogicalBinaryOperatorNode) node;
+      ExpressionNode leftNode = new Evaluated(binary.getLeftNode(), leftResult);
+      ExpressionNode rightNode =
+          rightResult == null
+              ? binary.getRightNode()
+              : new Evaluated(binary.getRightNode(), rightResult);
+      if (operator == AND) {
+        AndOperatorNode and = new AndOperatorNode(location, node.getExpression());
+        and.setLeftNode(leftNode);
+        and.setRightNode(rightNode);
+        return evaluator.evaluate(and);
+      }
+      OrOperatorNode or = new OrOperatorNode(location, node.getExpression());
+      or.setLeftNode(leftNode);
+      or.setRightNode(rightNode);
+      return evaluator.evaluate(or);
+    }
+  }
+
+  private static final class Comparison extends DomaCompiledExpression {
+    private final ComparisonOperatorNode node;
+    final DomaCompiledExpression left;
+    final DomaCompiledExpression right;
+
+    Comparison(
+        ComparisonOperatorNode node, DomaCompiledExpression left, DomaCompiledExpression right) {
+      this.node = node;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    EvaluationResult evaluate(ExpressionEvaluator evaluator) {
+      EvaluationResult leftResult = left.evaluate(evaluator);
+      EvaluationResult rightResult = right.evaluate(evaluator);
+      Object leftValue = leftResult.getValue();
+      Object rightValue = rightResult.getValue();
+      boolean equality = node instanceof EqOperatorNode || node instanceof NeOperatorNode;
+      int result;
+      if (leftValue == null || rightValue == null) {
+        if (!equality) {
+          return evaluateByDoma(evaluator, leftResult, rightResult);
+        }
+        result = leftValue == rightValue ? 0 : 1;
+      } else if (leftValue.getClass() == rightValue.getClass() && isComparable(leftValue)) {
+        // Doma compares values of the same class only, and reports the others as errors
+        @SuppressWarnings("unchecked")
+        Comparable<Object> comparable = (Comparable<Object>) leftValue;
+        result = comparable.compareTo(rightValue);
+      } else {
+        return evaluateByDoma(evaluator, leftResult, rightResult);
+      }
+      return test(result) ? TRUE : FALSE;
+    }
+
+    private EvaluationResult evaluateByDoma(
+        ExpressionEvaluator evaluator, EvaluationResult leftResult, EvaluationResult rightResult) {
+      AbstractComparisonOperatorNode comparison = newNode();
+      comparison.setLeftNode(new Evaluated(node.getLeftNode(), leftResult));
+      comparison.setRightNode(new Evaluated(node.getRightNode(), rightResult));
+      return evaluator.evaluate(comparison);
+    }
+
+    private AbstractComparisonOperatorNode newNode() {
+      ExpressionLocation location = node.getLocation();
+      String expression = node.getExpression();
+      if (node instanceof EqOperatorNode) {
+        return new EqOperatorNode(location, expression);
+      }
+      if (node instanceof NeOperatorNode) {
+        return new NeOperatorNode(location, expression);
+      }
+      if (node instanceof GtOperatorNode) {
+        return new GtOperatorNode(location, expression);
+      }
+      if (node instanceof GeOperatorNode) {
+        return new GeOperatorNode(location, expression);
+      }
+      if (node instanceof LtOperatorNode) {
+        return new LtOperatorNode(location, expression);
+      }
+      if (node instanceof LeOperatorNode) {
+        return new LeOperatorNode(location, expression);
+      }
+      throw new IllegalStateException(node.getClass().getName());
+    }
+
+    private boolean test(int result) {
+      if (node instanceof EqOperatorNode) {
+        return result == 0;
+      }
+      if (node instanceof NeOperatorNode) {
+        return result != 0;
+      }
+      if (node instanceof GtOperatorNode) {
+        return result > 0;
+      }
+      if (node instanceof GeOperatorNode) {
+        return result >= 0;
+      }
+      if (node instanceof LtOperatorNode) {
+        return result < 0;
+      }
+      if (node instanceof LeOperatorNode) {
+        return result <= 0;
+      }
+      throw new IllegalStateException(node.getClass().getName());
+    }
+
+    // types whose compareTo agrees with equals
+    private static boolean isComparable(Object value) {
+      return value instanceof String
+          || value instanceof Integer
+          || value instanceof Long
+          || value instanceof Short
+          || value instanceof Byte
+          || value instanceof Boolean
+          || value instanceof Character;
+    }
+  }
+
+  private static final class MethodCall extends DomaCompiledExpression {
+    private static final Object[] NO_ARGUMENTS = {};
+    private static final Class<?>[] NO_ARGUMENT_CLASSES = {};
+
+    private final MethodOperatorNode node;
+    private final DomaCompiledExpression target;
+    private final DomaCompiledExpression[] arguments;
+    private volatile ResolvedMethod resolved;
+
+    MethodCall(
+        MethodOperatorNode node,
+        DomaCompiledExpression target,
+        DomaCompiledExpression[] arguments) {
+      this.node = node;
+      this.target = target;
+      this.arguments = arguments;
+    }
+
+    @Override
+    EvaluationResult evaluate(ExpressionEvaluator evaluator) {
+      Object targetValue = target.evaluate(evaluator).getValue();
+      ExpressionLocation location = node.getLocation();
+      if (targetValue == null) {
+        throw new ExpressionException(
+            Message.DOMA3027,
+            location.getExpression(),
+            location.getPosition(),
+            node.getTargetObjectNode().getExpression(),
+            node.getMethodName());
+      }
+      Object[] argumentValues = NO_ARGUMENTS;
+      Class<?>[] argumentClasses = NO_ARGUMENT_CLASSES;
+      if (arguments.length > 0) {
+        argumentValues = new Object[arguments.length];
+        argumentClasses = new Class<?>[arguments.length];
+        for (int i = 0; i < arguments.length; i++) {
+          EvaluationResult result = arguments[i].evaluate(evaluator);
+          argumentValues[i] = result.getValue();
+          argumentClasses[i] = result.getValueClass();
+        }
+      }
+      ResolvedMethod method = resolved;
+      if (method == null || !method.accepts(targetValue, argumentClasses)) {
+        method =
+            ResolvedMethod.resolve(location, node.getMethodName(), targetValue, argumentClasses);
+        resolved = method;
+      }
+      Object value;
+      try {
+        value = method.invoker.invokeExact(targetValue, argumentValues);
+      } catch (Throwable e) {
+        // Doma reports the exception the way Method#invoke throws it
+        throw ResolvedMethod.newInvocationException(
+            location, method.targetClass, method.method, new InvocationTargetException(e));
+      }
+      return DomaMethods.INSTANCE.createResult(targetValue, value, method.method);
+    }
+  }
+
+  /** The method of a call, resolved for the classes of its target and arguments. */
+  private static final class ResolvedMethod {
+    final Class<?> targetClass;
+    final Class<?>[] argumentClasses;
+    final Method method;
+    final MethodHandle invoker;
+
+    private ResolvedMethod(
+        Class<?> targetClass, Class<?>[] argumentClasses, Method method, MethodHandle invoker) {
+      this.targetClass = targetClass;
+      this.argumentClasses = argumentClasses;
+      this.method = method;
+      this.invoker = invoker;
+    }
+
+    boolean accepts(Object target, Class<?>[] argumentClasses) {
+      if (target.getClass() != targetClass) {
+        return false;
+      }
+      for (int i = 0; i < argumentClasses.length; i++) {
+        if (argumentClasses[i] != this.argumentClasses[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * @return the method that Doma calls for the classes of the target and of the arguments
+     * @throws ExpressionException if there is no such method, or it cannot be invoked
+     */
+    static ResolvedMethod resolve(
+        ExpressionLocation location, String name, Object target, Class<?>[] argumentClasses) {
+      Class<?> targetClass = target.getClass();
+      Method method = DomaMethods.INSTANCE.find(name, target, argumentClasses);
+      if (method == null) {
+        throw new ExpressionException(
+            Message.DOMA3002,
+            location.getExpression(),
+            location.getPosition(),
+            MethodUtil.createSignature(name, argumentClasses),
+            targetClass.getName());
+      }
+      Method accessible = findAccessible(targetClass, method);
+      MethodHandle invoker;
+      try {
+        invoker =
+            MethodHandles.publicLookup()
+                .unreflect(accessible == null ? method : accessible)
+                .asType(MethodType.genericMethodType(argumentClasses.length + 1))
+                .asSpreader(Object[].class, argumentClasses.length);
+      } catch (IllegalAccessException e) {
+        throw newInvocationException(location, targetClass, method, e);
+      }
+      return new ResolvedMethod(targetClass, argumentClasses, method, invoker);
+    }
+
+    static ExpressionException newInvocationException(
+        ExpressionLocation location, Class<?> targetClass, Method method, Throwable cause) {
+      return new ExpressionException(
+          Message.DOMA3001,
+          cause,
+          location.getExpression(),
+          location.getPosition(),
+          targetClass.getName(),
+          method.getName(),
+          cause);
+    }
+
+    // a public method of a non-public class is invoked through a public type that declares it
+    private static Method findAccessible(Class<?> type, Method method) {
+      if (type == null) {
+        return null;
+      }
+      if (Modifier.isPublic(type.getModifiers())) {
+        try {
+          return type.getMethod(method.getName(), method.getParameterTypes());
+        } catch (NoSuchMethodException e) {
+          return null;
+        }
+      }
+      for (Class<?> interfaceType : type.getInterfaces()) {
+        Method found = findAccessible(interfaceType, method);
+        if (found != null) {
+          return found;
+        }
+      }
+      return findAccessible(type.getSuperclass(), method);
+    }
+  }
+
+  /** Finds methods and wraps their results with the rules of Doma's evaluator. */
+  private static final class DomaMethods extends ExpressionEvaluator {
+    static final DomaMethods INSTANCE = new DomaMethods();
+
+    Method find(String name, Object target, Class<?>[] argumentClasses) {
+      return findMethod(name, target, target.getClass(), argumentClasses);
+    }
+
+    EvaluationResult createResult(Object target, Object value, Method method) {
+      return createEvaluationResult(
+          target, value, method.getReturnType(), method.getGenericReturnType());
+    }
+  }
+
+  /** An operand evaluated already, which Doma does not evaluate again. */
+  private static final class Evaluated implements ExpressionNode {
+    private final ExpressionNode node;
+    private final EvaluationResult result;
+
+    Evaluated(ExpressionNode node, EvaluationResult result) {
+      this.node = node;
+      this.result = result;
+    }
+
+    @Override
+    public ExpressionLocation getLocation() {
+      return node.getLocation();
+    }
+
+    @Override
+    public String getExpression() {
+      return node.getExpression();
+    }
+
+    // visited by the expression evaluator, whose results are evaluation results
+    @SuppressWarnings("unchecked")
+    @Override
+    public <R, P> R accept(ExpressionNodeVisitor<R, P> visitor, P p) {
+      return (R) result;
+    }
+  }
+}
@@ -0,0 +1,407 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.ibatis.cache.Cache;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.BatchExecutor;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+
+/**
+ * Executes the statements of a {@link DomaSqlSource} with the options of its driver configuration.
+ * {@link DomaLanguageDriver} registers one interceptor per configuration, and a query goes through
+ * the options in this order:
+ *
+ * <ol>
+ *   <li>IN list chunking: a statement whose IN list is longer than the chunk size is executed once
+ *       per chunk. The rows are concatenated in chunk order and the update counts are summed.
+ *       Queries with {@link RowBounds} other than the default are executed as a single statement.
+ *   <li>Paging: a query with row bounds selects only the rows of the page, transformed by the
+ *       dialect, and is executed with {@link RowBounds#DEFAULT} so that MyBatis does not skip rows
+ *       again.
+ *   <li>Result caching: the rows of a template that declares a {@link DomaResultCache} are served
+ *       from the cache, unless the query has a result handler.
+ *   <li>Cache keys: the key of the local and second level caches is built from the values captured
+ *       while rendering rather than read from the parameter object again. The key also holds the
+ *       original row bounds of a paged query.
+ * </ol>
+ *
+ * <p>The rows handed over by {@link DomaBatch} are executed group by group, each group with a copy
+ * of the statement that returns the SQL already rendered for its rows.
+ *
+ * <p>The result caches of a namespace are cleared before and after a statement of the namespace
+ * that flushes the cache is executed, and again when the session commits, rolls back or closes, so
+ * that the rows selected by other sessions before the write is committed are not served after it.
+ * Until then, the queries of the writing session on the namespace bypass the result caches, which
+ * would otherwise serve or keep rows that other sessions must not see. The namespace of a
+ * statement is the one of its MyBatis cache, so that the statements of namespaces sharing a cache
+ * through {@code <cache-ref>} share their result caches' invalidation too. The result caches of
+ * statements that read tables written by other namespaces are only cleared by {@link
+ * #invalidate(Configuration, String)}, or by their {@code ttl}.
+ *
+ * @see DomaLanguageDriverConfig#setInListChunkSize(int)
+ * @see DomaLanguageDriverConfig#setRowBoundsPaging(boolean)
+ * @see DomaLanguageDriverConfig#setCompactCacheKeys(boolean)
+ */
+@Intercepts({
+  @Signature(
+      type = Executor.class,
+      method = "query",
+      args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class}),
+  @Signature(
+      type = Executor.class,
+      method = "update",
+      args = {MappedStatement.class, Object.class}),
+  @Signature(type = Executor.class, method = "commit", args = boolean.class),
+  @Signature(type = Executor.class, method = "rollback", args = boolean.class),
+  @Signature(type = Executor.class, method = "close", args = boolean.class)
+})
+public class DomaExecutorInterceptor implements Interceptor {
+  private final ConcurrentMap<String, Set<DomaResultCache>> namespaces = new ConcurrentHashMap<>();
+  // the namespaces written by each session since it last committed or rolled back
+  private final Map<Executor, Set<String>> writtenNamespaces =
+      Collections.synchronizedMap(new WeakHashMap<>());
+
+  /**
+   * Registers an interceptor to a configuration unless one is registered already.
+   *
+   * @param configuration a configuration. Must not be null.
+   */
+  static void register(Configuration configuration) {
+    synchronized (configuration) {
+      if (find(configuration) == null) {
+        configuration.addInterceptor(new DomaExecutorInterceptor());
+      }
+    }
+  }
+
+  /**
+   * @param configuration a configuration. Must not be null.
+   * @return true if an interceptor is registered to the configuration
+   */
+  static boolean isRegistered(Configuration configuration) {
+    return find(configuration) != null;
+  }
+
+  private static DomaExecutorInterceptor find(Configuration configuration) {
+    for (Interceptor interceptor : configuration.getInterceptors()) {
+      if (interceptor instanceof DomaExecutorInterceptor) {
+        return (DomaExecutorInterceptor) interceptor;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Clears the result caches of the statements of a namespace.
+   *
+   * @param configuration a configuration. Must not be null.
+   * @param namespace a mapper namespace, such as {@code com.example.CityMapper}, or the namespace
+   *     whose cache the statements refer to with {@code <cache-ref>}
+   */
+  public static void invalidate(Configuration configuration, String namespace) {
+    DomaExecutorInterceptor interceptor = find(configuration);
+    if (interceptor != null) {
+      interceptor.invalidate(namespace);
+    }
+  }
+
+  /**
+   * Clears the result caches of the statements of a namespace.
+   *
+   * @param namespace a mapper namespace
+   */
+  public void invalidate(String namespace) {
+    Set<DomaResultCache> caches = namespaces.get(namespace);
+    if (caches != null) {
+      caches.forEach(DomaResultCache::clear);
+    }
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Object intercept(Invocation invocation) throws Throwable {
+    Object[] args = invocation.getArgs();
+    if (args.length == 1) {
+      return endTransaction(invocation);
+    }
+    if (args.length == 2) {
+      return update(invocation, (MappedStatement) args[0], args[1]);
+    }
+    return query(
+        invocation,
+        (MappedStatement) args[0],
+        args[1],
+        (RowBounds) args[2],
+        (ResultHandler<?>) args[3]);
+  }
+
+  private Object endTransaction(Invocation invocation) throws Throwable {
+    Set<String> written = writtenNamespaces.remove(invocation.getTarget());
+    try {
+      return invocation.proceed();
+    } finally {
+      if (written != null) {
+        written.forEach(this::invalidate);
+      }
+    }
+  }
+
+  private Object update(
+      Invocation invocation, MappedStatement mappedStatement, Object parameterObject)
+      throws Throwable {
+    if (!mappedStatement.isFlushCacheRequired()) {
+      return execute(invocation, mappedStatement, parameterObject);
+    }
+    String namespace = getNamespace(mappedStatement);
+    writtenNamespaces
+        .computeIfAbsent((Executor) invocation.getTarget(), key -> new HashSet<>())
+        .add(namespace);
+    invalidate(namespace);
+    try {
+      return execute(invocation, mappedStatement, parameterObject);
+    } finally {
+      // the rows selected by other sessions while writing
+      invalidate(namespace);
+    }
+  }
+
+  private Object execute(
+      Invocation invocation, MappedStatement mappedStatement, Object parameterObject)
+      throws Throwable {
+    if (parameterObject instanceof DomaBatch.Groups) {
+      return DomaBatch.execute(
+          (Executor) invocation.getTarget(), mappedStatement, (DomaBatch.Groups) parameterObject);
+    }
+    if (!(mappedStatement.getSqlSource() instanceof DomaSqlSource)) {
+      return invocation.proceed();
+    }
+    DomaSqlSource sqlSource = (DomaSqlSource) mappedStatement.getSqlSource();
+    sqlSource.setStatementId(mappedStatement.getId());
+    List<BoundSql> chunks = sqlSource.getChunkedBoundSqls(parameterObject);
+    if (chunks == null) {
+      return invocation.proceed();
+    }
+    Executor executor = (Executor) invocation.getTarget();
+    int updateCount = 0;
+    for (BoundSql chunk : chunks) {
+      int count = executor.update(copy(mappedStatement, chunk), parameterObject);
+      if (count == BatchExecutor.BATCH_UPDATE_RETURN_VALUE) {
+        updateCount = count;
+      } else if (updateCount != BatchExecutor.BATCH_UPDATE_RETURN_VALUE) {
+        updateCount += count;
+      }
+    }
+    return updateCount;
+  }
+
+  private Object query(
+      Invocation invocation,
+      MappedStatement mappedStatement,
+      Object parameterObject,
+      RowBounds rowBounds,
+      ResultHandler<?> resultHandler)
+      throws Throwable {
+    if (!(mappedStatement.getSqlSource() instanceof DomaSqlSource)) {
+      return invocation.proceed();
+    }
+    DomaSqlSource sqlSource = (DomaSqlSource) mappedStatement.getSqlSource();
+    sqlSource.setStatementId(mappedStatement.getId());
+    List<BoundSql> chunks =
+        rowBounds == RowBounds.DEFAULT ? sqlSource.getChunkedBoundSqls(parameterObject) : null;
+    BoundSql boundSql =
+        chunks == null ? sqlSource.getPagedBoundSql(parameterObject, rowBounds) : null;
+    RowBounds executedRowBounds = boundSql == null ? rowBounds : RowBounds.DEFAULT;
+    DomaResultCache resultCache = resultHandler == null ? sqlSource.getResultCache() : null;
+    Executor executor = (Executor) invocation.getTarget();
+    if (resultCache != null) {
+      String namespace = getNamespace(mappedStatement);
+      namespaces.computeIfAbsent(namespace, key -> ConcurrentHashMap.newKeySet()).add(resultCache);
+      Set<String> written = writtenNamespaces.get(executor);
+      if (written != null && written.contains(namespace)) {
+        // the rows may hold the uncommitted writes of the session
+        resultCache = null;
+      }
+    }
+    if (resultCache == null) {
+      if (chunks != null) {
+        return queryChunks(executor, mappedStatement, parameterObject, resultHandler, chunks);
+      }
+      if (boundSql == null && !sqlSource.isCompactCacheKeys()) {
+        return invocation.proceed();
+      }
+    }
+
+    if (boundSql == null) {
+      // the rows of a chunked statement are cached by the statement as a whole
+      boundSql = mappedStatement.getBoundSql(parameterObject);
+    }
+    CacheKey cacheKey =
+        createCacheKey(executor, sqlSource, mappedStatement, parameterObject, rowBounds, boundSql);
+    if (resultCache == null) {
+      return executor.query(
+          mappedStatement, parameterObject, executedRowBounds, resultHandler, cacheKey, boundSql);
+    }
+    long generation = resultCache.getGeneration();
+    List<Object> cachedRows = resultCache.get(cacheKey);
+    if (cachedRows != null) {
+      return cachedRows;
+    }
+    List<?> rows =
+        chunks != null
+            ? queryChunks(
+                executor, mappedStatement, parameterObject, Executor.NO_RESULT_HANDLER, chunks)
+            : executor.query(
+                mappedStatement,
+                parameterObject,
+                executedRowBounds,
+                Executor.NO_RESULT_HANDLER,
+                cacheKey,
+                boundSql);
+    resultCache.put(cacheKey, rows, generation);
+    return rows;
+  }
+
+  private static List<Object> queryChunks(
+      Executor executor,
+      MappedStatement mappedStatement,
+      Object parameterObject,
+      ResultHandler<?> resultHandler,
+      List<BoundSql> chunks)
+      throws Throwable {
+    List<Object> rows = new ArrayList<>();
+    for (BoundSql chunk : chunks) {
+      rows.addAll(
+          executor.query(
+              copy(mappedStatement, chunk), parameterObject, RowBounds.DEFAULT, resultHandler));
+    }
+    return rows;
+  }
+
+  private static CacheKey createCacheKey(
+      Executor executor,
+      DomaSqlSource sqlSource,
+      MappedStatement mappedStatement,
+      Object parameterObject,
+      RowBounds rowBounds,
+      BoundSql boundSql) {
+    if (sqlSource.isCompactCacheKeys() && boundSql instanceof DomaBoundSql) {
+      return createCacheKey(mappedStatement, rowBounds, (DomaBoundSql) boundSql);
+    }
+    return executor.createCacheKey(mappedStatement, parameterObject, rowBounds, boundSql);
+  }
+
+  /**
+   * Builds the cache key of a query from the values captured while rendering it.
+   *
+   * <p>The key is equal to the one built by the executor: it holds the statement id, the row
+   * bounds, the SQL and the bound values, followed by the environment id. The values are not read
+   * from the parameter object again, and the bound SQLs of a cached shape share one SQL string,
+   * whose hash is computed once and which is compared by reference.
+   *
+   * @param mappedStatement the statement of the query
+   * @param rowBounds the row bounds of the query, before it is paged
+   * @param boundSql the statement rendered for the query
+   * @return the key
+   */
+  static CacheKey createCacheKey(
+      MappedStatement mappedStatement, RowBounds rowBounds, DomaBoundSql boundSql) {
+    CacheKey cacheKey = new CacheKey();
+    cacheKey.update(mappedStatement.getId());
+    cacheKey.update(rowBounds.getOffset());
+    cacheKey.update(rowBounds.getLimit());
+    cacheKey.update(boundSql.getSql());
+    for (Object value : boundSql.getParameterValues()) {
+      cacheKey.update(value);
+    }
+    Environment environment = mappedStatement.getConfiguration().getEnvironment();
+    if (environment != null) {
+      cacheKey.update(environment.getId());
+    }
+    return cacheKey;
+  }
+
+  private static MappedStatement copy(MappedStatement mappedStatement, BoundSql boundSql) {
+    return copy(mappedStatement, (parameterObject) -> boundSql);
+  }
+
+  /**
+   * Copies a statement with another source, such as the SQL already rendered for a call.
+   *
+   * @param mappedStatement a statement. Must not be null.
+   * @param sqlSource the source of the copy. Must not be null.
+   * @return the copy
+   */
+  static MappedStatement copy(MappedStatement mappedStatement, SqlSource sqlSource) {
+    return new MappedStatement.Builder(
+            mappedStatement.getConfiguration(),
+            mappedStatement.getId(),
+            sqlSource,
+            mappedStatement.getSqlCommandType())
+        .resource(mappedStatement.getResource())
+        .fetchSize(mappedStatement.getFetchSize())
+        .timeout(mappedStatement.getTimeout())
+        .statementType(mappedStatement.getStatementType())
+        .resultSetType(mappedStatement.getResultSetType())
+        .parameterMap(mappedStatement.getParameterMap())
+        .resultMaps(mappedStatement.getResultMaps())
+        .cache(mappedStatement.getCache())
+        .flushCacheRequired(mappedStatement.isFlushCacheRequired())
+        .useCache(mappedStatement.isUseCache())
+        .resultOrdered(mappedStatement.isResultOrdered())
+        .keyGenerator(mappedStatement.getKeyGenerator())
+        .keyProperty(join(mappedStatement.getKeyProperties()))
+        .keyColumn(join(mappedStatement.getKeyColumns()))
+        .databaseId(mappedStatement.getDatabaseId())
+        .lang(mappedStatement.getLang())
+        .resultSets(join(mappedStatement.getResultSets()))
+        .build();
+  }
+
+  private static String join(String[] values) {
+    return values == null ? null : String.join(",", values);
+  }
+
+  private static String getNamespace(MappedStatement mappedStatement) {
+    Cache cache = mappedStatement.getCache();
+    if (cache != null) {
+      return cache.getId();
+    }
+    String statementId = mappedStatement.getId();
+    int index = statementId.lastIndexOf('.');
+    return index < 0 ? "" : statementId.substring(0, index);
+  }
+}
@@ -15,36 +15,76 @@
  */
 package org.mybatis.scripting.doma;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
 import org.seasar.doma.expr.ExpressionFunctions;
 import org.seasar.doma.internal.expr.EvaluationResult;
 import org.seasar.doma.internal.expr.ExpressionEvaluator;
-import org.seasar.doma.internal.expr.ExpressionException;
 import org.seasar.doma.internal.expr.Value;
-import org.seasar.doma.internal.expr.node.ExpressionLocation;
 import org.seasar.doma.internal.expr.node.VariableNode;
 import org.seasar.doma.jdbc.ClassHelper;
-import org.seasar.doma.message.Message;
 
 public class DomaExpressionEvaluator extends ExpressionEvaluator {
+  // larger maps, filled by long %for loops, are not kept for the next evaluation
+  private static final int MAX_RETAINED_RESULTS = 64;
+
   final DomaVariableValues variableValues;
+  // the results of the values, which are immutable, when the results are reused
+  private Map<Value, EvaluationResult> results;
 
   public DomaExpressionEvaluator(
       DomaVariableValues variableValues,
       ExpressionFunctions expressionFunctions,
       ClassHelper classHelper) {
+    this(variableValues, expressionFunctions, classHelper, false);
+  }
+
+  /**
+   * @param reuseResults whether a value evaluated several times has one result until the results
+   *     are {@linkplain #clearResults() cleared}
+   */
+  DomaExpressionEvaluator(
+      DomaVariableValues variableValues,
+      ExpressionFunctions expressionFunctions,
+      ClassHelper classHelper,
+      boolean reuseResults) {
     super(expressionFunctions, classHelper);
     this.variableValues = variableValues;
+    this.results = reuseResults ? new IdentityHashMap<>() : null;
+  }
+
+  /** Forgets the reused results, which hold the values of the last evaluation. */
+  void clearResults() {
+    if (results == null) {
+      return;
+    }
+    if (results.size() > MAX_RETAINED_RESULTS) {
+      results = new IdentityHashMap<>();
+    } else {
+      results.clear();
+    }
   }
 
   @Override
   public EvaluationResult visitVariableNode(VariableNode node, Void p) {
-    String variableName = node.getExpression();
-    Value value = variableValues.getValue(node.getExpression());
+    String name = node.getExpression();
+    // the variables of %for directives are held by the base evaluator, and they shadow the
+    // parameters of the same name
+    if (super.variableValues.containsKey(name)) {
+      return super.visitVariableNode(node, p);
+    }
+    Value value = variableValues.getValue(name);
     if (value == null) {
-      ExpressionLocation location = node.getLocation();
-      throw new ExpressionException(
-          Message.DOMA3003, location.getExpression(), location.getPosition(), variableName);
+      return super.visitVariableNode(node, p);
+    }
+    if (results == null) {
+      return new EvaluationResult(value.getValue(), value.getType());
+    }
+    EvaluationResult result = results.get(value);
+    if (result == null) {
+      result = new EvaluationResult(value.getValue(), value.getType());
+      results.put(value, result);
     }
-    return new EvaluationResult(value.getValue(), value.getType());
+    return result;
   }
 }
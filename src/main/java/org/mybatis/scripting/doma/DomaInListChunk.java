@@ -0,0 +1,379 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.sql.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import org.seasar.doma.internal.jdbc.sql.node.BindVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.CommentNode;
+import org.seasar.doma.internal.jdbc.sql.node.EmbeddedVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.EolNode;
+import org.seasar.doma.internal.jdbc.sql.node.FromClauseNode;
+import org.seasar.doma.internal.jdbc.sql.node.LogicalOperatorNode;
+import org.seasar.doma.internal.jdbc.sql.node.ParensNode;
+import org.seasar.doma.internal.jdbc.sql.node.SelectStatementNode;
+import org.seasar.doma.internal.jdbc.sql.node.UpdateStatementNode;
+import org.seasar.doma.internal.jdbc.sql.node.WhereClauseNode;
+import org.seasar.doma.internal.jdbc.sql.node.WhitespaceNode;
+import org.seasar.doma.internal.jdbc.sql.node.WordNode;
+import org.seasar.doma.jdbc.SqlNode;
+import org.seasar.doma.jdbc.dialect.Dialect;
+
+/**
+ * Splits an IN list that is longer than a chunk size into chunks, one per statement.
+ *
+ * <p>An instance is used for one call. The template is rendered once per chunk, and each rendering
+ * binds the next chunk of the list. A call is chunked only when a single IN list of the statement
+ * is longer than the chunk size: splitting several lists, or a list that is used more than once,
+ * would change which rows match. {@code NOT IN} lists are never split.
+ *
+ * <p>A template is split only when the union of the chunks is the result of the whole statement:
+ * an {@code UPDATE} or {@code DELETE}, or a {@code SELECT} without aggregates, {@code DISTINCT},
+ * {@code GROUP BY}, {@code HAVING}, {@code ORDER BY}, set operations or row limits, whose IN lists
+ * are conditions of its {@code WHERE} clause joined by {@code AND} only. See {@link
+ * #isSplittable(SqlNode)}.
+ *
+ * <p>This class is public because templates call {@link #pad(Object)} through Doma's expression
+ * language.
+ */
+public final class DomaInListChunk {
+  private static final Set<String> AGGREGATE_FUNCTIONS =
+      new HashSet<>(
+          Arrays.asList(
+              "count",
+              "sum",
+              "avg",
+              "min",
+              "max",
+              "every",
+              "stddev",
+              "variance",
+              "array_agg",
+              "string_agg",
+              "listagg",
+              "group_concat"));
+  private static final Set<String> UNSPLITTABLE_WORDS =
+      new HashSet<>(
+          Arrays.asList(
+              "distinct",
+              "union",
+              "intersect",
+              "except",
+              "minus",
+              "over",
+              "limit",
+              "offset",
+              "fetch",
+              "top",
+              "rownum"));
+  private static final Set<String> NEGATED_PREDICATES =
+      new HashSet<>(Arrays.asList("in", "like", "ilike", "between", "null", "exists"));
+
+  private final DomaInListPadding padding;
+  private final int chunkSize;
+  private int index;
+  private int listSize;
+  private int oversizedLists;
+
+  /**
+   * @param padding the padding applied to each chunk. Must not be null.
+   * @param chunkSize the maximum number of values bound per IN list
+   */
+  DomaInListChunk(DomaInListPadding padding, int chunkSize) {
+    this.padding = padding;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Returns the chunk size suited to a dialect, which is the maximum number of values a database
+   * accepts in an IN list or as the parameters of a statement.
+   *
+   * @param dialect a dialect. Must not be null.
+   * @return the chunk size, or 0 if the database has no such limit
+   */
+  static int getChunkSize(Dialect dialect) {
+    String name = dialect.getName();
+    if (name.startsWith("oracle")) {
+      return 1000;
+    }
+    if (name.startsWith("mssql")) {
+      // 2100 parameters per statement, less a margin for the other parameters
+      return 2000;
+    }
+    if (name.startsWith("sqlite")) {
+      return 999;
+    }
+    if (name.startsWith("postgres")) {
+      return 32767;
+    }
+    return 0;
+  }
+
+  /**
+   * Returns whether a statement returns the same rows or updates the same rows when it is executed
+   * once per chunk of an IN list: the list filters the rows of the statement, and each row is
+   * selected or updated by at most one chunk. Templates whose IN lists are rewritten by {@link
+   * DomaSqlTemplate} are expected.
+   *
+   * <p>The IN lists must be conditions of the {@code WHERE} clause of an {@code UPDATE}, a {@code
+   * DELETE} or a {@code SELECT}, joined to the other conditions by {@code AND} only and neither in
+   * a subquery nor after {@code NOT}. A {@code SELECT} must not aggregate, deduplicate, group,
+   * order or limit its rows, nor combine them with another query. Templates with embedded
+   * variables are never split, since the variables may add any of these.
+   *
+   * @param sqlNode a parsed template. Must not be null.
+   * @return true if the IN lists of the template may be split
+   */
+  static boolean isSplittable(SqlNode sqlNode) {
+    if (contains(sqlNode, EmbeddedVariableNode.class)) {
+      return false;
+    }
+    SqlNode statement = null;
+    WhereClauseNode where = null;
+    for (SqlNode child : sqlNode.getChildren()) {
+      if (isBlank(child)) {
+        continue;
+      }
+      if (statement == null) {
+        statement = child;
+        if (child instanceof SelectStatementNode) {
+          SelectStatementNode select = (SelectStatementNode) child;
+          if (select.getGroupByClauseNode() != null
+              || select.getHavingClauseNode() != null
+              || select.getOrderByClauseNode() != null
+              || !isSplittableSelect(select)) {
+            return false;
+          }
+          where = select.getWhereClauseNode();
+        } else if (child instanceof UpdateStatementNode) {
+          where = ((UpdateStatementNode) child).getWhereClauseNode();
+        } else if (!isWord(child, "delete")) {
+          return false;
+        }
+      } else if (statement instanceof WordNode
+          && where == null
+          && child instanceof FromClauseNode) {
+        // DELETE FROM table WHERE ...
+        for (SqlNode clause : child.getChildren()) {
+          if (clause instanceof WhereClauseNode) {
+            where = (WhereClauseNode) clause;
+          }
+        }
+      } else {
+        // such as a UNION or the rest of a DELETE
+        return false;
+      }
+    }
+    int inLists = countInLists(sqlNode);
+    return inLists > 0 && where != null && countConditionInLists(where) == inLists;
+  }
+
+  private static boolean isSplittableSelect(SqlNode node) {
+    List<SqlNode> children = node.getChildren();
+    for (int i = 0; i < children.size(); i++) {
+      SqlNode child = children.get(i);
+      if (child instanceof WordNode) {
+        String word = ((WordNode) child).getWord().toLowerCase(Locale.ROOT);
+        if (UNSPLITTABLE_WORDS.contains(word)
+            || (AGGREGATE_FUNCTIONS.contains(word)
+                && next(children, i) instanceof ParensNode)) {
+          return false;
+        }
+      }
+      if (!isSplittableSelect(child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // the IN lists that are conditions joined by AND, or -1 if an OR or a NOT applies to one
+  private static int countConditionInLists(SqlNode conditions) {
+    Conditions scan = new Conditions();
+    scan.add(conditions);
+    return scan.unsplittable || (scan.inLists > 0 && scan.disjunctive) ? -1 : scan.inLists;
+  }
+
+  /** The conditions within one pair of parentheses, as far as the IN lists are concerned. */
+  private static final class Conditions {
+    int inLists;
+    boolean disjunctive;
+    boolean unsplittable;
+
+    void add(SqlNode node) {
+      SqlNode previous = null;
+      List<SqlNode> children = node.getChildren();
+      for (int i = 0; i < children.size(); i++) {
+        SqlNode child = children.get(i);
+        if (isBlank(child)) {
+          continue;
+        }
+        if (child instanceof LogicalOperatorNode
+            && !isWord(((LogicalOperatorNode) child).getWordNode(), "and")) {
+          disjunctive = true;
+        } else if (isWord(child, "not") && !isNegatedPredicate(next(children, i))) {
+          disjunctive = true;
+        }
+        if (child instanceof BindVariableNode) {
+          if (isInList((BindVariableNode) child)) {
+            inLists++;
+          }
+        } else if (child instanceof ParensNode) {
+          if (previous == null && !isSubquery(child)) {
+            // parenthesized conditions, rather than a subquery or the arguments of a function
+            int n = countConditionInLists(child);
+            unsplittable |= n < 0;
+            inLists += Math.max(n, 0);
+          }
+        } else {
+          // the conditions after AND and OR, and within directives
+          add(child);
+        }
+        previous = child;
+      }
+    }
+  }
+
+  private static boolean isNegatedPredicate(SqlNode node) {
+    return node instanceof WordNode
+        && NEGATED_PREDICATES.contains(((WordNode) node).getWord().toLowerCase(Locale.ROOT));
+  }
+
+  private static boolean isSubquery(SqlNode parens) {
+    return parens.getChildren().stream().anyMatch(node -> node instanceof SelectStatementNode);
+  }
+
+  private static int countInLists(SqlNode node) {
+    int count = node instanceof BindVariableNode && isInList((BindVariableNode) node) ? 1 : 0;
+    for (SqlNode child : node.getChildren()) {
+      count += countInLists(child);
+    }
+    return count;
+  }
+
+  private static boolean isInList(BindVariableNode node) {
+    return node.isParensNodeIgnored()
+        && node.getVariableName().startsWith(DomaInListPadding.VARIABLE_NAME + ".pad(");
+  }
+
+  private static boolean contains(SqlNode node, Class<? extends SqlNode> nodeClass) {
+    if (nodeClass.isInstance(node)) {
+      return true;
+    }
+    for (SqlNode child : node.getChildren()) {
+      if (contains(child, nodeClass)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // the node after the node at the index, skipping whitespace and comments
+  private static SqlNode next(List<SqlNode> nodes, int index) {
+    for (int i = index + 1; i < nodes.size(); i++) {
+      if (!isBlank(nodes.get(i))) {
+        return nodes.get(i);
+      }
+    }
+    return null;
+  }
+
+  private static boolean isBlank(SqlNode node) {
+    return node instanceof WhitespaceNode || node instanceof CommentNode || node instanceof EolNode;
+  }
+
+  private static boolean isWord(SqlNode node, String word) {
+    return node instanceof WordNode && ((WordNode) node).getWord().equalsIgnoreCase(word);
+  }
+
+  /**
+   * Binds the current chunk of an IN list. Called from templates.
+   *
+   * @param values an {@link Iterable} or an array. Other values are bound as a single element,
+   *     and null is returned as it is.
+   * @return the values of the current chunk, padded
+   */
+  public Iterable<?> pad(Object values) {
+    if (values == null) {
+      return null;
+    }
+    List<Object> list = DomaInListPadding.toList(values);
+    if (list == null) {
+      return padding.padList(DomaInListPadding.singletonList(values));
+    }
+    if (list.size() <= chunkSize) {
+      return padding.padList(list);
+    }
+    oversizedLists++;
+    listSize = list.size();
+    int from = Math.min(index * chunkSize, listSize);
+    int to = Math.min(from + chunkSize, listSize);
+    return padding.padList(new ArrayList<>(list.subList(from, to)));
+  }
+
+  /**
+   * Binds a {@code NOT IN} list as a whole, padded with its last value. Called from templates.
+   *
+   * @param values an {@link Iterable} or an array. Other values are bound as a single element,
+   *     and null is returned as it is.
+   * @return the padded values
+   * @see DomaInListPadding#padNegated(Object)
+   */
+  public Iterable<?> padNegated(Object values) {
+    return padding.padNegated(values);
+  }
+
+  /**
+   * Converts the values of an IN list into one array parameter. Called from templates.
+   *
+   * @param values an {@link Iterable} or an array. Other values are bound as a single element.
+   * @return the array parameter
+   */
+  public Array array(Object values) {
+    return padding.array(values);
+  }
+
+  /**
+   * @return true if the last rendering met an IN list longer than the chunk size
+   */
+  boolean isSplit() {
+    return oversizedLists > 0;
+  }
+
+  /**
+   * @return true if the last rendering split exactly one IN list, so that the chunks can be
+   *     executed as separate statements
+   */
+  boolean isChunked() {
+    return oversizedLists == 1;
+  }
+
+  /**
+   * Moves to the next chunk.
+   *
+   * @return false if the last rendering bound the last chunk
+   */
+  boolean next() {
+    oversizedLists = 0;
+    index++;
+    return index * chunkSize < listSize;
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.sql.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Pads the lists expanded by IN list bind variables, the bind variables directly followed by
+ * parentheses, up to a bucket size, so that a statement renders a bounded number of SQL texts
+ * however many values are passed.
+ *
+ * <p>The buckets are either the powers of two or an ascending series of sizes. Past the largest
+ * size of a series, the sizes keep doubling, so that a statement renders a number of SQL texts that
+ * grows with the logarithm of the longest list passed. Lists are padded by repeating their last
+ * value, or with {@code null}. {@code NOT IN} lists are always padded with their last value, since
+ * {@code NOT IN} is never true when the list contains {@code null}.
+ *
+ * <p>This class is public because templates call {@link #pad(Object)} through Doma's expression
+ * language.
+ */
+public final class DomaInListPadding {
+  static final String VARIABLE_NAME = "__doma_inList";
+
+  static final String POWER_OF_TWO = "powerOfTwo";
+
+  static final String PAD_WITH_LAST = "last";
+
+  static final String PAD_WITH_NULL = "null";
+
+  /**
+   * The element padded for {@code null}. Doma rejects {@code null} elements, so they are bound by
+   * {@link DomaPreparedSqlBuilder}.
+   */
+  static final Object NULL_ELEMENT = new Object();
+
+  /** A padding that leaves the lists as they are. */
+  static final DomaInListPadding NONE = new DomaInListPadding(new int[0], false);
+
+  private final int[] buckets;
+  private final boolean padWithNull;
+  private final String arrayFormat;
+
+  private DomaInListPadding(int[] buckets, boolean padWithNull) {
+    this(buckets, padWithNull, null);
+  }
+
+  private DomaInListPadding(int[] buckets, boolean padWithNull, String arrayFormat) {
+    this.buckets = buckets;
+    this.padWithNull = padWithNull;
+    this.arrayFormat = arrayFormat;
+  }
+
+  /**
+   * @param arrayFormat the SQL that replaces IN lists to bind their values as one array
+   * @return a copy of this padding that binds IN lists as arrays
+   * @see DomaArrayParameter#getInListFormat(org.seasar.doma.jdbc.dialect.Dialect)
+   */
+  DomaInListPadding withArrayFormat(String arrayFormat) {
+    return new DomaInListPadding(buckets, padWithNull, arrayFormat);
+  }
+
+  /**
+   * @return the SQL that replaces IN lists to bind their values as one array, or null if the
+   *     values are expanded
+   */
+  String getArrayFormat() {
+    return arrayFormat;
+  }
+
+  /**
+   * Creates a padding.
+   *
+   * @param buckets {@code powerOfTwo}, or a comma separated ascending series of sizes. null or
+   *     empty disables padding.
+   * @param padding {@code last} or {@code null}
+   * @return a padding, or null if padding is disabled
+   */
+  static DomaInListPadding of(String buckets, String padding) {
+    if (buckets == null || buckets.trim().isEmpty()) {
+      return null;
+    }
+    return new DomaInListPadding(parseBuckets(buckets), parsePadding(padding));
+  }
+
+  static int[] parseBuckets(String buckets) {
+    if (buckets.trim().equals(POWER_OF_TWO)) {
+      return null;
+    }
+    try {
+      int[] sizes =
+          Arrays.stream(buckets.split(",")).map(String::trim).mapToInt(Integer::parseInt).toArray();
+      for (int i = 0; i < sizes.length; i++) {
+        if (sizes[i] <= 0 || (i > 0 && sizes[i] <= sizes[i - 1])) {
+          throw new IllegalStateException("Invalid inListBuckets:" + buckets);
+        }
+      }
+      return sizes;
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Invalid inListBuckets:" + buckets, e);
+    }
+  }
+
+  static boolean parsePadding(String padding) {
+    if (padding == null || padding.equals(PAD_WITH_LAST)) {
+      return false;
+    }
+    if (padding.equals(PAD_WITH_NULL)) {
+      return true;
+    }
+    throw new IllegalStateException("Invalid inListPadding:" + padding);
+  }
+
+  /**
+   * @param size the number of values
+   * @return the number of values after padding
+   */
+  int bucketSize(int size) {
+    if (size <= 1 || (buckets != null && buckets.length == 0)) {
+      return size;
+    }
+    if (buckets == null) {
+      int bucket = Integer.highestOneBit(size);
+      return bucket == size ? size : bucket << 1;
+    }
+    for (int bucket : buckets) {
+      if (size <= bucket) {
+        return bucket;
+      }
+    }
+    int bucket = buckets[buckets.length - 1];
+    while (bucket < size) {
+      // the doubled size would overflow, so the list is not padded
+      bucket = bucket > Integer.MAX_VALUE >> 1 ? size : bucket << 1;
+    }
+    return bucket;
+  }
+
+  /**
+   * Pads the values of an IN list. Called from templates.
+   *
+   * @param values an {@link Iterable} or an array. Other values are bound as a single element,
+   *     and null is returned as it is.
+   * @return the padded values
+   */
+  public Iterable<?> pad(Object values) {
+    return pad(values, padWithNull);
+  }
+
+  /**
+   * Pads the values of a {@code NOT IN} list with their last value. Called from templates.
+   *
+   * @param values an {@link Iterable} or an array. Other values are bound as a single element,
+   *     and null is returned as it is.
+   * @return the padded values
+   */
+  public Iterable<?> padNegated(Object values) {
+    return pad(values, false);
+  }
+
+  private Iterable<?> pad(Object values, boolean withNull) {
+    if (values == null) {
+      return null;
+    }
+    if (values instanceof Collection) {
+      Collection<?> collection = (Collection<?>) values;
+      if (bucketSize(collection.size()) == collection.size()) {
+        return collection;
+      }
+    }
+    List<Object> list = toList(values);
+    return padList(list == null ? singletonList(values) : list, withNull);
+  }
+
+  /**
+   * Converts the values of an IN list into one array parameter. Called from templates.
+   *
+   * @param values an {@link Iterable} or an array. Other values are bound as a single element.
+   * @return the array parameter
+   */
+  public Array array(Object values) {
+    List<Object> list = toList(values);
+    return new DomaArrayParameter(
+        list == null ? new Object[] {values} : list.toArray(new Object[list.size()]));
+  }
+
+  static List<Object> singletonList(Object value) {
+    List<Object> list = new ArrayList<>(1);
+    list.add(value);
+    return list;
+  }
+
+  List<Object> padList(List<Object> list) {
+    return padList(list, padWithNull);
+  }
+
+  private List<Object> padList(List<Object> list, boolean withNull) {
+    int size = list.size();
+    int bucketSize = bucketSize(size);
+    if (bucketSize == size) {
+      return list;
+    }
+    Object fill = withNull ? NULL_ELEMENT : list.get(size - 1);
+    for (int i = size; i < bucketSize; i++) {
+      list.add(fill);
+    }
+    return list;
+  }
+
+  /**
+   * @return a modifiable copy of an {@link Iterable} or an array, or null if the value is neither
+   */
+  static List<Object> toList(Object values) {
+    if (values instanceof Collection) {
+      return new ArrayList<>((Collection<?>) values);
+    }
+    if (values instanceof Iterable) {
+      List<Object> list = new ArrayList<>();
+      ((Iterable<?>) values).forEach(list::add);
+      return list;
+    }
+    if (values != null && values.getClass().isArray()) {
+      int length = java.lang.reflect.Array.getLength(values);
+      List<Object> list = new ArrayList<>(length);
+      for (int i = 0; i < length; i++) {
+        list.add(java.lang.reflect.Array.get(values, i));
+      }
+      return list;
+    }
+    return null;
+  }
+}
@@ -15,9 +15,20 @@
  */
 package org.mybatis.scripting.doma;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import org.apache.ibatis.builder.BuilderException;
 import org.apache.ibatis.executor.parameter.ParameterHandler;
 import org.apache.ibatis.mapping.BoundSql;
 import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
 import org.apache.ibatis.mapping.SqlSource;
 import org.apache.ibatis.parsing.XNode;
 import org.apache.ibatis.scripting.LanguageDriver;
@@ -42,10 +53,26 @@ public class DomaLanguageDriver implements LanguageDriver {
     this.driverConfig = driverConfig;
   }
 
+  /**
+   * @param configuration a MyBatis configuration. Must not be null.
+   * @return the render metrics of the doma statements of the configuration, or null if metrics are
+   *     disabled
+   * @see DomaLanguageDriverConfig#setMetrics(boolean)
+   */
+  public DomaMetrics getMetrics(Configuration configuration) {
+    return driverConfig.metrics ? DomaMetrics.of(configuration) : null;
+  }
+
   /** {@inheritDoc} */
   @Override
   public ParameterHandler createParameterHandler(
       MappedStatement mappedStatement, Object parameterObject, BoundSql boundSql) {
+    if (mappedStatement.getSqlSource() instanceof DomaSqlSource) {
+      ((DomaSqlSource) mappedStatement.getSqlSource()).setStatementId(mappedStatement.getId());
+    }
+    if (boundSql instanceof DomaBoundSql) {
+      return new DomaParameterHandler(mappedStatement, parameterObject, (DomaBoundSql) boundSql);
+    }
     return new DefaultParameterHandler(mappedStatement, parameterObject, boundSql);
   }
 
@@ -60,10 +87,116 @@ public class DomaLanguageDriver implements LanguageDriver {
   @Override
   public SqlSource createSqlSource(
       Configuration configuration, String script, Class<?> parameterTypeClass) {
-    return new DomaSqlSource(
-        driverConfig,
-        configuration,
-        script,
-        parameterTypeClass == null ? Object.class : parameterTypeClass);
+    if (driverConfig.inListChunkSize != 0
+        // DomaBatch executes its rows through the interceptor
+        || driverConfig.bindParameters
+        || driverConfig.rowBoundsPaging
+        // a script loaded lazily may declare a result cache too
+        || script.startsWith("//")
+        || script.contains("/*%cache")) {
+      DomaExecutorInterceptor.register(configuration);
+    }
+    DomaSqlSource sqlSource =
+        new DomaSqlSource(
+            driverConfig,
+            configuration,
+            script,
+            parameterTypeClass == null ? Object.class : parameterTypeClass);
+    if (driverConfig.metrics) {
+      DomaMetrics.of(configuration).add(sqlSource);
+    }
+    return sqlSource;
+  }
+
+  /**
+   * Adds a statement that counts the rows of each doma select statement, with the id of the
+   * statement followed by {@value DomaSqlSource#COUNT_STATEMENT_SUFFIX}. Call it once the mappers
+   * are loaded and before the configuration is used, as the mappers themselves are added. The
+   * templates are not parsed until the count statements are executed.
+   *
+   * @param configuration a configuration whose mappers are loaded
+   * @see DomaSqlSource#getCountStatementId(Configuration, String)
+   */
+  public static void addCountStatements(Configuration configuration) {
+    Set<MappedStatement> mappedStatements = Collections.newSetFromMap(new IdentityHashMap<>());
+    // the statement map also holds the ambiguous short names
+    for (Object value : (Iterable<?>) configuration.getMappedStatements()) {
+      if (value instanceof MappedStatement
+          && ((MappedStatement) value).getSqlSource() instanceof DomaSqlSource
+          && ((MappedStatement) value).getSqlCommandType() == SqlCommandType.SELECT) {
+        mappedStatements.add((MappedStatement) value);
+      }
+    }
+    for (MappedStatement mappedStatement : mappedStatements) {
+      String countStatementId = mappedStatement.getId() + DomaSqlSource.COUNT_STATEMENT_SUFFIX;
+      if (!configuration.hasStatement(countStatementId, false)) {
+        configuration.addMappedStatement(DomaSqlSource.createCountStatement(mappedStatement));
+      }
+    }
+  }
+
+  /**
+   * Parses the templates of all the doma statements in parallel on the common pool.
+   *
+   * @param configuration a configuration whose mappers are loaded
+   * @throws BuilderException if any template is invalid. All the invalid templates are reported.
+   * @see DomaLanguageDriverConfig#setLazyParsing(boolean)
+   */
+  public static void precompile(Configuration configuration) {
+    precompile(configuration, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Parses the templates of all the doma statements in parallel.
+   *
+   * @param configuration a configuration whose mappers are loaded
+   * @param pool a pool to parse the templates in
+   * @throws BuilderException if any template is invalid. All the invalid templates are reported.
+   * @see DomaLanguageDriverConfig#setLazyParsing(boolean)
+   */
+  public static void precompile(Configuration configuration, ForkJoinPool pool) {
+    Set<MappedStatement> mappedStatements = Collections.newSetFromMap(new IdentityHashMap<>());
+    // the statement map also holds the ambiguous short names
+    for (Object value : (Iterable<?>) configuration.getMappedStatements()) {
+      if (value instanceof MappedStatement
+          && ((MappedStatement) value).getSqlSource() instanceof DomaSqlSource) {
+        mappedStatements.add((MappedStatement) value);
+      }
+    }
+
+    Map<String, RuntimeException> errors = new ConcurrentSkipListMap<>();
+    List<ForkJoinTask<?>> tasks = new ArrayList<>(mappedStatements.size());
+    for (MappedStatement mappedStatement : mappedStatements) {
+      DomaSqlSource sqlSource = (DomaSqlSource) mappedStatement.getSqlSource();
+      if (sqlSource.isPrepared()) {
+        continue;
+      }
+      tasks.add(
+          pool.submit(
+              () -> {
+                try {
+                  sqlSource.prepare();
+                } catch (RuntimeException e) {
+                  errors.put(mappedStatement.getId(), e);
+                }
+              }));
+    }
+    for (ForkJoinTask<?> task : tasks) {
+      task.join();
+    }
+
+    if (!errors.isEmpty()) {
+      StringBuilder message =
+          new StringBuilder("Error precompiling ")
+              .append(errors.size())
+              .append(" doma statement(s):");
+      for (Map.Entry<String, RuntimeException> error : errors.entrySet()) {
+        message.append("\n  ").append(error.getKey()).append(": ");
+        message.append(error.getValue().getMessage());
+      }
+      BuilderException exception = new BuilderException(message.toString());
+      errors.values().forEach(exception::addSuppressed);
+      throw exception;
+    }
   }
 }
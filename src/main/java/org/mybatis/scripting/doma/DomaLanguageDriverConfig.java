@@ -19,14 +19,20 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.ref.WeakReference;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.WeakHashMap;
 import java.util.function.Consumer;
 import org.apache.ibatis.io.Resources;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
+import org.apache.ibatis.session.Configuration;
+import org.seasar.doma.jdbc.SqlLogType;
 import org.seasar.doma.jdbc.dialect.Dialect;
 
 /**
@@ -42,8 +48,44 @@ public class DomaLanguageDriverConfig {
 
   private static final Log log = LogFactory.getLog(DomaLanguageDriverConfig.class);
 
+  /** The {@code inListChunkSize} that uses the limit of the dialect. */
+  public static final int DIALECT_IN_LIST_CHUNK_SIZE = -1;
+
   Dialect dialect = null;
 
+  boolean bindParameters = false;
+
+  int shapeCacheSize = 0;
+
+  String inListBuckets = null;
+
+  String inListPadding = DomaInListPadding.PAD_WITH_LAST;
+
+  int inListChunkSize = 0;
+
+  boolean arrayParameters = false;
+
+  boolean lazyParsing = false;
+
+  SqlLogType sqlLogType = SqlLogType.FORMATTED;
+
+  int sqlLogSampling = 1;
+
+  boolean metrics = false;
+
+  boolean compactCacheKeys = false;
+
+  boolean rowBoundsPaging = false;
+
+  final DomaScriptRegistry scriptRegistry = new DomaScriptRegistry();
+
+  private volatile DomaRuntime runtime;
+
+  // the type handlers refer to their configuration, so both are only weakly held here, and the
+  // sources of a configuration hold its type handlers
+  private final Map<Configuration, WeakReference<DomaTypeHandlers>> typeHandlers =
+      new WeakHashMap<>();
+
   /**
    * Create an instance from default properties file. <br>
    * If you want to customize a default {@link RuntimeInstance}, you can configure some property
@@ -68,6 +110,75 @@ public class DomaLanguageDriverConfig {
    * <td>None(StandardDialect)</td>
    * </tr>
    * <tr>
+   * <td>bindParameters</td>
+   * <td>Whether to bind values as JDBC parameters instead of inlining them as SQL literals.</td>
+   * <td>false</td>
+   * </tr>
+   * <tr>
+   * <td>shapeCacheSize</td>
+   * <td>The maximum number of SQL shapes cached per statement when bindParameters is enabled. 0
+   * disables the cache.</td>
+   * <td>0</td>
+   * </tr>
+   * <tr>
+   * <td>inListBuckets</td>
+   * <td>The sizes that IN lists are padded up to: powerOfTwo, or a comma separated ascending series
+   * of sizes such as 10,50,100.</td>
+   * <td>None(not padded)</td>
+   * </tr>
+   * <tr>
+   * <td>inListPadding</td>
+   * <td>The value IN lists are padded with: last (repeat the last value) or null.</td>
+   * <td>last</td>
+   * </tr>
+   * <tr>
+   * <td>inListChunkSize</td>
+   * <td>The maximum number of values bound per IN list. A longer list is split into several
+   * statements. dialect uses the limit of the database. 0 disables splitting.</td>
+   * <td>0</td>
+   * </tr>
+   * <tr>
+   * <td>arrayParameters</td>
+   * <td>Whether to bind the values of IN lists as one array parameter when bindParameters is
+   * enabled and the dialect supports it (HSQLDB, PostgreSQL).</td>
+   * <td>false</td>
+   * </tr>
+   * <tr>
+   * <td>lazyParsing</td>
+   * <td>Whether to load and parse templates on first use, or when {@link
+   * DomaLanguageDriver#precompile(org.apache.ibatis.session.Configuration)} is called, instead of
+   * when the mappers are loaded.</td>
+   * <td>false</td>
+   * </tr>
+   * <tr>
+   * <td>sqlLogType</td>
+   * <td>How the SQL is logged at debug level: NONE, RAW (with bind variables) or FORMATTED (with
+   * values). Inlined values are always formatted.</td>
+   * <td>FORMATTED</td>
+   * </tr>
+   * <tr>
+   * <td>sqlLogSampling</td>
+   * <td>Log the SQL of one in this many calls per statement.</td>
+   * <td>1</td>
+   * </tr>
+   * <tr>
+   * <td>metrics</td>
+   * <td>Whether to record the render time of each statement and publish it through JMX.</td>
+   * <td>false</td>
+   * </tr>
+   * <tr>
+   * <td>compactCacheKeys</td>
+   * <td>Whether to build the cache keys of queries from the cached SQL shape and the bound values
+   * instead of the SQL text.</td>
+   * <td>false</td>
+   * </tr>
+   * <tr>
+   * <td>rowBoundsPaging</td>
+   * <td>Whether to select only the rows of the RowBounds of a query, with the paging of the
+   * dialect, instead of skipping the other rows in memory.</td>
+   * <td>false</td>
+   * </tr>
+   * <tr>
    * </table>
    *
    * @return a configuration instance
@@ -109,6 +220,7 @@ public class DomaLanguageDriverConfig {
 
   public void setDialect(Dialect dialect) {
     this.dialect = dialect;
+    this.runtime = null;
   }
 
   public void setDialect(String dialect) {
@@ -125,17 +237,264 @@ public class DomaLanguageDriverConfig {
       if (!Dialect.class.isAssignableFrom(dialectClass)) {
         throw new Exception();
       }
-      this.dialect = (Dialect) dialectClass.getDeclaredConstructor().newInstance();
+      setDialect((Dialect) dialectClass.getDeclaredConstructor().newInstance());
     } catch (Exception e) {
       throw new IllegalStateException("Invalid dialect:" + dialect, e);
     }
   }
 
+  /**
+   * @return the Doma objects shared by the statements created with this configuration
+   */
+  DomaRuntime getRuntime() {
+    DomaRuntime result = runtime;
+    if (result == null) {
+      result = dialect == null ? DomaRuntime.STANDARD : new DomaRuntime(dialect);
+      runtime = result;
+    }
+    return result;
+  }
+
+  /**
+   * @param configuration a MyBatis configuration. Must not be null.
+   * @return the type handlers that bind the values of the statements of the configuration
+   */
+  DomaTypeHandlers getTypeHandlers(Configuration configuration) {
+    synchronized (typeHandlers) {
+      WeakReference<DomaTypeHandlers> reference = typeHandlers.get(configuration);
+      DomaTypeHandlers result = reference == null ? null : reference.get();
+      if (result == null) {
+        result = new DomaTypeHandlers(configuration);
+        typeHandlers.put(configuration, new WeakReference<>(result));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Set whether to bind values as JDBC parameters.
+   *
+   * <p>When {@code true}, the rendered SQL contains {@code ?} placeholders and the values captured
+   * while rendering are bound by {@link DomaParameterHandler}, with the type handlers registered
+   * in the MyBatis configuration. When {@code false}, values are inlined as SQL literals. When
+   * {@code true}, {@link DomaLanguageDriver} also registers {@link DomaExecutorInterceptor}, which
+   * executes the rows of {@link DomaBatch}.
+   *
+   * @param bindParameters whether to bind values as JDBC parameters
+   */
+  public void setBindParameters(boolean bindParameters) {
+    this.bindParameters = bindParameters;
+  }
+
+  /**
+   * Set the maximum number of SQL shapes cached per statement.
+   *
+   * <p>A shape is the SQL text rendered for one combination of {@code %if} branches, {@code %for}
+   * iteration counts and IN list sizes. When a shape is cached, only the bind values are evaluated.
+   * The cache is used only when {@link #setBindParameters(boolean) bindParameters} is enabled.
+   *
+   * @param shapeCacheSize the maximum number of shapes. 0 disables the cache.
+   */
+  public void setShapeCacheSize(int shapeCacheSize) {
+    this.shapeCacheSize = shapeCacheSize;
+  }
+
+  /**
+   * Set the sizes that the lists of IN list bind variables are padded up to.
+   *
+   * <p>Every list length renders a different SQL text. Padding the lists up to a few sizes bounds
+   * the number of SQL texts of a statement, which keeps the JDBC statement cache and the plan cache
+   * of the database effective.
+   *
+   * @param inListBuckets {@code powerOfTwo}, or a comma separated ascending series of sizes. null
+   *     or empty disables padding.
+   * @see DomaInListPadding
+   */
+  public void setInListBuckets(String inListBuckets) {
+    if (inListBuckets != null && !inListBuckets.trim().isEmpty()) {
+      DomaInListPadding.parseBuckets(inListBuckets);
+    }
+    this.inListBuckets = inListBuckets;
+  }
+
+  /**
+   * Set the value that IN lists are padded with.
+   *
+   * @param inListPadding {@code last} to repeat the last value, or {@code null}
+   * @see #setInListBuckets(String)
+   */
+  public void setInListPadding(String inListPadding) {
+    DomaInListPadding.parsePadding(inListPadding);
+    this.inListPadding = inListPadding;
+  }
+
+  /**
+   * Set the maximum number of values bound per IN list.
+   *
+   * <p>When a single IN list of a statement is longer, the statement is executed once per chunk
+   * of the list: the rows selected are concatenated in chunk order and the update counts are
+   * summed. Only {@code UPDATE} and {@code DELETE} statements, and {@code SELECT} statements
+   * without aggregates, {@code DISTINCT}, {@code GROUP BY}, {@code ORDER BY} or row limits, are
+   * split, and only when their IN lists are joined to the other conditions by {@code AND}. Other
+   * statements are executed as a whole. {@code NOT IN} lists are never split. Splitting is done by
+   * {@link DomaExecutorInterceptor}, which {@link DomaLanguageDriver} registers.
+   *
+   * @param inListChunkSize the maximum number of values, {@link #DIALECT_IN_LIST_CHUNK_SIZE} to use
+   *     the limit of the dialect, or 0 to disable splitting
+   */
+  public void setInListChunkSize(int inListChunkSize) {
+    this.inListChunkSize = inListChunkSize;
+  }
+
+  /**
+   * Set whether to bind the values of IN lists as one array parameter.
+   *
+   * <p>An IN list such as {@code id in /* ids *}{@code /(1, 2)} is rendered as {@code id in
+   * (UNNEST(?))} on HSQLDB and {@code id in (SELECT UNNEST(?))} on PostgreSQL, and its values are
+   * bound as a {@link java.sql.Array}, so the SQL text is the same whatever the number of values.
+   * The option is used only when {@link #setBindParameters(boolean) bindParameters} is enabled, and
+   * IN lists are expanded as usual on other databases.
+   *
+   * @param arrayParameters whether to bind IN lists as arrays
+   */
+  public void setArrayParameters(boolean arrayParameters) {
+    this.arrayParameters = arrayParameters;
+  }
+
+  /**
+   * Set whether to parse templates on first use instead of when the mappers are loaded. A {@code
+   * //path} script is loaded when it is first parsed.
+   *
+   * <p>Mappers are loaded one statement after another. With lazy parsing, {@link
+   * DomaLanguageDriver#precompile(org.apache.ibatis.session.Configuration)} parses all the
+   * templates in parallel once the mappers are loaded, and reports all the invalid templates at
+   * once.
+   *
+   * @param lazyParsing whether to parse templates on first use
+   */
+  public void setLazyParsing(boolean lazyParsing) {
+    this.lazyParsing = lazyParsing;
+  }
+
+  /**
+   * Set how the SQL is logged at debug level.
+   *
+   * <p>With {@link SqlLogType#FORMATTED}, Doma renders a copy of the SQL with the values formatted
+   * as literals for every call, which is not needed when bindParameters is enabled and the SQL is
+   * not logged.
+   *
+   * @param sqlLogType {@link SqlLogType#NONE}, {@link SqlLogType#RAW} or {@link
+   *     SqlLogType#FORMATTED}
+   */
+  public void setSqlLogType(SqlLogType sqlLogType) {
+    this.sqlLogType = sqlLogType;
+  }
+
+  /**
+   * Set how the SQL is logged at debug level.
+   *
+   * @param sqlLogType {@code NONE}, {@code RAW} or {@code FORMATTED}, case insensitively
+   * @see #setSqlLogType(SqlLogType)
+   */
+  public void setSqlLogType(String sqlLogType) {
+    try {
+      setSqlLogType(SqlLogType.valueOf(sqlLogType.trim().toUpperCase(Locale.ROOT)));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("Invalid sqlLogType:" + sqlLogType, e);
+    }
+  }
+
+  /**
+   * Set the sampling of the SQL logging, so that the SQL is logged for one in this many calls of
+   * each statement.
+   *
+   * @param sqlLogSampling a positive number. 1 logs every call.
+   */
+  public void setSqlLogSampling(int sqlLogSampling) {
+    if (sqlLogSampling < 1) {
+      throw new IllegalStateException("Invalid sqlLogSampling:" + sqlLogSampling);
+    }
+    this.sqlLogSampling = sqlLogSampling;
+  }
+
+  /**
+   * Set whether to record the time spent creating the SQL of each statement, broken down into
+   * parsing, directive evaluation, SQL building and parameter resolution. The times are published
+   * through a {@link DomaMetricsMXBean} registered for each MyBatis configuration.
+   *
+   * @param metrics whether to record metrics
+   * @see DomaLanguageDriver#getMetrics(Configuration)
+   */
+  public void setMetrics(boolean metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Set whether to build the cache keys of queries from the SQL shape and the bound values.
+   *
+   * <p>MyBatis builds the key of the local and second level caches from the SQL text and the bound
+   * values, read from the parameter object one property at a time. {@link DomaExecutorInterceptor},
+   * which {@link DomaLanguageDriver} registers, builds an equal key from the values captured while
+   * rendering. The option is used only when {@link #setBindParameters(boolean) bindParameters} is
+   * enabled.
+   *
+   * @param compactCacheKeys whether to build compact cache keys
+   * @see #setShapeCacheSize(int)
+   */
+  public void setCompactCacheKeys(boolean compactCacheKeys) {
+    this.compactCacheKeys = compactCacheKeys;
+  }
+
+  /**
+   * Set whether to select only the rows of the {@link org.apache.ibatis.session.RowBounds} of a
+   * query.
+   *
+   * <p>MyBatis fetches all the rows of a query with row bounds and skips the rows outside of them.
+   * When this option is enabled, {@link DomaExecutorInterceptor}, which {@link DomaLanguageDriver}
+   * registers, transforms the select statement with {@link
+   * org.seasar.doma.jdbc.dialect.Dialect#transformSelectSqlNode}, the way Doma pages the queries of
+   * DAOs, so that the database returns only the rows of the page. Statements that are not select
+   * statements, and queries that the dialect cannot page, such as a query without {@code ORDER BY}
+   * on a dialect that pages with {@code ROW_NUMBER()}, are paged by MyBatis as before.
+   *
+   * @param rowBoundsPaging whether to page queries in the database
+   */
+  public void setRowBoundsPaging(boolean rowBoundsPaging) {
+    this.rowBoundsPaging = rowBoundsPaging;
+  }
+
   private static void configure(DomaLanguageDriverConfig config, Properties properties) {
     properties.forEach(
         (name, value) -> {
           if (name.equals("dialect")) {
             config.setDialect(value.toString());
+          } else if (name.equals("bindParameters")) {
+            config.setBindParameters(Boolean.parseBoolean(value.toString()));
+          } else if (name.equals("shapeCacheSize")) {
+            config.setShapeCacheSize(Integer.parseInt(value.toString()));
+          } else if (name.equals("inListBuckets")) {
+            config.setInListBuckets(value.toString());
+          } else if (name.equals("inListPadding")) {
+            config.setInListPadding(value.toString());
+          } else if (name.equals("arrayParameters")) {
+            config.setArrayParameters(Boolean.parseBoolean(value.toString()));
+          } else if (name.equals("lazyParsing")) {
+            config.setLazyParsing(Boolean.parseBoolean(value.toString()));
+          } else if (name.equals("sqlLogType")) {
+            config.setSqlLogType(value.toString());
+          } else if (name.equals("sqlLogSampling")) {
+            config.setSqlLogSampling(Integer.parseInt(value.toString()));
+          } else if (name.equals("metrics")) {
+            config.setMetrics(Boolean.parseBoolean(value.toString()));
+          } else if (name.equals("compactCacheKeys")) {
+            config.setCompactCacheKeys(Boolean.parseBoolean(value.toString()));
+          } else if (name.equals("rowBoundsPaging")) {
+            config.setRowBoundsPaging(Boolean.parseBoolean(value.toString()));
+          } else if (name.equals("inListChunkSize")) {
+            config.setInListChunkSize(
+                value.equals("dialect")
+                    ? DIALECT_IN_LIST_CHUNK_SIZE
+                    : Integer.parseInt(value.toString()));
           }
         });
   }
@@ -0,0 +1,123 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of durations in nanoseconds.
+ *
+ * <p>A duration is counted in the bucket of its highest bit, so percentiles are accurate within a
+ * factor of two. Recording does not allocate or lock.
+ */
+public final class DomaLatencyHistogram {
+  private static final int BUCKETS = 64;
+
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+  // the bucket i counts the durations from 2^(i-1) to 2^i - 1
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+  void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+    count.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+    buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+  }
+
+  /**
+   * @return the number of recorded durations
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the sum of the recorded durations
+   */
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  /**
+   * @return the longest recorded duration
+   */
+  public long getMaxNanos() {
+    return maxNanos.get();
+  }
+
+  /**
+   * @return the average of the recorded durations, or 0 if none is recorded
+   */
+  public long getMeanNanos() {
+    long count = getCount();
+    return count == 0 ? 0 : getTotalNanos() / count;
+  }
+
+  /**
+   * @return the upper bound of the median duration
+   */
+  public long getP50Nanos() {
+    return getPercentileNanos(0.5);
+  }
+
+  /**
+   * @return the upper bound of the 90th percentile duration
+   */
+  public long getP90Nanos() {
+    return getPercentileNanos(0.9);
+  }
+
+  /**
+   * @return the upper bound of the 99th percentile duration
+   */
+  public long getP99Nanos() {
+    return getPercentileNanos(0.99);
+  }
+
+  long getPercentileNanos(double percentile) {
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      total += buckets.get(i);
+    }
+    long rank = (long) Math.ceil(total * percentile);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank && seen > 0) {
+        long upperBound = i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        return Math.min(upperBound, getMaxNanos());
+      }
+    }
+    return 0;
+  }
+
+  /** Remove all the recorded durations. */
+  public void reset() {
+    count.reset();
+    totalNanos.reset();
+    maxNanos.reset();
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0);
+    }
+  }
+}
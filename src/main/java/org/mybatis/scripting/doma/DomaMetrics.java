@@ -0,0 +1,180 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.session.Configuration;
+
+/**
+ * The render metrics of the statements of a MyBatis configuration, published as an MBean named
+ * {@code org.mybatis.scripting.doma:type=DomaMetrics,name=<environment id>-N}.
+ *
+ * <p>The MBean holds its configuration and statements weakly. It unregisters itself once the
+ * configuration is garbage collected, which it notices when it is read or when metrics are
+ * registered for another configuration. Call {@link #unregister()} to unregister it sooner.
+ *
+ * @see DomaLanguageDriverConfig#setMetrics(boolean)
+ */
+public final class DomaMetrics implements DomaMetricsMXBean {
+  private static final AtomicInteger sequence = new AtomicInteger();
+
+  private static final Map<Configuration, DomaMetrics> registered = new WeakHashMap<>();
+
+  private final WeakReference<Configuration> configuration;
+  private final Queue<WeakReference<DomaSqlSource>> sqlSources = new ConcurrentLinkedQueue<>();
+  private final ObjectName objectName;
+
+  private DomaMetrics(Configuration configuration, ObjectName objectName) {
+    this.configuration = new WeakReference<>(configuration);
+    this.objectName = objectName;
+  }
+
+  /**
+   * Returns the metrics of a configuration, creating them and registering them to the platform
+   * MBean server the first time.
+   *
+   * @param configuration a MyBatis configuration. Must not be null.
+   * @return metrics. Must not be null.
+   */
+  static DomaMetrics of(Configuration configuration) {
+    synchronized (registered) {
+      DomaMetrics metrics = registered.get(configuration);
+      if (metrics != null) {
+        return metrics;
+      }
+      // the metrics of the configurations collected since are unregistered here
+      for (DomaMetrics other : registered.values()) {
+        other.isCollected();
+      }
+      try {
+        Environment environment = configuration.getEnvironment();
+        String name = environment == null ? "configuration" : environment.getId();
+        ObjectName objectName =
+            new ObjectName(
+                "org.mybatis.scripting.doma:type=DomaMetrics,name="
+                    + name.replaceAll("[^\\w.-]", "_")
+                    + "-"
+                    + sequence.incrementAndGet());
+        metrics = new DomaMetrics(configuration, objectName);
+        ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+      } catch (JMException e) {
+        throw new IllegalStateException("Error registering doma metrics", e);
+      }
+      registered.put(configuration, metrics);
+      return metrics;
+    }
+  }
+
+  void add(DomaSqlSource sqlSource) {
+    sqlSources.add(new WeakReference<>(sqlSource));
+  }
+
+  /**
+   * @return the name of the MBean
+   */
+  public ObjectName getObjectName() {
+    return objectName;
+  }
+
+  /**
+   * Unregisters the MBean. The metrics of the configuration are registered again under a new name
+   * if statements are created for it later.
+   */
+  public void unregister() {
+    synchronized (registered) {
+      Configuration referent = configuration.get();
+      if (referent != null && registered.get(referent) == this) {
+        registered.remove(referent);
+      }
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      if (server.isRegistered(objectName)) {
+        server.unregisterMBean(objectName);
+      }
+    } catch (JMException e) {
+      throw new IllegalStateException("Error unregistering doma metrics", e);
+    }
+  }
+
+  // unregisters the MBean once the configuration is collected
+  private boolean isCollected() {
+    if (configuration.get() != null) {
+      return false;
+    }
+    unregister();
+    return true;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public Map<String, DomaStatementMetrics> getStatements() {
+    Configuration referent = configuration.get();
+    if (referent == null) {
+      isCollected();
+      return Collections.emptyMap();
+    }
+    // the statement ids are known only once the statements are built from the sources
+    Set<DomaSqlSource> sources = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Iterator<WeakReference<DomaSqlSource>> it = sqlSources.iterator(); it.hasNext(); ) {
+      DomaSqlSource sqlSource = it.next().get();
+      if (sqlSource == null) {
+        it.remove();
+      } else {
+        sources.add(sqlSource);
+      }
+    }
+    Map<String, DomaStatementMetrics> statements = new TreeMap<>();
+    // the statement map also holds the ambiguous short names
+    for (Object value : (Collection<?>) referent.getMappedStatements()) {
+      if (value instanceof MappedStatement
+          && sources.contains(((MappedStatement) value).getSqlSource())) {
+        MappedStatement mappedStatement = (MappedStatement) value;
+        statements.put(
+            mappedStatement.getId(), ((DomaSqlSource) mappedStatement.getSqlSource()).getMetrics());
+      }
+    }
+    return statements;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void reset() {
+    for (WeakReference<DomaSqlSource> reference : sqlSources) {
+      DomaSqlSource sqlSource = reference.get();
+      if (sqlSource != null) {
+        sqlSource.getMetrics().reset();
+      }
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.Map;
+
+/**
+ * The management interface of {@link DomaMetrics}.
+ *
+ * @see DomaLanguageDriverConfig#setMetrics(boolean)
+ */
+public interface DomaMetricsMXBean {
+
+  /**
+   * @return the metrics of the doma statements by statement id
+   */
+  Map<String, DomaStatementMetrics> getStatements();
+
+  /** Remove all the recorded times. */
+  void reset();
+}
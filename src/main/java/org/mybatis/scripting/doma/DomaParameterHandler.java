@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.TypeException;
+import org.apache.ibatis.type.TypeHandler;
+
+/**
+ * The {@link ParameterHandler} that binds the values captured while rendering a Doma template,
+ * instead of resolving them again from the parameter object.
+ */
+public class DomaParameterHandler implements ParameterHandler {
+  private final Configuration configuration;
+  private final Object parameterObject;
+  private final DomaBoundSql boundSql;
+
+  public DomaParameterHandler(
+      MappedStatement mappedStatement, Object parameterObject, DomaBoundSql boundSql) {
+    this.configuration = mappedStatement.getConfiguration();
+    this.parameterObject = parameterObject;
+    this.boundSql = boundSql;
+  }
+
+  @Override
+  public Object getParameterObject() {
+    return parameterObject;
+  }
+
+  @Override
+  public void setParameters(PreparedStatement ps) {
+    List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
+    List<Object> parameterValues = boundSql.getParameterValues();
+    for (int i = 0; i < parameterMappings.size(); i++) {
+      ParameterMapping parameterMapping = parameterMappings.get(i);
+      Object value = parameterValues.get(i);
+      @SuppressWarnings("unchecked")
+      TypeHandler<Object> typeHandler = (TypeHandler<Object>) parameterMapping.getTypeHandler();
+      JdbcType jdbcType = parameterMapping.getJdbcType();
+      if (value == null && jdbcType == null) {
+        jdbcType = configuration.getJdbcTypeForNull();
+      }
+      try {
+        if (value instanceof DomaArrayParameter) {
+          ((DomaArrayParameter) value).bind(ps, i + 1);
+        } else {
+          typeHandler.setParameter(ps, i + 1, value, jdbcType);
+        }
+      } catch (TypeException | SQLException e) {
+        throw new TypeException(
+            "Could not set parameters for mapping: " + parameterMapping + ". Cause: " + e, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small pool of reusable objects shared by all threads. The pool is not bound to threads, so it
+ * serves virtual threads as well.
+ *
+ * @param <T> the type of the objects
+ */
+final class DomaPool<T> {
+  private static final int SIZE = Math.min(16, Runtime.getRuntime().availableProcessors());
+
+  private final AtomicReferenceArray<T> objects = new AtomicReferenceArray<>(SIZE);
+
+  /**
+   * @return an object, to be {@linkplain #release released} after use, or null if the pool is
+   *     empty
+   */
+  T acquire() {
+    for (int i = 0; i < SIZE; i++) {
+      T object = objects.get(i);
+      if (object != null && objects.compareAndSet(i, object, null)) {
+        return object;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns an object to the pool, unless the pool is full.
+   *
+   * @param object an object that is no longer used. Must not be null.
+   */
+  void release(T object) {
+    for (int i = 0; i < SIZE; i++) {
+      if (objects.get(i) == null && objects.compareAndSet(i, null, object)) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.function.Supplier;
+import org.seasar.doma.internal.expr.ExpressionEvaluator;
+import org.seasar.doma.internal.jdbc.scalar.BasicScalar;
+import org.seasar.doma.internal.jdbc.scalar.Scalar;
+import org.seasar.doma.internal.jdbc.scalar.ScalarException;
+import org.seasar.doma.internal.jdbc.sql.NodePreparedSqlBuilder;
+import org.seasar.doma.internal.jdbc.sql.node.SqlLocation;
+import org.seasar.doma.jdbc.Config;
+import org.seasar.doma.jdbc.JdbcException;
+import org.seasar.doma.jdbc.SqlKind;
+import org.seasar.doma.jdbc.SqlLogType;
+import org.seasar.doma.jdbc.domain.DomainTypeNotFoundException;
+import org.seasar.doma.wrapper.ObjectWrapper;
+
+/**
+ * Builds the SQL of a template the way {@link NodePreparedSqlBuilder} does, but also binds what
+ * Doma cannot wrap: the {@code null} elements padded into IN lists by {@link DomaInListPadding},
+ * and the values of classes that Doma does not know, such as the classes with a MyBatis type
+ * handler or the domain classes without a generated domain type. Those are bound by the type
+ * handlers of {@link DomaTypeHandlers}, as in the other paths.
+ */
+class DomaPreparedSqlBuilder extends NodePreparedSqlBuilder {
+  DomaPreparedSqlBuilder(
+      Config config, SqlKind kind, ExpressionEvaluator evaluator, SqlLogType sqlLogType) {
+    super(config, kind, null, evaluator, sqlLogType);
+  }
+
+  @Override
+  protected Supplier<Scalar<?, ?>> wrap(
+      SqlLocation location, String name, Object value, Class<?> valueClass) {
+    if (value == DomaInListPadding.NULL_ELEMENT) {
+      return () -> new BasicScalar<>(new ObjectWrapper());
+    }
+    try {
+      return super.wrap(location, name, value, valueClass);
+    } catch (JdbcException e) {
+      if (!(e instanceof DomainTypeNotFoundException)
+          && !(e.getCause() instanceof ScalarException)) {
+        throw e;
+      }
+      return () -> new BasicScalar<>(new UnknownValueWrapper(value));
+    }
+  }
+
+  /** Holds a value of a class that Doma does not know. */
+  static final class UnknownValueWrapper extends ObjectWrapper {
+    UnknownValueWrapper(Object value) {
+      super(value);
+    }
+
+    /**
+     * @return the class of the value, or {@code Object} if it is null
+     */
+    Class<?> getValueClass() {
+      Object value = get();
+      return value == null ? Object.class : value.getClass();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.function.Supplier;
+import org.apache.ibatis.mapping.BoundSql;
+
+/**
+ * A rendering of a statement recorded by Java Flight Recorder.
+ *
+ * <p>The event is compiled for Java 11 and packaged in the multi-release part of the jar, so this
+ * class finds no event on Java 8 and records nothing.
+ */
+abstract class DomaRenderRecording {
+  private static final Supplier<DomaRenderRecording> factory = loadFactory();
+
+  /**
+   * Begins to record a rendering.
+   *
+   * @return a recording, or null if Flight Recorder does not record the event
+   */
+  static DomaRenderRecording begin() {
+    return factory == null ? null : factory.get();
+  }
+
+  /**
+   * @param shapeCacheHit whether the SQL was found in the shape cache
+   */
+  abstract void setShapeCacheHit(boolean shapeCacheHit);
+
+  /**
+   * Ends the recording, and commits the event if its duration passes the threshold.
+   *
+   * @param sqlSource the rendered statement
+   * @param boundSql the rendered SQL
+   */
+  abstract void end(DomaSqlSource sqlSource, BoundSql boundSql);
+
+  @SuppressWarnings("unchecked")
+  private static Supplier<DomaRenderRecording> loadFactory() {
+    try {
+      return (Supplier<DomaRenderRecording>)
+          Class.forName(DomaRenderRecording.class.getPackage().getName() + ".DomaRenderEvent")
+              .getMethod("factory")
+              .invoke(null);
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+}
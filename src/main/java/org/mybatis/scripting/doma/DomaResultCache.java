@@ -0,0 +1,315 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.ibatis.cache.CacheKey;
+
+/**
+ * A bounded, concurrent cache of the rows selected by a {@link DomaSqlSource}, declared by a
+ * {@code /*%cache *}{@code /} directive in its template, such as {@code /*%cache ttl=60s
+ * maxEntries=10000*}{@code /}.
+ *
+ * <p>The directive accepts the following attributes:
+ *
+ * <ul>
+ *   <li>{@code ttl}: how long the rows are cached, as a number followed by {@code ms}, {@code s},
+ *       {@code m} or {@code h}. A number alone is in seconds. 60 seconds by default, and 0 keeps
+ *       the rows until they are evicted or invalidated.
+ *   <li>{@code maxEntries}: the maximum number of results cached. 1000 by default.
+ *   <li>{@code maxRows}: the maximum number of rows cached, summed over the results. Not bounded by
+ *       default.
+ * </ul>
+ *
+ * <p>When the cache is full, the oldest result is evicted. The rows are shared by the callers, like
+ * the rows of a read-only MyBatis cache. The cache is invalidated by the writes that flush the
+ * MyBatis cache of the statement, as described by {@link DomaExecutorInterceptor}.
+ *
+ * @see DomaExecutorInterceptor
+ */
+public class DomaResultCache {
+  static final Pattern DIRECTIVE = Pattern.compile("/\\*%cache(\\s[^*]*)?\\*/");
+
+  private static final Pattern ATTRIBUTE = Pattern.compile("(\\w+)=(\\S+)");
+  private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h)?");
+  private static final int DEFAULT_MAX_ENTRIES = 1000;
+  private static final long DEFAULT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+  private final ConcurrentHashMap<CacheKey, Entry> entries = new ConcurrentHashMap<>();
+  private final Queue<Entry> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger queuedCount = new AtomicInteger();
+  private final AtomicLong rowCount = new AtomicLong();
+  // incremented when the cache is cleared, so that rows selected before are not cached after
+  private final AtomicLong generation = new AtomicLong();
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private final LongAdder expirationCount = new LongAdder();
+  private final long ttlNanos;
+  private final int maxEntries;
+  private final long maxRows;
+
+  /**
+   * Constructor.
+   *
+   * @param ttl how long the rows are cached, 0 for no expiry
+   * @param unit the unit of {@code ttl}
+   * @param maxEntries the maximum number of results
+   * @param maxRows the maximum number of rows, 0 for no limit
+   */
+  public DomaResultCache(long ttl, TimeUnit unit, int maxEntries, long maxRows) {
+    if (ttl < 0 || maxEntries <= 0 || maxRows < 0) {
+      throw new IllegalArgumentException(
+          "Invalid cache: ttl=" + ttl + " maxEntries=" + maxEntries + " maxRows=" + maxRows);
+    }
+    this.ttlNanos = unit.toNanos(ttl);
+    this.maxEntries = maxEntries;
+    this.maxRows = maxRows;
+  }
+
+  /**
+   * @param attributes the attributes of a {@code /*%cache *}{@code /} directive, or null
+   * @return a cache configured with the attributes
+   * @throws IllegalArgumentException if an attribute is unknown or invalid
+   */
+  static DomaResultCache of(String attributes) {
+    long ttlMillis = DEFAULT_TTL_MILLIS;
+    int maxEntries = DEFAULT_MAX_ENTRIES;
+    long maxRows = 0;
+    if (attributes != null) {
+      for (String attribute : attributes.trim().split("\\s+")) {
+        if (attribute.isEmpty()) {
+          continue;
+        }
+        Matcher matcher = ATTRIBUTE.matcher(attribute);
+        if (!matcher.matches()) {
+          throw new IllegalArgumentException("Invalid cache attribute:" + attribute);
+        }
+        String value = matcher.group(2);
+        switch (matcher.group(1)) {
+          case "ttl":
+            ttlMillis = parseDuration(value);
+            break;
+          case "maxEntries":
+            maxEntries = Integer.parseInt(value);
+            break;
+          case "maxRows":
+            maxRows = Long.parseLong(value);
+            break;
+          default:
+            throw new IllegalArgumentException("Invalid cache attribute:" + attribute);
+        }
+      }
+    }
+    return new DomaResultCache(ttlMillis, TimeUnit.MILLISECONDS, maxEntries, maxRows);
+  }
+
+  private static long parseDuration(String value) {
+    Matcher matcher = DURATION.matcher(value);
+    if (!matcher.matches()) {
+      throw new IllegalArgumentException("Invalid cache ttl:" + value);
+    }
+    long amount = Long.parseLong(matcher.group(1));
+    String unit = matcher.group(2);
+    if ("ms".equals(unit)) {
+      return amount;
+    } else if ("m".equals(unit)) {
+      return TimeUnit.MINUTES.toMillis(amount);
+    } else if ("h".equals(unit)) {
+      return TimeUnit.HOURS.toMillis(amount);
+    }
+    return TimeUnit.SECONDS.toMillis(amount);
+  }
+
+  /**
+   * @param key a cache key
+   * @return a copy of the cached rows, or null if they are not cached or expired
+   */
+  List<Object> get(CacheKey key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.isExpired(System.nanoTime())) {
+      if (entries.remove(key, entry)) {
+        rowCount.addAndGet(-entry.rows.size());
+        expirationCount.increment();
+      }
+      entry = null;
+    }
+    if (entry == null) {
+      missCount.increment();
+      return null;
+    }
+    hitCount.increment();
+    return new ArrayList<>(entry.rows);
+  }
+
+  /**
+   * @param key a cache key
+   * @param rows the rows selected. A copy is cached.
+   */
+  void put(CacheKey key, List<?> rows) {
+    put(key, rows, generation.get());
+  }
+
+  /**
+   * @return the generation to {@linkplain #put(CacheKey, List, long) cache} the rows selected from
+   *     now on with
+   */
+  long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * @param key a cache key
+   * @param rows the rows selected. A copy is cached unless the cache has been cleared since the
+   *     generation was read.
+   * @param generation the {@linkplain #getGeneration() generation} read before selecting the rows
+   */
+  void put(CacheKey key, List<?> rows, long generation) {
+    if ((maxRows > 0 && rows.size() > maxRows) || this.generation.get() != generation) {
+      return;
+    }
+    long expiresAt = ttlNanos == 0 ? 0 : System.nanoTime() + ttlNanos;
+    Entry entry = new Entry(key, new ArrayList<>(rows), expiresAt);
+    Entry replaced = entries.put(key, entry);
+    rowCount.addAndGet(entry.rows.size() - (replaced == null ? 0 : replaced.rows.size()));
+    if (this.generation.get() != generation) {
+      // cleared while putting
+      if (entries.remove(key, entry)) {
+        rowCount.addAndGet(-entry.rows.size());
+      }
+      return;
+    }
+    insertionOrder.add(entry);
+    if (queuedCount.incrementAndGet() > maxEntries * 2 + 16) {
+      // replaced and expired entries are left in the queue until it is purged
+      insertionOrder.removeIf(queued -> entries.get(queued.key) != queued);
+      queuedCount.set(insertionOrder.size());
+    }
+    evict();
+  }
+
+  private void evict() {
+    while (entries.size() > maxEntries || (maxRows > 0 && rowCount.get() > maxRows)) {
+      Entry eldest = insertionOrder.poll();
+      if (eldest == null) {
+        return;
+      }
+      queuedCount.decrementAndGet();
+      if (entries.remove(eldest.key, eldest)) {
+        rowCount.addAndGet(-eldest.rows.size());
+        evictionCount.increment();
+      }
+    }
+  }
+
+  /** Remove all cached rows. The counters are kept. */
+  public void clear() {
+    generation.incrementAndGet();
+    entries.clear();
+    insertionOrder.clear();
+    queuedCount.set(0);
+    rowCount.set(0);
+  }
+
+  /**
+   * @return how long the rows are cached in milliseconds, 0 if they do not expire
+   */
+  public long getTtlMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+  }
+
+  /**
+   * @return the maximum number of results
+   */
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  /**
+   * @return the maximum number of rows, 0 if not bounded
+   */
+  public long getMaxRows() {
+    return maxRows;
+  }
+
+  /**
+   * @return the number of cached results, including expired ones not looked up since
+   */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return the number of cached rows
+   */
+  public long getRowCount() {
+    return rowCount.get();
+  }
+
+  /**
+   * @return the number of lookups that found cached rows
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * @return the number of lookups that did not find cached rows
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * @return the number of results evicted because the cache was full
+   */
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  /**
+   * @return the number of results removed because they expired
+   */
+  public long getExpirationCount() {
+    return expirationCount.sum();
+  }
+
+  private static final class Entry {
+    final CacheKey key;
+    final List<Object> rows;
+    final long expiresAt;
+
+    Entry(CacheKey key, List<Object> rows, long expiresAt) {
+      this.key = key;
+      this.rows = rows;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return expiresAt != 0 && now - expiresAt >= 0;
+    }
+  }
+}
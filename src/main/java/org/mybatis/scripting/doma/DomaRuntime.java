@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.Objects;
+import org.seasar.doma.expr.ExpressionFunctions;
+import org.seasar.doma.internal.expr.ExpressionEvaluator;
+import org.seasar.doma.internal.jdbc.sql.NodePreparedSqlBuilder;
+import org.seasar.doma.jdbc.ClassHelper;
+import org.seasar.doma.jdbc.Config;
+import org.seasar.doma.jdbc.SqlKind;
+import org.seasar.doma.jdbc.SqlLogType;
+import org.seasar.doma.jdbc.dialect.Dialect;
+import org.seasar.doma.jdbc.dialect.StandardDialect;
+
+/**
+ * The Doma objects shared by the templates of a language driver.
+ *
+ * <p>They are created once and never modified, so a single instance is shared by all threads. Only
+ * the evaluators and builders bound to the values of a call are created per call.
+ */
+final class DomaRuntime {
+  /** The runtime of the templates without a configured dialect. */
+  static final DomaRuntime STANDARD = new DomaRuntime(new StandardDialect());
+
+  private final Config config;
+  private final ExpressionFunctions expressionFunctions;
+  private final ClassHelper classHelper;
+
+  /**
+   * @param dialect a dialect. Must not be null.
+   */
+  DomaRuntime(Dialect dialect) {
+    this(DomaSqlTemplate.createConfig(Objects.requireNonNull(dialect)));
+  }
+
+  /**
+   * @param config a configuration. Must not be null.
+   */
+  DomaRuntime(Config config) {
+    this.config = Objects.requireNonNull(config);
+    this.expressionFunctions = config.getDialect().getExpressionFunctions();
+    this.classHelper = config.getClassHelper();
+  }
+
+  Config getConfig() {
+    return config;
+  }
+
+  Dialect getDialect() {
+    return config.getDialect();
+  }
+
+  /**
+   * @param values variable values. Must not be null.
+   * @return an evaluator of the expressions on the values
+   */
+  ExpressionEvaluator createEvaluator(DomaVariableValues values) {
+    return new DomaExpressionEvaluator(values, expressionFunctions, classHelper);
+  }
+
+  /**
+   * @param values variable values. Must not be null.
+   * @return an evaluator of the expressions on the values for many evaluations, which reuses the
+   *     result of a value until its results are {@linkplain DomaExpressionEvaluator#clearResults()
+   *     cleared}
+   */
+  DomaExpressionEvaluator createReusableEvaluator(DomaVariableValues values) {
+    return new DomaExpressionEvaluator(values, expressionFunctions, classHelper, true);
+  }
+
+  /**
+   * @return an evaluator of the expressions without variables
+   */
+  ExpressionEvaluator createConstantEvaluator() {
+    return new ExpressionEvaluator(expressionFunctions, classHelper);
+  }
+
+  /**
+   * @param values variable values. Must not be null.
+   * @param sqlLogType the log type. Must not be null.
+   * @return a builder of the SQL on the values
+   */
+  NodePreparedSqlBuilder createBuilder(DomaVariableValues values, SqlLogType sqlLogType) {
+    return new DomaPreparedSqlBuilder(config, SqlKind.SCRIPT, createEvaluator(values), sqlLogType);
+  }
+}
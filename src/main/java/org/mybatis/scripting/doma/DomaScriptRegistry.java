@@ -0,0 +1,58 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The scripts of the statements created by a language driver.
+ *
+ * <p>A {@code //path} script is loaded once, when the first statement referring to it is parsed,
+ * however many statements refer to it. The same script text is held once.
+ */
+final class DomaScriptRegistry {
+  private final ConcurrentMap<String, String> resources = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, String> texts = new ConcurrentHashMap<>();
+
+  /**
+   * @param script a script or a {@code //path} to a resource
+   * @return the script text
+   * @throws org.apache.ibatis.builder.BuilderException if the resource is not found
+   */
+  String getScript(String script) {
+    if (!script.startsWith("//")) {
+      return intern(script);
+    }
+    return resources.computeIfAbsent(script, path -> intern(DomaSqlSource.getScript(path)));
+  }
+
+  /**
+   * @param text a text
+   * @return the same text held by this registry
+   */
+  String intern(String text) {
+    String existing = texts.putIfAbsent(text, text);
+    return existing == null ? text : existing;
+  }
+
+  /**
+   * @return the number of resources loaded
+   */
+  int getResourceCount() {
+    return resources.size();
+  }
+}
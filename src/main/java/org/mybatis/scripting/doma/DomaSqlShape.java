@@ -0,0 +1,56 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.List;
+import java.util.Objects;
+import org.apache.ibatis.mapping.ParameterMapping;
+
+/** The SQL text and parameter mappings rendered for one shape of a template. */
+final class DomaSqlShape {
+  private final String sql;
+  private final List<ParameterMapping> parameterMappings;
+
+  DomaSqlShape(String sql, List<ParameterMapping> parameterMappings) {
+    this.sql = sql;
+    this.parameterMappings = parameterMappings;
+  }
+
+  String getSql() {
+    return sql;
+  }
+
+  List<ParameterMapping> getParameterMappings() {
+    return parameterMappings;
+  }
+
+  /**
+   * @param expected the values rendered by Doma
+   * @param actual the values captured by {@link DomaSqlShapeEvaluator}
+   * @return true if the captured values can be bound to this shape
+   */
+  static boolean matches(List<Object> expected, List<Object> actual) {
+    if (expected.size() != actual.size()) {
+      return false;
+    }
+    for (int i = 0; i < expected.size(); i++) {
+      if (!Objects.equals(expected.get(i), actual.get(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, concurrent cache of the SQL shapes rendered by a {@link DomaSqlSource}.
+ *
+ * <p>When the cache is full, the oldest shape is evicted. A maximum size of zero disables the
+ * cache.
+ */
+public class DomaSqlShapeCache {
+  private final ConcurrentHashMap<DomaSqlShapeKey, DomaSqlShape> shapes =
+      new ConcurrentHashMap<>();
+  private final Queue<DomaSqlShapeKey> insertionOrder = new ConcurrentLinkedQueue<>();
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private volatile int maximumSize;
+
+  /**
+   * Constructor.
+   *
+   * @param maximumSize the maximum number of shapes
+   */
+  public DomaSqlShapeCache(int maximumSize) {
+    this.maximumSize = maximumSize;
+  }
+
+  DomaSqlShape get(DomaSqlShapeKey key) {
+    DomaSqlShape shape = shapes.get(key);
+    if (shape == null) {
+      missCount.increment();
+    } else {
+      hitCount.increment();
+    }
+    return shape;
+  }
+
+  void put(DomaSqlShapeKey key, DomaSqlShape shape) {
+    if (shapes.putIfAbsent(key, shape) == null) {
+      insertionOrder.add(key);
+      evict();
+    }
+  }
+
+  private void evict() {
+    while (shapes.size() > maximumSize) {
+      DomaSqlShapeKey eldest = insertionOrder.poll();
+      if (eldest == null) {
+        return;
+      }
+      if (shapes.remove(eldest) != null) {
+        evictionCount.increment();
+      }
+    }
+  }
+
+  /**
+   * @return true if the maximum size is greater than zero
+   */
+  public boolean isEnabled() {
+    return maximumSize > 0;
+  }
+
+  /**
+   * @return the maximum number of shapes
+   */
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Change the maximum number of shapes. Shapes over the new size are evicted.
+   *
+   * @param maximumSize the maximum number of shapes
+   */
+  public void setMaximumSize(int maximumSize) {
+    this.maximumSize = maximumSize;
+    evict();
+  }
+
+  /**
+   * @return the number of cached shapes
+   */
+  public int size() {
+    return shapes.size();
+  }
+
+  /**
+   * @return the number of lookups that found a cached shape
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * @return the number of lookups that did not find a cached shape
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * @return the number of shapes evicted because the cache was full
+   */
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  /** Remove all cached shapes. The counters are kept. */
+  public void clear() {
+    shapes.clear();
+    insertionOrder.clear();
+  }
+}
@@ -0,0 +1,364 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.ibatis.session.Configuration;
+import org.seasar.doma.internal.expr.EvaluationResult;
+import org.seasar.doma.internal.expr.ExpressionParser;
+import org.seasar.doma.internal.expr.Value;
+import org.seasar.doma.internal.jdbc.sql.node.BindVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.ElseNode;
+import org.seasar.doma.internal.jdbc.sql.node.ElseifNode;
+import org.seasar.doma.internal.jdbc.sql.node.EmbeddedVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.EndNode;
+import org.seasar.doma.internal.jdbc.sql.node.ExpandNode;
+import org.seasar.doma.internal.jdbc.sql.node.ForBlockNode;
+import org.seasar.doma.internal.jdbc.sql.node.ForNode;
+import org.seasar.doma.internal.jdbc.sql.node.IfBlockNode;
+import org.seasar.doma.internal.jdbc.sql.node.IfNode;
+import org.seasar.doma.internal.jdbc.sql.node.LiteralVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.PopulateNode;
+import org.seasar.doma.jdbc.SqlNode;
+
+/**
+ * Evaluates the directives of a template without rendering the SQL.
+ *
+ * <p>The branches taken by {@code %if}, the iteration counts of {@code %for}, the sizes of
+ * expanded IN lists, the types of bind values and the values of literal and embedded variables are
+ * recorded as a {@link DomaSqlShapeKey}. The bind values are captured in the same order as {@code
+ * NodePreparedSqlBuilder} binds them.
+ *
+ * <p>An evaluator is reused for many evaluations, one at a time. Its buffers, its variable values
+ * and its key are kept between evaluations, so that an evaluation whose shape is cached allocates
+ * little more than the values it resolves.
+ */
+class DomaSqlShapeEvaluator implements DomaVariableValues {
+  private static final String HAS_NEXT_SUFFIX = "_has_next";
+  private static final String INDEX_SUFFIX = "_index";
+  // larger buffers, filled by long IN lists, are not kept for the next evaluation
+  private static final int MAX_RETAINED_SIZE = 1024;
+
+  private final DomaExpressionEvaluator evaluator;
+  private final Map<String, DomaCompiledExpression> expressions;
+  private final Value inLists;
+  private final VariableValues ownValues = new VariableValues();
+  private final Map<String, Value> loopValues = new HashMap<>();
+  // the children of each node that hold directives, resolved on the first evaluation: Doma
+  // allocates a list view and an iterator each time the children of a node are traversed
+  private final Map<SqlNode, SqlNode[]> directiveChildren = new IdentityHashMap<>();
+  private List<Object> parameterValues = new ArrayList<>();
+  private final DomaSqlShapeKey key = new DomaSqlShapeKey();
+  private DomaVariableValues variableValues = ownValues;
+  private Object[] decisions = new Object[16];
+  private int decisionCount;
+
+  /**
+   * @param runtime the shared Doma objects
+   * @param expressions the compiled expressions of the template
+   * @param inLists the value of {@link DomaInListPadding#VARIABLE_NAME}, or null if the template
+   *     has no padded IN lists
+   */
+  DomaSqlShapeEvaluator(
+      DomaRuntime runtime, Map<String, DomaCompiledExpression> expressions, Value inLists) {
+    this.expressions = expressions;
+    this.inLists = inLists;
+    this.evaluator = runtime.createReusableEvaluator(this);
+  }
+
+  /**
+   * @param variableValues the values to evaluate the template with
+   */
+  void setVariableValues(DomaVariableValues variableValues) {
+    this.variableValues = variableValues;
+  }
+
+  /**
+   * Resolves the values of the next evaluation from a parameter object.
+   *
+   * @param configuration a configuration
+   * @param parameterObject a parameter object
+   * @param parameterTypeClass the declared type of the parameter object
+   * @return the values, owned by this evaluator and valid until it is cleared
+   */
+  VariableValues reset(
+      Configuration configuration, Object parameterObject, Class<?> parameterTypeClass) {
+    ownValues.reset(configuration, parameterObject, parameterTypeClass);
+    variableValues = ownValues;
+    return ownValues;
+  }
+
+  /** Forgets the values and the results of the last evaluation. */
+  void clear() {
+    ownValues.clear();
+    evaluator.clearResults();
+    variableValues = ownValues;
+    loopValues.clear();
+    if (parameterValues.size() > MAX_RETAINED_SIZE) {
+      parameterValues = new ArrayList<>();
+    } else {
+      parameterValues.clear();
+    }
+    if (decisions.length > MAX_RETAINED_SIZE) {
+      decisions = new Object[16];
+    } else {
+      Arrays.fill(decisions, 0, decisionCount, null);
+    }
+    decisionCount = 0;
+  }
+
+  @Override
+  public Value getValue(String name) {
+    Value value = loopValues.isEmpty() ? null : loopValues.get(name);
+    if (value != null) {
+      return value;
+    }
+    if (inLists != null && name.equals(DomaInListPadding.VARIABLE_NAME)) {
+      return inLists;
+    }
+    return variableValues.getValue(name);
+  }
+
+  /**
+   * Evaluates the template.
+   *
+   * @param sqlNode a parsed template
+   * @return the shape key, or null if the template must be rendered by Doma. A template that
+   *     fails to evaluate is also rendered by Doma so that Doma reports the error. The key is
+   *     owned by this evaluator and changes with the next evaluation, so a key to keep must be
+   *     {@linkplain DomaSqlShapeKey#copy() copied}.
+   */
+  DomaSqlShapeKey evaluate(SqlNode sqlNode) {
+    evaluator.clearResults();
+    loopValues.clear();
+    parameterValues.clear();
+    Arrays.fill(decisions, 0, decisionCount, null);
+    decisionCount = 0;
+    try {
+      if (!visit(sqlNode)) {
+        return null;
+      }
+    } catch (RuntimeException e) {
+      return null;
+    }
+    return key.set(decisions, decisionCount);
+  }
+
+  /**
+   * @return the bind values in placeholder order
+   */
+  List<Object> getParameterValues() {
+    return parameterValues;
+  }
+
+  private boolean visit(SqlNode node) {
+    if (node instanceof IfBlockNode) {
+      return visitIfBlockNode((IfBlockNode) node);
+    }
+    if (node instanceof ForBlockNode) {
+      return visitForBlockNode((ForBlockNode) node);
+    }
+    if (node instanceof BindVariableNode) {
+      return visitBindVariableNode((BindVariableNode) node);
+    }
+    if (node instanceof LiteralVariableNode) {
+      return addDecision(evaluate(((LiteralVariableNode) node).getVariableName()).getValue());
+    }
+    if (node instanceof EmbeddedVariableNode) {
+      return addDecision(evaluate(((EmbeddedVariableNode) node).getVariableName()).getValue());
+    }
+    if (node instanceof ExpandNode || node instanceof PopulateNode) {
+      return false;
+    }
+    return visitChildren(node);
+  }
+
+  private boolean visitChildren(SqlNode node) {
+    SqlNode[] children = directiveChildren.get(node);
+    if (children == null) {
+      children =
+          node.getChildren().stream()
+              .filter(DomaSqlShapeEvaluator::hasDirectives)
+              .toArray(SqlNode[]::new);
+      directiveChildren.put(node, children);
+    }
+    for (SqlNode child : children) {
+      if (!visit(child)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean hasDirectives(SqlNode node) {
+    if (node instanceof IfBlockNode
+        || node instanceof ForBlockNode
+        || node instanceof BindVariableNode
+        || node instanceof LiteralVariableNode
+        || node instanceof EmbeddedVariableNode
+        || node instanceof ExpandNode
+        || node instanceof PopulateNode) {
+      return true;
+    }
+    for (SqlNode child : node.getChildren()) {
+      if (hasDirectives(child)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean visitIfBlockNode(IfBlockNode node) {
+    IfNode ifNode = node.getIfNode();
+    if (evaluate(ifNode.getExpression()).getBooleanValue()) {
+      addDecisionValue(0);
+      return visitChildren(ifNode) && visitEndNode(node.getEndNode());
+    }
+    int branch = 1;
+    for (ElseifNode elseifNode : node.getElseifNodes()) {
+      if (evaluate(elseifNode.getExpression()).getBooleanValue()) {
+        addDecisionValue(branch);
+        return visitChildren(elseifNode) && visitEndNode(node.getEndNode());
+      }
+      branch++;
+    }
+    addDecisionValue(branch);
+    ElseNode elseNode = node.getElseNode();
+    if (elseNode != null && !visitChildren(elseNode)) {
+      return false;
+    }
+    return visitEndNode(node.getEndNode());
+  }
+
+  private boolean visitForBlockNode(ForBlockNode node) {
+    ForNode forNode = node.getForNode();
+    Object iterable = evaluate(forNode.getExpression()).getValue();
+    if (!(iterable instanceof Iterable)) {
+      return false;
+    }
+    String identifier = forNode.getIdentifier();
+    String hasNextVariable = identifier + HAS_NEXT_SUFFIX;
+    String indexVariable = identifier + INDEX_SUFFIX;
+    Value preservedItem = loopValues.remove(identifier);
+    Value preservedHasNext = loopValues.remove(hasNextVariable);
+    Value preservedIndex = loopValues.remove(indexVariable);
+
+    // the count is recorded before the decisions of the body so that keys stay unambiguous
+    int countSlot = addDecisionValue(null);
+    int index = 0;
+    for (Iterator<?> it = ((Iterable<?>) iterable).iterator(); it.hasNext(); index++) {
+      Object each = it.next();
+      Class<?> eachClass = each == null ? Object.class : each.getClass();
+      loopValues.put(identifier, new Value(eachClass, each));
+      loopValues.put(hasNextVariable, new Value(boolean.class, it.hasNext()));
+      loopValues.put(indexVariable, new Value(int.class, index));
+      if (!visitChildren(forNode)) {
+        return false;
+      }
+    }
+    decisions[countSlot] = index;
+
+    restore(identifier, preservedItem);
+    restore(hasNextVariable, preservedHasNext);
+    restore(indexVariable, preservedIndex);
+    return visitEndNode(node.getEndNode());
+  }
+
+  private void restore(String name, Value value) {
+    if (value == null) {
+      loopValues.remove(name);
+    } else {
+      loopValues.put(name, value);
+    }
+  }
+
+  private boolean visitEndNode(EndNode endNode) {
+    return endNode == null || visitChildren(endNode);
+  }
+
+  private boolean visitBindVariableNode(BindVariableNode node) {
+    EvaluationResult result = evaluate(node.getVariableName());
+    Object value = result.getValue();
+    if (node.isWordNodeIgnored()) {
+      addParameter(value, result.getValueClass());
+      return true;
+    }
+    if (!node.isParensNodeIgnored()) {
+      return false;
+    }
+    if (value instanceof Iterable) {
+      int countSlot = addDecisionValue(null);
+      int count = 0;
+      for (Object each : (Iterable<?>) value) {
+        if (each == DomaInListPadding.NULL_ELEMENT) {
+          addParameter(null, Object.class);
+        } else {
+          addParameter(each, each == null ? null : each.getClass());
+        }
+        count++;
+      }
+      decisions[countSlot] = count;
+      return true;
+    }
+    if (value != null && value.getClass().isArray()) {
+      int length = Array.getLength(value);
+      addDecisionValue(length);
+      for (int i = 0; i < length; i++) {
+        Object each = Array.get(value, i);
+        addParameter(each, each == null ? null : each.getClass());
+      }
+      return true;
+    }
+    return false;
+  }
+
+  private void addParameter(Object value, Class<?> valueClass) {
+    addDecisionValue(valueClass);
+    parameterValues.add(value);
+  }
+
+  private boolean addDecision(Object value) {
+    if (value != null && value.getClass().isArray()) {
+      return false;
+    }
+    addDecisionValue(value);
+    return true;
+  }
+
+  // returns the slot of the decision
+  private int addDecisionValue(Object decision) {
+    if (decisionCount == decisions.length) {
+      decisions = Arrays.copyOf(decisions, decisionCount * 2);
+    }
+    decisions[decisionCount] = decision;
+    return decisionCount++;
+  }
+
+  private EvaluationResult evaluate(String expression) {
+    DomaCompiledExpression compiled = expressions.get(expression);
+    if (compiled != null) {
+      return compiled.evaluate(evaluator);
+    }
+    return evaluator.evaluate(new ExpressionParser(expression).parse());
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.Arrays;
+
+/**
+ * The fingerprint of the directive branches taken while evaluating a template.
+ *
+ * <p>Two evaluations with equal keys render the same SQL text and the same parameter types.
+ *
+ * <p>A {@link DomaSqlShapeEvaluator} reuses one key over its decision buffer to look up shapes
+ * without allocating. Only {@linkplain #copy() copies} are cached.
+ */
+final class DomaSqlShapeKey {
+  private Object[] decisions;
+  private int length;
+  private int hashCode;
+
+  DomaSqlShapeKey(Object[] decisions) {
+    set(decisions, decisions.length);
+  }
+
+  DomaSqlShapeKey() {
+    set(new Object[0], 0);
+  }
+
+  /**
+   * Points this key at the first decisions of a buffer.
+   *
+   * @param decisions a buffer of decisions, which must not be modified while this key is used
+   * @param length the number of decisions
+   * @return this key
+   */
+  DomaSqlShapeKey set(Object[] decisions, int length) {
+    int hashCode = 1;
+    for (int i = 0; i < length; i++) {
+      Object decision = decisions[i];
+      hashCode = 31 * hashCode + (decision == null ? 0 : decision.hashCode());
+    }
+    this.decisions = decisions;
+    this.length = length;
+    this.hashCode = hashCode;
+    return this;
+  }
+
+  /**
+   * @return a key that owns a copy of the decisions
+   */
+  DomaSqlShapeKey copy() {
+    return new DomaSqlShapeKey(Arrays.copyOf(decisions, length));
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof DomaSqlShapeKey)) {
+      return false;
+    }
+    DomaSqlShapeKey other = (DomaSqlShapeKey) obj;
+    if (hashCode != other.hashCode || length != other.length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      Object decision = decisions[i];
+      Object otherDecision = other.decisions[i];
+      if (decision == null ? otherDecision != null : !decision.equals(otherDecision)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return Arrays.toString(Arrays.copyOf(decisions, length));
+  }
+}
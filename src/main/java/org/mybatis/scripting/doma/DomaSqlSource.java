@@ -15,28 +15,53 @@
  */
 package org.mybatis.scripting.doma;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
-import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
 import org.apache.ibatis.builder.BuilderException;
 import org.apache.ibatis.logging.Log;
 import org.apache.ibatis.logging.LogFactory;
 import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.ResultMap;
+import org.apache.ibatis.mapping.SqlCommandType;
 import org.apache.ibatis.mapping.SqlSource;
 import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.RowBounds;
 import org.seasar.doma.internal.util.ResourceUtil;
+import org.seasar.doma.jdbc.InParameter;
+import org.seasar.doma.jdbc.JdbcException;
 import org.seasar.doma.jdbc.PreparedSql;
-import org.seasar.doma.jdbc.dialect.Dialect;
-import org.seasar.doma.jdbc.dialect.StandardDialect;
+import org.seasar.doma.jdbc.SqlLogType;
+import org.seasar.doma.jdbc.SqlNode;
+import org.seasar.doma.wrapper.Wrapper;
 
 public class DomaSqlSource implements SqlSource {
   private static final Log log = LogFactory.getLog(DomaSqlSource.class);
 
+  static final String PARAMETER_PREFIX = "__doma_";
+
+  /** The suffix of the id of the statement that counts the rows of a select statement. */
+  public static final String COUNT_STATEMENT_SUFFIX = "!count";
+
   private final DomaLanguageDriverConfig driverConfig;
-  private final Dialect dialect;
+  private final DomaRuntime runtime;
+  private final DomaTypeHandlers typeHandlers;
   private final String script;
+  private final DomaSqlShapeCache shapeCache;
+  private volatile Template template;
   private final Configuration configuration;
   private final Class<?> parameterTypeClass;
+  private final DomaInListPadding inListPadding;
+  private final int inListChunkSize;
+  private final AtomicLong logCount = new AtomicLong();
+  private final DomaStatementMetrics metrics;
+  private volatile String statementId;
+  private volatile SqlSource countSqlSource;
 
   public DomaSqlSource(
       DomaLanguageDriverConfig driverConfig,
@@ -44,11 +69,91 @@ public class DomaSqlSource implements SqlSource {
       String script,
       Class<?> parameterTypeClass) {
     this.driverConfig = driverConfig;
-    this.dialect =
-        Optional.ofNullable(this.driverConfig.dialect).orElseGet(() -> new StandardDialect());
-    this.script = getScript(script);
+    this.runtime = driverConfig.getRuntime();
+    this.typeHandlers = driverConfig.getTypeHandlers(newConfiguration);
+    this.script = driverConfig.scriptRegistry.intern(script);
+    this.inListChunkSize =
+        driverConfig.inListChunkSize == DomaLanguageDriverConfig.DIALECT_IN_LIST_CHUNK_SIZE
+            ? DomaInListChunk.getChunkSize(runtime.getDialect())
+            : driverConfig.inListChunkSize;
+    DomaInListPadding inListPadding =
+        DomaInListPadding.of(driverConfig.inListBuckets, driverConfig.inListPadding);
+    String arrayFormat =
+        driverConfig.bindParameters && driverConfig.arrayParameters
+            ? DomaArrayParameter.getInListFormat(runtime.getDialect())
+            : null;
+    if (inListPadding == null && (inListChunkSize > 0 || arrayFormat != null)) {
+      inListPadding = DomaInListPadding.NONE;
+    }
+    this.inListPadding =
+        arrayFormat == null ? inListPadding : inListPadding.withArrayFormat(arrayFormat);
+    this.shapeCache = new DomaSqlShapeCache(driverConfig.shapeCacheSize);
     this.configuration = newConfiguration;
     this.parameterTypeClass = parameterTypeClass;
+    this.metrics =
+        driverConfig.metrics ? new DomaStatementMetrics() : DomaStatementMetrics.DISABLED;
+    if (!driverConfig.lazyParsing) {
+      prepare();
+    }
+  }
+
+  /** The parsed template and what is derived from it. */
+  private static final class Template {
+    final DomaSqlTemplate sqlTemplate;
+    final DomaStaticSql staticSql;
+    final DomaResultCache resultCache;
+
+    Template(DomaSqlTemplate sqlTemplate, DomaStaticSql staticSql, DomaResultCache resultCache) {
+      this.sqlTemplate = sqlTemplate;
+      this.staticSql = staticSql;
+      this.resultCache = resultCache;
+    }
+  }
+
+  /**
+   * Parses and analyzes the template unless it is done already.
+   *
+   * @throws BuilderException if the template is invalid
+   */
+  void prepare() {
+    getTemplate();
+  }
+
+  /**
+   * @return true if the template is parsed
+   */
+  boolean isPrepared() {
+    return template != null;
+  }
+
+  private Template getTemplate() {
+    Template result = template;
+    if (result == null) {
+      synchronized (this) {
+        result = template;
+        if (result == null) {
+          long start = metrics.start();
+          String text = driverConfig.scriptRegistry.getScript(script);
+          DomaResultCache resultCache = null;
+          Matcher matcher =
+              text.contains("/*%cache") ? DomaResultCache.DIRECTIVE.matcher(text) : null;
+          if (matcher != null && matcher.find()) {
+            // Doma does not know the directive, so it is removed before parsing
+            resultCache = createResultCache(text, matcher.group(1));
+            text = text.substring(0, matcher.start()) + text.substring(matcher.end());
+          }
+          DomaSqlTemplate sqlTemplate = createSqlTemplate(text, runtime, inListPadding);
+          DomaStaticSql staticSql =
+              driverConfig.bindParameters
+                  ? DomaStaticSql.of(configuration, typeHandlers, sqlTemplate)
+                  : null;
+          result = new Template(sqlTemplate, staticSql, resultCache);
+          template = result;
+          metrics.parsed(start);
+        }
+      }
+    }
+    return result;
   }
 
   public static String getScript(String script) {
@@ -65,18 +170,508 @@ public class DomaSqlSource implements SqlSource {
     }
   }
 
+  private static DomaResultCache createResultCache(String script, String attributes) {
+    try {
+      return DomaResultCache.of(attributes);
+    } catch (IllegalArgumentException e) {
+      throw new BuilderException("Error parsing doma script '" + script + "'", e);
+    }
+  }
+
+  private static DomaSqlTemplate createSqlTemplate(
+      String script, DomaRuntime runtime, DomaInListPadding inListPadding) {
+    try {
+      return new DomaSqlTemplate(script, runtime, inListPadding);
+    } catch (JdbcException e) {
+      throw new BuilderException("Error parsing doma script '" + script + "'", e);
+    }
+  }
+
   @Override
   public BoundSql getBoundSql(Object parameterObject) {
-    log.debug("getBoundSql:Source:" + script);
+    boolean logging = isLogging();
+    if (logging) {
+      log.debug("getBoundSql:Source:" + script);
+    }
 
-    DomaSqlTemplate sqlTemplate = new DomaSqlTemplate(script, dialect);
+    DomaRenderRecording recording = DomaRenderRecording.begin();
+    long start = metrics.start();
+    BoundSql boundSql = getBoundSql(parameterObject, logging, recording);
+    metrics.finished(start);
+    if (recording != null) {
+      recording.end(this, boundSql);
+    }
+    return boundSql;
+  }
+
+  private BoundSql getBoundSql(
+      Object parameterObject, boolean logging, DomaRenderRecording recording) {
+    Template prepared = getTemplate();
+    long start = metrics.start();
+    DomaStaticSql staticSql = prepared.staticSql;
+    if (staticSql != null) {
+      BoundSql boundSql =
+          staticSql.createBoundSql(
+              new VariableValues(configuration, parameterObject, parameterTypeClass),
+              parameterObject);
+      if (boundSql != null) {
+        metrics.resolved(start);
+        if (logging) {
+          logResult("getBoundSql", boundSql);
+        }
+        return boundSql;
+      }
+    }
+    if (driverConfig.bindParameters && shapeCache.isEnabled()) {
+      return getCachedBoundSql(prepared.sqlTemplate, parameterObject, logging, recording, start);
+    }
     VariableValues variableValues =
         new VariableValues(configuration, parameterObject, parameterTypeClass);
-    PreparedSql preparedSql = sqlTemplate.execute(variableValues);
+    if (driverConfig.bindParameters) {
+      DomaBoundSql boundSql = buildBoundSql(prepared.sqlTemplate, variableValues, parameterObject);
+      if (boundSql != null) {
+        metrics.resolved(metrics.built(start));
+        if (logging) {
+          logResult("getBoundSql", boundSql);
+        }
+        return boundSql;
+      }
+    }
+    PreparedSql preparedSql =
+        prepared.sqlTemplate.execute(variableValues, getRenderedLogType(logging));
+    long built = metrics.built(start);
+    if (logging) {
+      logResult("getBoundSql", preparedSql);
+    }
+    BoundSql boundSql = createBoundSql(preparedSql, parameterObject);
+    metrics.resolved(built);
+    return boundSql;
+  }
+
+  // renders the template without Doma's builder, or returns null if Doma must render it
+  private DomaBoundSql buildBoundSql(
+      DomaSqlTemplate sqlTemplate, VariableValues variableValues, Object parameterObject) {
+    DomaBoundSqlBuilder builder = sqlTemplate.acquireBoundSqlBuilder(typeHandlers, variableValues);
+    try {
+      if (!builder.build(sqlTemplate.getSqlNode())) {
+        return null;
+      }
+      return new DomaBoundSql(
+          configuration,
+          builder.getSql(),
+          new ArrayList<>(builder.getParameterMappings()),
+          parameterObject,
+          new ArrayList<>(builder.getParameterValues()));
+    } finally {
+      sqlTemplate.releaseBoundSqlBuilder(builder);
+    }
+  }
+
+  // whether the SQL of this call is logged, sampling one in sqlLogSampling calls
+  private boolean isLogging() {
+    if (driverConfig.sqlLogType == SqlLogType.NONE || !log.isDebugEnabled()) {
+      return false;
+    }
+    int sampling = driverConfig.sqlLogSampling;
+    return sampling == 1 || logCount.getAndIncrement() % sampling == 0;
+  }
+
+  // inlined values are rendered by Doma as the formatted SQL, which is otherwise only logged
+  private SqlLogType getRenderedLogType(boolean logging) {
+    if (!driverConfig.bindParameters) {
+      return SqlLogType.FORMATTED;
+    }
+    return logging ? driverConfig.sqlLogType : SqlLogType.NONE;
+  }
+
+  private void logResult(String method, PreparedSql preparedSql) {
+    if (driverConfig.bindParameters && driverConfig.sqlLogType == SqlLogType.RAW) {
+      log.debug(method + ":Result:" + preparedSql.getRawSql());
+    } else {
+      log.debug(method + ":Result:" + preparedSql.getFormattedSql());
+    }
+  }
 
-    log.debug("getBoundSql:Result:" + preparedSql.getRawSql());
+  private void logResult(String method, BoundSql boundSql) {
+    log.debug(method + ":Result:" + boundSql.getSql());
+    if (driverConfig.sqlLogType == SqlLogType.FORMATTED && boundSql instanceof DomaBoundSql) {
+      log.debug(method + ":Parameters:" + ((DomaBoundSql) boundSql).getParameterValues());
+    }
+  }
 
+  private BoundSql createBoundSql(PreparedSql preparedSql, Object parameterObject) {
+    if (driverConfig.bindParameters) {
+      return new DomaBoundSql(
+          configuration,
+          preparedSql.getRawSql(),
+          createParameterMappings(preparedSql),
+          parameterObject,
+          getParameterValues(preparedSql));
+    }
     String sql = preparedSql.getFormattedSql();
     return new BoundSql(configuration, sql, Collections.emptyList(), parameterObject);
   }
+
+  /**
+   * Creates one statement per chunk of an IN list that is longer than the chunk size. A statement
+   * whose IN lists are all short enough is returned as the only element.
+   *
+   * @param parameterObject a parameter object
+   * @return the statements, or null if the template has no IN lists that may be split or several
+   *     of them are too long, in which case {@link #getBoundSql(Object)} creates the statement
+   * @see DomaInListChunk
+   */
+  List<BoundSql> getChunkedBoundSqls(Object parameterObject) {
+    if (!isInListChunked()) {
+      return null;
+    }
+    DomaSqlTemplate sqlTemplate = getTemplate().sqlTemplate;
+    boolean logging = isLogging();
+    if (logging) {
+      log.debug("getChunkedBoundSqls:Source:" + script);
+    }
+
+    VariableValues variableValues =
+        new VariableValues(configuration, parameterObject, parameterTypeClass);
+    DomaInListChunk inListChunk = new DomaInListChunk(inListPadding, inListChunkSize);
+    SqlLogType renderedLogType = getRenderedLogType(logging);
+    PreparedSql preparedSql = sqlTemplate.execute(variableValues, inListChunk, renderedLogType);
+    if (inListChunk.isSplit() && !inListChunk.isChunked()) {
+      // several lists are too long, so the statement is executed as a whole
+      return null;
+    }
+    List<BoundSql> boundSqls = new ArrayList<>();
+    while (true) {
+      if (logging) {
+        logResult("getChunkedBoundSqls", preparedSql);
+      }
+      boundSqls.add(createBoundSql(preparedSql, parameterObject));
+      if (!inListChunk.next()) {
+        return boundSqls;
+      }
+      preparedSql = sqlTemplate.execute(variableValues, inListChunk, renderedLogType);
+    }
+  }
+
+  /**
+   * @return true if the cache keys of the queries are built from the values captured while
+   *     rendering
+   * @see DomaLanguageDriverConfig#setCompactCacheKeys(boolean)
+   */
+  boolean isCompactCacheKeys() {
+    return driverConfig.compactCacheKeys && driverConfig.bindParameters;
+  }
+
+  /**
+   * @param rowBounds the row bounds of a query. Must not be null.
+   * @return true if the query may be paged by {@link #getPagedBoundSql(Object, RowBounds)}
+   */
+  boolean isPaged(RowBounds rowBounds) {
+    return driverConfig.rowBoundsPaging
+        && (rowBounds.getOffset() != RowBounds.NO_ROW_OFFSET
+            || rowBounds.getLimit() != RowBounds.NO_ROW_LIMIT);
+  }
+
+  /**
+   * Creates a statement that selects only the rows of a page, with the paging of the dialect.
+   *
+   * @param parameterObject a parameter object
+   * @param rowBounds the page to select. Must not be null.
+   * @return the statement, to be executed with {@link RowBounds#DEFAULT}, or null if paging is
+   *     disabled, the row bounds select all the rows, or the template cannot be paged, in which
+   *     case MyBatis skips the rows of other pages
+   * @see DomaLanguageDriverConfig#setRowBoundsPaging(boolean)
+   */
+  BoundSql getPagedBoundSql(Object parameterObject, RowBounds rowBounds) {
+    if (!isPaged(rowBounds)) {
+      return null;
+    }
+    int offset = rowBounds.getOffset();
+    int limit = rowBounds.getLimit();
+    DomaSqlTemplate sqlTemplate = getTemplate().sqlTemplate;
+    SqlNode pagingSqlNode =
+        sqlTemplate.createPagingSqlNode(offset, limit == RowBounds.NO_ROW_LIMIT ? -1 : limit);
+    if (pagingSqlNode == null) {
+      return null;
+    }
+    return getTransformedBoundSql("getPagedBoundSql", sqlTemplate, pagingSqlNode, parameterObject);
+  }
+
+  /**
+   * Returns a source of the statement that counts the rows selected by this source, derived from
+   * the parsed template with the count transformation of the dialect. The {@code ORDER BY} clause
+   * is dropped, and the source is created once.
+   *
+   * @return the source, or null if the template is not a select statement or the dialect cannot
+   *     count its rows
+   * @throws BuilderException if the template is invalid
+   * @see DomaLanguageDriver#addCountStatements(Configuration)
+   */
+  public SqlSource getCountSqlSource() {
+    SqlSource result = countSqlSource;
+    if (result == null && getTemplate().sqlTemplate.getCountSqlNode() != null) {
+      result =
+          parameterObject -> {
+            DomaSqlTemplate sqlTemplate = getTemplate().sqlTemplate;
+            return getTransformedBoundSql(
+                "getCountBoundSql", sqlTemplate, sqlTemplate.getCountSqlNode(), parameterObject);
+          };
+      countSqlSource = result;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the id of the select statement that counts the rows selected by a statement of this
+   * language. The count statement has the id of the statement followed by {@value
+   * #COUNT_STATEMENT_SUFFIX}, takes the same parameter object and returns a {@link Long}. It is
+   * added to the configuration by {@link DomaLanguageDriver#addCountStatements(Configuration)}
+   * when the mappers are loaded, since statements must not be added while the configuration is in
+   * use.
+   *
+   * @param configuration the configuration of the statement. Must not be null.
+   * @param statementId the id of a select statement of a {@link DomaSqlSource}
+   * @return the id of the count statement
+   * @throws IllegalArgumentException if the statement has no count statement
+   */
+  public static String getCountStatementId(Configuration configuration, String statementId) {
+    String countStatementId = statementId + COUNT_STATEMENT_SUFFIX;
+    if (!configuration.hasStatement(countStatementId, false)) {
+      throw new IllegalArgumentException("Rows of '" + statementId + "' cannot be counted");
+    }
+    return countStatementId;
+  }
+
+  /**
+   * Creates the statement that counts the rows selected by a select statement of this language.
+   * The template is parsed when the count statement is first executed.
+   *
+   * @param mappedStatement a select statement of a {@link DomaSqlSource}. Must not be null.
+   * @return the count statement
+   * @see #getCountStatementId(Configuration, String)
+   */
+  static MappedStatement createCountStatement(MappedStatement mappedStatement) {
+    Configuration configuration = mappedStatement.getConfiguration();
+    DomaSqlSource sqlSource = (DomaSqlSource) mappedStatement.getSqlSource();
+    String countStatementId = mappedStatement.getId() + COUNT_STATEMENT_SUFFIX;
+    SqlSource countSqlSource =
+        parameterObject -> {
+          SqlSource source = sqlSource.getCountSqlSource();
+          if (source == null) {
+            throw new IllegalArgumentException(
+                "Rows of '" + mappedStatement.getId() + "' cannot be counted");
+          }
+          return source.getBoundSql(parameterObject);
+        };
+    ResultMap resultMap =
+        new ResultMap.Builder(
+                configuration, countStatementId + "-Inline", Long.class, Collections.emptyList())
+            .build();
+    return new MappedStatement.Builder(
+            configuration, countStatementId, countSqlSource, SqlCommandType.SELECT)
+        .resource(mappedStatement.getResource())
+        .timeout(mappedStatement.getTimeout())
+        .statementType(mappedStatement.getStatementType())
+        .parameterMap(mappedStatement.getParameterMap())
+        .resultMaps(Collections.singletonList(resultMap))
+        .cache(mappedStatement.getCache())
+        .useCache(mappedStatement.isUseCache())
+        .databaseId(mappedStatement.getDatabaseId())
+        .lang(mappedStatement.getLang())
+        .build();
+  }
+
+  private BoundSql getTransformedBoundSql(
+      String name, DomaSqlTemplate sqlTemplate, SqlNode sqlNode, Object parameterObject) {
+    boolean logging = isLogging();
+    if (logging) {
+      log.debug(name + ":Source:" + script);
+    }
+
+    long start = metrics.start();
+    VariableValues variableValues =
+        new VariableValues(configuration, parameterObject, parameterTypeClass);
+    PreparedSql preparedSql =
+        sqlTemplate.execute(variableValues, sqlNode, getRenderedLogType(logging));
+    long built = metrics.built(start);
+    if (logging) {
+      logResult(name, preparedSql);
+    }
+    BoundSql boundSql = createBoundSql(preparedSql, parameterObject);
+    metrics.resolved(built);
+    metrics.finished(start);
+    return boundSql;
+  }
+
+  /**
+   * @return true if the IN lists of the template may be split by {@link DomaExecutorInterceptor}
+   */
+  boolean isInListChunked() {
+    return inListChunkSize > 0 && getTemplate().sqlTemplate.isInListsSplittable();
+  }
+
+  private BoundSql getCachedBoundSql(
+      DomaSqlTemplate sqlTemplate,
+      Object parameterObject,
+      boolean logging,
+      DomaRenderRecording recording,
+      long start) {
+    DomaSqlShapeEvaluator shapeEvaluator = sqlTemplate.acquireShapeEvaluator();
+    try {
+      return getCachedBoundSql(
+          sqlTemplate, shapeEvaluator, parameterObject, logging, recording, start);
+    } finally {
+      sqlTemplate.releaseShapeEvaluator(shapeEvaluator);
+    }
+  }
+
+  private BoundSql getCachedBoundSql(
+      DomaSqlTemplate sqlTemplate,
+      DomaSqlShapeEvaluator shapeEvaluator,
+      Object parameterObject,
+      boolean logging,
+      DomaRenderRecording recording,
+      long start) {
+    VariableValues variableValues =
+        shapeEvaluator.reset(configuration, parameterObject, parameterTypeClass);
+    DomaSqlShapeKey key = shapeEvaluator.evaluate(sqlTemplate.getSqlNode());
+    long evaluated = metrics.evaluated(start);
+    if (key != null) {
+      DomaSqlShape shape = shapeCache.get(key);
+      if (shape != null) {
+        BoundSql boundSql =
+            new DomaBoundSql(
+                configuration,
+                shape.getSql(),
+                shape.getParameterMappings(),
+                parameterObject,
+                new ArrayList<>(shapeEvaluator.getParameterValues()));
+        metrics.resolved(evaluated);
+        if (recording != null) {
+          recording.setShapeCacheHit(true);
+        }
+        if (logging) {
+          logResult("getBoundSql", boundSql);
+        }
+        return boundSql;
+      }
+    }
+
+    DomaBoundSql boundSql = buildBoundSql(sqlTemplate, variableValues, parameterObject);
+    long built;
+    if (boundSql != null) {
+      built = metrics.built(evaluated);
+      if (logging) {
+        logResult("getBoundSql", boundSql);
+      }
+    } else {
+      PreparedSql preparedSql = sqlTemplate.execute(variableValues, getRenderedLogType(logging));
+      built = metrics.built(evaluated);
+      if (logging) {
+        logResult("getBoundSql", preparedSql);
+      }
+      boundSql = (DomaBoundSql) createBoundSql(preparedSql, parameterObject);
+    }
+
+    List<Object> parameterValues = boundSql.getParameterValues();
+    if (key != null && DomaSqlShape.matches(parameterValues, shapeEvaluator.getParameterValues())) {
+      DomaSqlShape shape = new DomaSqlShape(boundSql.getSql(), boundSql.getParameterMappings());
+      shapeCache.put(key.copy(), shape);
+      boundSql =
+          new DomaBoundSql(
+              configuration,
+              shape.getSql(),
+              shape.getParameterMappings(),
+              parameterObject,
+              parameterValues);
+    }
+    metrics.resolved(built);
+    return boundSql;
+  }
+
+  /**
+   * @return true if the template has no directives and its SQL text is resolved once
+   */
+  boolean isStatic() {
+    return getTemplate().staticSql != null;
+  }
+
+  /**
+   * @return the render metrics of this source. Must not be null.
+   * @see DomaLanguageDriverConfig#setMetrics(boolean)
+   */
+  public DomaStatementMetrics getMetrics() {
+    return metrics;
+  }
+
+  Configuration getConfiguration() {
+    return configuration;
+  }
+
+  /**
+   * @return the id of the statement built from this source, or null until the statement is
+   *     executed
+   * @see #setStatementId(String)
+   */
+  String getStatementId() {
+    return statementId;
+  }
+
+  /**
+   * Records the id of the statement built from this source. The statement is built after its
+   * source, so the id is taken from the statement when it is executed.
+   *
+   * @param statementId the id of the statement. Must not be null.
+   */
+  void setStatementId(String statementId) {
+    if (this.statementId == null) {
+      this.statementId = statementId;
+    }
+  }
+
+  /**
+   * @return the hash code of the template text
+   */
+  int getTemplateHash() {
+    return getTemplate().sqlTemplate.getSql().hashCode();
+  }
+
+  /**
+   * @return the cache of the SQL shapes rendered by this source. Must not be null.
+   */
+  public DomaSqlShapeCache getShapeCache() {
+    return shapeCache;
+  }
+
+  /**
+   * @return the cache of the rows selected by this source, or null if the template declares no
+   *     {@code /*%cache *}{@code /} directive
+   * @throws BuilderException if the template is invalid
+   */
+  public DomaResultCache getResultCache() {
+    return getTemplate().resultCache;
+  }
+
+  private List<ParameterMapping> createParameterMappings(PreparedSql preparedSql) {
+    List<InParameter<?>> parameters = preparedSql.getParameters();
+    List<ParameterMapping> parameterMappings = new ArrayList<>(parameters.size());
+    for (InParameter<?> parameter : parameters) {
+      Wrapper<?> wrapper = parameter.getWrapper();
+      Class<?> javaType =
+          wrapper instanceof DomaPreparedSqlBuilder.UnknownValueWrapper
+              ? ((DomaPreparedSqlBuilder.UnknownValueWrapper) wrapper).getValueClass()
+              : wrapper.getBasicClass();
+      parameterMappings.add(typeHandlers.getParameterMapping(parameterMappings.size(), javaType));
+    }
+    return parameterMappings;
+  }
+
+  private static List<Object> getParameterValues(PreparedSql preparedSql) {
+    List<InParameter<?>> parameters = preparedSql.getParameters();
+    List<Object> parameterValues = new ArrayList<>(parameters.size());
+    for (InParameter<?> parameter : parameters) {
+      parameterValues.add(parameter.getWrapper().get());
+    }
+    return parameterValues;
+  }
 }
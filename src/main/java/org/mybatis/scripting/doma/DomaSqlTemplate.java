@@ -15,30 +15,63 @@
  */
 package org.mybatis.scripting.doma;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Function;
 import javax.sql.DataSource;
 import org.seasar.doma.internal.expr.ExpressionEvaluator;
+import org.seasar.doma.internal.expr.ExpressionException;
+import org.seasar.doma.internal.expr.ExpressionParser;
+import org.seasar.doma.internal.expr.Value;
 import org.seasar.doma.internal.jdbc.sql.NodePreparedSqlBuilder;
 import org.seasar.doma.internal.jdbc.sql.SqlParser;
+import org.seasar.doma.internal.jdbc.sql.node.BindVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.ElseifNode;
+import org.seasar.doma.internal.jdbc.sql.node.EmbeddedVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.ForNode;
+import org.seasar.doma.internal.jdbc.sql.node.IfNode;
+import org.seasar.doma.internal.jdbc.sql.node.SelectStatementNode;
+import org.seasar.doma.internal.jdbc.sql.node.ValueNode;
 import org.seasar.doma.jdbc.Config;
+import org.seasar.doma.jdbc.JdbcException;
 import org.seasar.doma.jdbc.PreparedSql;
-import org.seasar.doma.jdbc.SqlKind;
+import org.seasar.doma.jdbc.SelectOptions;
 import org.seasar.doma.jdbc.SqlLogType;
 import org.seasar.doma.jdbc.SqlNode;
 import org.seasar.doma.jdbc.dialect.Dialect;
-import org.seasar.doma.jdbc.dialect.StandardDialect;
 
-/** Represents a SQL template. */
+/**
+ * Represents a SQL template.
+ *
+ * <p>The template is parsed once when it is constructed. The parsed {@link SqlNode} tree is never
+ * modified afterwards, so a single instance can be shared by all threads. The expressions of the
+ * directives and variables are compiled at the same time.
+ */
 public class DomaSqlTemplate {
+  private static final Object NO_COUNT_SQL_NODE = new Object();
+
   private final String sql;
-  private final Config config;
+  private final DomaRuntime runtime;
+  private final SqlNode sqlNode;
+  private final Map<String, DomaCompiledExpression> expressions;
+  private final DomaInListPadding inListPadding;
+  private final boolean hasInLists;
+  private final boolean inListsSplittable;
+  private final boolean isSelect;
+  private volatile Object countSqlNode;
+  private final Value inListsValue;
+  private final DomaPool<DomaSqlShapeEvaluator> shapeEvaluators = new DomaPool<>();
+  private final DomaPool<DomaBoundSqlBuilder> boundSqlBuilders = new DomaPool<>();
 
   /**
    * @param sql a template. Must not be null.
    */
   public DomaSqlTemplate(String sql) {
-    this(sql, new StandardDialect());
+    this(sql, DomaRuntime.STANDARD, null);
   }
 
   /**
@@ -46,21 +79,7 @@ public class DomaSqlTemplate {
    * @param dialect a dialect. Must not be null.
    */
   public DomaSqlTemplate(String sql, Dialect dialect) {
-    this(
-        sql,
-        new Config() {
-
-          @Override
-          public DataSource getDataSource() {
-            throw new UnsupportedOperationException();
-          }
-
-          @Override
-          public Dialect getDialect() {
-            return dialect;
-          }
-        });
-    Objects.requireNonNull(dialect);
+    this(sql, new DomaRuntime(dialect), null);
   }
 
   /**
@@ -68,8 +87,206 @@ public class DomaSqlTemplate {
    * @param config a configuration. Must not be null.
    */
   public DomaSqlTemplate(String sql, Config config) {
+    this(sql, config, null);
+  }
+
+  /**
+   * @param sql a template. Must not be null.
+   * @param config a configuration. Must not be null.
+   * @param inListPadding the padding of IN lists, or null not to pad them
+   */
+  public DomaSqlTemplate(String sql, Config config, DomaInListPadding inListPadding) {
+    this(sql, new DomaRuntime(config), inListPadding);
+  }
+
+  /**
+   * @param sql a template. Must not be null.
+   * @param runtime the shared Doma objects. Must not be null.
+   * @param inListPadding the padding of IN lists, or null not to pad them
+   */
+  DomaSqlTemplate(String sql, DomaRuntime runtime, DomaInListPadding inListPadding) {
     this.sql = Objects.requireNonNull(sql);
-    this.config = Objects.requireNonNull(config);
+    this.runtime = Objects.requireNonNull(runtime);
+    this.inListPadding = inListPadding;
+    SqlNode parsed = new SqlParser(sql).parse();
+    Set<String> inListExpressions = new HashSet<>();
+    if (inListPadding != null) {
+      collectInListExpressions(parsed, inListExpressions);
+      if (!inListExpressions.isEmpty()) {
+        parsed =
+            new SqlParser(padInLists(sql, inListExpressions, inListPadding.getArrayFormat()))
+                .parse();
+      }
+    }
+    this.sqlNode = parsed;
+    this.hasInLists = !inListExpressions.isEmpty();
+    this.inListsSplittable = hasInLists && DomaInListChunk.isSplittable(sqlNode);
+    this.isSelect =
+        sqlNode.getChildren().stream().anyMatch(node -> node instanceof SelectStatementNode);
+    this.inListsValue = hasInLists ? new Value(inListPadding.getClass(), inListPadding) : null;
+    this.expressions = compileExpressions(sqlNode, runtime);
+  }
+
+  static Config createConfig(Dialect dialect) {
+    return new Config() {
+
+      @Override
+      public DataSource getDataSource() {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Dialect getDialect() {
+        return dialect;
+      }
+    };
+  }
+
+  private static void collectInListExpressions(SqlNode node, Set<String> inListExpressions) {
+    if (node instanceof BindVariableNode && ((BindVariableNode) node).isParensNodeIgnored()) {
+      inListExpressions.add(((BindVariableNode) node).getVariableName());
+    }
+    for (SqlNode child : node.getChildren()) {
+      collectInListExpressions(child, inListExpressions);
+    }
+  }
+
+  /**
+   * Rewrites the IN list bind variables of a template so that their values are padded by {@link
+   * DomaInListPadding#pad(Object)}, or by {@link DomaInListPadding#padNegated(Object)} for {@code
+   * NOT IN} lists. String literals and line comments are skipped.
+   *
+   * <p>When an array format is given, the IN lists are replaced by the format instead, binding the
+   * values through {@link DomaInListPadding#array(Object)}.
+   */
+  static String padInLists(String sql, Set<String> inListExpressions, String arrayFormat) {
+    StringBuilder buf = new StringBuilder(sql.length() + 64);
+    int length = sql.length();
+    int i = 0;
+    while (i < length) {
+      char c = sql.charAt(i);
+      if (c == '\'' || (c == '-' && sql.startsWith("--", i))) {
+        int end = c == '\'' ? sql.indexOf('\'', i + 1) : sql.indexOf('\n', i);
+        end = end < 0 ? length : end + 1;
+        buf.append(sql, i, end);
+        i = end;
+      } else if (c == '/' && sql.startsWith("/*", i)) {
+        int close = sql.indexOf("*/", i + 2);
+        int end = close < 0 ? length : close + 2;
+        String expression = close < 0 ? null : sql.substring(i + 2, close).trim();
+        if (end < length && sql.charAt(end) == '(' && inListExpressions.contains(expression)) {
+          if (arrayFormat != null) {
+            String bind =
+                "/* " + DomaInListPadding.VARIABLE_NAME + ".array(" + expression + ") */''";
+            buf.append(String.format(arrayFormat, bind));
+            i = skipParens(sql, end);
+            continue;
+          }
+          buf.append("/* ")
+              .append(DomaInListPadding.VARIABLE_NAME)
+              .append(isNegated(sql, i) ? ".padNegated(" : ".pad(")
+              .append(expression)
+              .append(") */");
+        } else {
+          buf.append(sql, i, end);
+        }
+        i = end;
+      } else {
+        buf.append(c);
+        i++;
+      }
+    }
+    return buf.toString();
+  }
+
+  // the index after the parentheses starting at the index
+  private static int skipParens(String sql, int index) {
+    int depth = 0;
+    boolean quoted = false;
+    for (int i = index; i < sql.length(); i++) {
+      char c = sql.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (!quoted && c == '(') {
+        depth++;
+      } else if (!quoted && c == ')' && --depth == 0) {
+        return i + 1;
+      }
+    }
+    return sql.length();
+  }
+
+  // whether the comment starting at the index follows NOT IN
+  private static boolean isNegated(String sql, int index) {
+    int end = skipWhitespaceBackward(sql, index);
+    if (end < 2 || !sql.regionMatches(true, end - 2, "in", 0, 2)) {
+      return false;
+    }
+    int notEnd = skipWhitespaceBackward(sql, end - 2);
+    return notEnd < end - 2
+        && notEnd >= 3
+        && sql.regionMatches(true, notEnd - 3, "not", 0, 3)
+        && (notEnd == 3 || !Character.isJavaIdentifierPart(sql.charAt(notEnd - 4)));
+  }
+
+  private static int skipWhitespaceBackward(String sql, int index) {
+    while (index > 0 && Character.isWhitespace(sql.charAt(index - 1))) {
+      index--;
+    }
+    return index;
+  }
+
+  private static Map<String, DomaCompiledExpression> compileExpressions(
+      SqlNode sqlNode, DomaRuntime runtime) {
+    ExpressionEvaluator constantEvaluator = runtime.createConstantEvaluator();
+    Map<String, DomaCompiledExpression> expressions = new HashMap<>();
+    collectExpressions(sqlNode, constantEvaluator, expressions);
+    return Collections.unmodifiableMap(expressions);
+  }
+
+  private static void collectExpressions(
+      SqlNode node,
+      ExpressionEvaluator constantEvaluator,
+      Map<String, DomaCompiledExpression> expressions) {
+    String expression = null;
+    if (node instanceof IfNode) {
+      expression = ((IfNode) node).getExpression();
+    } else if (node instanceof ElseifNode) {
+      expression = ((ElseifNode) node).getExpression();
+    } else if (node instanceof ForNode) {
+      expression = ((ForNode) node).getExpression();
+    } else if (node instanceof ValueNode) {
+      expression = ((ValueNode) node).getVariableName();
+    } else if (node instanceof EmbeddedVariableNode) {
+      expression = ((EmbeddedVariableNode) node).getVariableName();
+    }
+    if (expression != null && !expressions.containsKey(expression)) {
+      try {
+        expressions.put(
+            expression,
+            DomaCompiledExpression.compile(
+                new ExpressionParser(expression).parse(), constantEvaluator));
+      } catch (ExpressionException e) {
+        // left to Doma, which reports the error with its location when the template is rendered
+      }
+    }
+    for (SqlNode child : node.getChildren()) {
+      collectExpressions(child, constantEvaluator, expressions);
+    }
+  }
+
+  /**
+   * @return the template. Must not be null.
+   */
+  public String getSql() {
+    return sql;
+  }
+
+  /**
+   * @return the parsed template. Must not be null.
+   */
+  public SqlNode getSqlNode() {
+    return sqlNode;
   }
 
   /**
@@ -78,17 +295,201 @@ public class DomaSqlTemplate {
    * @return a SQL statement. Must not be null.
    */
   public PreparedSql execute(DomaVariableValues values) {
-    SqlParser parser = new SqlParser(sql);
-    SqlNode node = parser.parse();
-    NodePreparedSqlBuilder builder = createNodePreparedSqlBuilder(values);
+    return execute(values, SqlLogType.FORMATTED);
+  }
+
+  /**
+   * Creates a SQL statement from this template.
+   *
+   * @param values variable values. Must not be null.
+   * @param sqlLogType {@link SqlLogType#FORMATTED} to render {@link PreparedSql#getFormattedSql()}
+   *     with the values as literals. Must not be null.
+   * @return a SQL statement. Must not be null.
+   */
+  public PreparedSql execute(DomaVariableValues values, SqlLogType sqlLogType) {
+    return execute(values, sqlNode, inListPadding, sqlLogType);
+  }
+
+  /**
+   * Creates a SQL statement that binds a chunk of its IN list.
+   *
+   * @param values variable values. Must not be null.
+   * @param inListChunk the chunk to bind. Must not be null.
+   * @param sqlLogType the log type. Must not be null.
+   * @return a SQL statement. Must not be null.
+   */
+  PreparedSql execute(
+      DomaVariableValues values, DomaInListChunk inListChunk, SqlLogType sqlLogType) {
+    return execute(values, sqlNode, inListChunk, sqlLogType);
+  }
+
+  /**
+   * Creates a SQL statement from this template transformed by {@link #createPagingSqlNode} or
+   * {@link #getCountSqlNode}.
+   *
+   * @param values variable values. Must not be null.
+   * @param transformedSqlNode the transformed template. Must not be null.
+   * @param sqlLogType the log type. Must not be null.
+   * @return a SQL statement. Must not be null.
+   */
+  PreparedSql execute(
+      DomaVariableValues values, SqlNode transformedSqlNode, SqlLogType sqlLogType) {
+    return execute(values, transformedSqlNode, inListPadding, sqlLogType);
+  }
+
+  private PreparedSql execute(
+      DomaVariableValues values, SqlNode node, Object inLists, SqlLogType sqlLogType) {
+    NodePreparedSqlBuilder builder =
+        runtime.createBuilder(withInLists(values, inLists), sqlLogType);
     return builder.build(node, Function.identity());
   }
 
-  private NodePreparedSqlBuilder createNodePreparedSqlBuilder(DomaVariableValues values) {
-    ExpressionEvaluator evaluator =
-        new DomaExpressionEvaluator(
-            values, config.getDialect().getExpressionFunctions(), config.getClassHelper());
-    return new NodePreparedSqlBuilder(
-        config, SqlKind.SCRIPT, null, evaluator, SqlLogType.FORMATTED);
+  /**
+   * Transforms this template to select only a page of its rows, the way the dialect pages the
+   * queries of Doma DAOs: with {@code OFFSET} and {@code FETCH FIRST}, {@code LIMIT}, or {@code
+   * ROW_NUMBER()}.
+   *
+   * @param offset the number of rows to skip, 0 for none
+   * @param limit the maximum number of rows, or a negative number for no limit
+   * @return the transformed template, or null if this template is not a select statement or the
+   *     dialect cannot page it
+   */
+  SqlNode createPagingSqlNode(int offset, int limit) {
+    if (!isSelect) {
+      return null;
+    }
+    SelectOptions options = SelectOptions.get();
+    if (offset > 0) {
+      options.offset(offset);
+    }
+    if (limit >= 0) {
+      options.limit(limit);
+    }
+    try {
+      return runtime.getDialect().transformSelectSqlNode(sqlNode, options);
+    } catch (JdbcException e) {
+      // such as a dialect that pages with ROW_NUMBER() and a query without ORDER BY
+      return null;
+    }
+  }
+
+  /**
+   * Transforms this template to count its rows, the way the dialect counts the rows of the queries
+   * of Doma DAOs: the select statement without its {@code ORDER BY} clause becomes a subquery of
+   * {@code select count(*)}. The transformation is done once.
+   *
+   * @return the transformed template, or null if this template is not a select statement or the
+   *     dialect cannot count its rows
+   */
+  SqlNode getCountSqlNode() {
+    Object result = countSqlNode;
+    if (result == null) {
+      result = NO_COUNT_SQL_NODE;
+      if (isSelect) {
+        try {
+          result = runtime.getDialect().transformSelectSqlNodeForGettingCount(sqlNode);
+        } catch (JdbcException e) {
+          // the rows are not counted
+        }
+      }
+      countSqlNode = result;
+    }
+    return result == NO_COUNT_SQL_NODE ? null : (SqlNode) result;
+  }
+
+  /**
+   * @return true if the IN lists of this template may be split into chunks, one statement per
+   *     chunk
+   * @see DomaInListChunk#isSplittable(SqlNode)
+   */
+  boolean isInListsSplittable() {
+    return inListsSplittable;
+  }
+
+  /**
+   * Creates an evaluator for the directives of this template.
+   *
+   * @param values variable values. Must not be null.
+   * @return an evaluator. Must not be null.
+   */
+  DomaSqlShapeEvaluator createShapeEvaluator(DomaVariableValues values) {
+    DomaSqlShapeEvaluator shapeEvaluator =
+        new DomaSqlShapeEvaluator(runtime, expressions, inListsValue);
+    shapeEvaluator.setVariableValues(values);
+    return shapeEvaluator;
+  }
+
+  /**
+   * Creates a builder that renders this template into the parts of a MyBatis {@code BoundSql}.
+   *
+   * @param typeHandlers the type handlers that bind the values. Must not be null.
+   * @param values variable values. Must not be null.
+   * @return a builder. Must not be null.
+   */
+  DomaBoundSqlBuilder createBoundSqlBuilder(
+      DomaTypeHandlers typeHandlers, DomaVariableValues values) {
+    DomaBoundSqlBuilder builder =
+        new DomaBoundSqlBuilder(runtime, expressions, inListsValue, sql.length());
+    builder.reset(typeHandlers, values);
+    return builder;
+  }
+
+  /**
+   * Takes a builder for this template from a pool shared by all threads, so that its buffers are
+   * reused by the next render.
+   *
+   * @param typeHandlers the type handlers that bind the values. Must not be null.
+   * @param values variable values. Must not be null.
+   * @return a builder, to be {@linkplain #releaseBoundSqlBuilder released} after use
+   */
+  DomaBoundSqlBuilder acquireBoundSqlBuilder(
+      DomaTypeHandlers typeHandlers, DomaVariableValues values) {
+    DomaBoundSqlBuilder builder = boundSqlBuilders.acquire();
+    if (builder == null) {
+      return createBoundSqlBuilder(typeHandlers, values);
+    }
+    builder.reset(typeHandlers, values);
+    return builder;
+  }
+
+  /**
+   * Clears a builder and returns it to the pool, unless the pool is full.
+   *
+   * @param builder a builder taken by {@link #acquireBoundSqlBuilder}
+   */
+  void releaseBoundSqlBuilder(DomaBoundSqlBuilder builder) {
+    builder.clear();
+    boundSqlBuilders.release(builder);
+  }
+
+  /**
+   * Takes an evaluator for the directives of this template from a pool shared by all threads. The
+   * pool is not bound to threads, so it serves virtual threads as well.
+   *
+   * @return an evaluator, to be {@linkplain #releaseShapeEvaluator released} after use
+   */
+  DomaSqlShapeEvaluator acquireShapeEvaluator() {
+    DomaSqlShapeEvaluator shapeEvaluator = shapeEvaluators.acquire();
+    return shapeEvaluator != null
+        ? shapeEvaluator
+        : new DomaSqlShapeEvaluator(runtime, expressions, inListsValue);
+  }
+
+  /**
+   * Clears an evaluator and returns it to the pool, unless the pool is full.
+   *
+   * @param shapeEvaluator an evaluator taken by {@link #acquireShapeEvaluator()}
+   */
+  void releaseShapeEvaluator(DomaSqlShapeEvaluator shapeEvaluator) {
+    shapeEvaluator.clear();
+    shapeEvaluators.release(shapeEvaluator);
+  }
+
+  private DomaVariableValues withInLists(DomaVariableValues values, Object inLists) {
+    if (!hasInLists) {
+      return values;
+    }
+    Value value = inLists == inListPadding ? inListsValue : new Value(inLists.getClass(), inLists);
+    return (name) -> name.equals(DomaInListPadding.VARIABLE_NAME) ? value : values.getValue(name);
   }
 }
@@ -0,0 +1,141 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+/**
+ * The time a {@link DomaSqlSource} spends creating its statements, broken down into phases.
+ *
+ * <ul>
+ *   <li>parse: parsing the template, once per source
+ *   <li>evaluate: evaluating the directives to look up a cached SQL shape
+ *   <li>build: rendering the SQL with Doma
+ *   <li>parameters: resolving the parameter mappings and values
+ * </ul>
+ *
+ * <p>The total is the time spent in {@link DomaSqlSource#getBoundSql(Object)}.
+ */
+public final class DomaStatementMetrics {
+  /** The metrics of a source whose metrics are disabled. Nothing is recorded. */
+  static final DomaStatementMetrics DISABLED = new DomaStatementMetrics(false);
+
+  private final DomaLatencyHistogram total;
+  private final DomaLatencyHistogram parse;
+  private final DomaLatencyHistogram evaluate;
+  private final DomaLatencyHistogram build;
+  private final DomaLatencyHistogram parameters;
+
+  DomaStatementMetrics() {
+    this(true);
+  }
+
+  private DomaStatementMetrics(boolean enabled) {
+    this.total = enabled ? new DomaLatencyHistogram() : null;
+    this.parse = enabled ? new DomaLatencyHistogram() : null;
+    this.evaluate = enabled ? new DomaLatencyHistogram() : null;
+    this.build = enabled ? new DomaLatencyHistogram() : null;
+    this.parameters = enabled ? new DomaLatencyHistogram() : null;
+  }
+
+  /**
+   * @return the current time, or 0 if the metrics are disabled
+   */
+  long start() {
+    return total == null ? 0 : System.nanoTime();
+  }
+
+  long parsed(long start) {
+    return record(parse, start);
+  }
+
+  long evaluated(long start) {
+    return record(evaluate, start);
+  }
+
+  long built(long start) {
+    return record(build, start);
+  }
+
+  long resolved(long start) {
+    return record(parameters, start);
+  }
+
+  void finished(long start) {
+    record(total, start);
+  }
+
+  // records the time since start and returns the current time
+  private static long record(DomaLatencyHistogram histogram, long start) {
+    if (histogram == null) {
+      return 0;
+    }
+    long now = System.nanoTime();
+    histogram.record(now - start);
+    return now;
+  }
+
+  /**
+   * @return true if the metrics are recorded
+   */
+  public boolean isEnabled() {
+    return total != null;
+  }
+
+  /**
+   * @return the time spent creating statements. Null if the metrics are disabled.
+   */
+  public DomaLatencyHistogram getTotal() {
+    return total;
+  }
+
+  /**
+   * @return the time spent parsing the template. Null if the metrics are disabled.
+   */
+  public DomaLatencyHistogram getParse() {
+    return parse;
+  }
+
+  /**
+   * @return the time spent evaluating directives. Null if the metrics are disabled.
+   */
+  public DomaLatencyHistogram getEvaluate() {
+    return evaluate;
+  }
+
+  /**
+   * @return the time spent rendering SQL with Doma. Null if the metrics are disabled.
+   */
+  public DomaLatencyHistogram getBuild() {
+    return build;
+  }
+
+  /**
+   * @return the time spent resolving parameters. Null if the metrics are disabled.
+   */
+  public DomaLatencyHistogram getParameters() {
+    return parameters;
+  }
+
+  /** Remove all the recorded times. */
+  public void reset() {
+    if (isEnabled()) {
+      total.reset();
+      parse.reset();
+      evaluate.reset();
+      build.reset();
+      parameters.reset();
+    }
+  }
+}
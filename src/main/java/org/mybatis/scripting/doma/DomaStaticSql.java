@@ -0,0 +1,164 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.regex.Pattern;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.seasar.doma.internal.expr.Value;
+import org.seasar.doma.internal.jdbc.sql.node.BindVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.EmbeddedVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.ExpandNode;
+import org.seasar.doma.internal.jdbc.sql.node.ForBlockNode;
+import org.seasar.doma.internal.jdbc.sql.node.IfBlockNode;
+import org.seasar.doma.internal.jdbc.sql.node.LiteralVariableNode;
+import org.seasar.doma.internal.jdbc.sql.node.PopulateNode;
+import org.seasar.doma.jdbc.PreparedSql;
+import org.seasar.doma.jdbc.SqlNode;
+
+/**
+ * A template that contains no directives and whose bind variables are all plain variable names.
+ *
+ * <p>The SQL text and the variable names are resolved once when the statement is registered, like
+ * {@code RawSqlSource} of MyBatis. Rendering only fetches the variable values.
+ */
+final class DomaStaticSql {
+  private static final Pattern IDENTIFIER =
+      Pattern.compile("\\p{javaJavaIdentifierStart}\\p{javaJavaIdentifierPart}*");
+
+  private final Configuration configuration;
+  private final DomaTypeHandlers typeHandlers;
+  private final String sql;
+  private final String[] variableNames;
+  private final AtomicReferenceArray<CachedMapping> parameterMappings;
+
+  private DomaStaticSql(
+      Configuration configuration,
+      DomaTypeHandlers typeHandlers,
+      String sql,
+      List<String> variableNames) {
+    this.configuration = configuration;
+    this.typeHandlers = typeHandlers;
+    this.sql = sql;
+    this.variableNames = variableNames.toArray(new String[0]);
+    this.parameterMappings = new AtomicReferenceArray<>(this.variableNames.length);
+  }
+
+  /**
+   * @param configuration a MyBatis configuration
+   * @param typeHandlers the type handlers that bind the values
+   * @param sqlTemplate a template
+   * @return the static SQL, or null if the template is dynamic
+   */
+  static DomaStaticSql of(
+      Configuration configuration, DomaTypeHandlers typeHandlers, DomaSqlTemplate sqlTemplate) {
+    List<String> variableNames = new ArrayList<>();
+    if (!collectVariableNames(sqlTemplate.getSqlNode(), variableNames)) {
+      return null;
+    }
+    // render once to let Doma build the SQL text, and make sure that nothing but the bind
+    // variables was evaluated
+    List<String> evaluatedNames = new ArrayList<>();
+    PreparedSql preparedSql;
+    try {
+      preparedSql =
+          sqlTemplate.execute(
+              (name) -> {
+                evaluatedNames.add(name);
+                return new Value(String.class, null);
+              });
+    } catch (RuntimeException e) {
+      return null;
+    }
+    if (!evaluatedNames.equals(variableNames)
+        || preparedSql.getParameters().size() != variableNames.size()) {
+      return null;
+    }
+    return new DomaStaticSql(configuration, typeHandlers, preparedSql.getRawSql(), variableNames);
+  }
+
+  private static boolean collectVariableNames(SqlNode node, List<String> variableNames) {
+    if (node instanceof BindVariableNode) {
+      BindVariableNode bindVariableNode = (BindVariableNode) node;
+      String variableName = bindVariableNode.getVariableName().trim();
+      if (!bindVariableNode.isWordNodeIgnored() || !IDENTIFIER.matcher(variableName).matches()) {
+        return false;
+      }
+      variableNames.add(variableName);
+      return true;
+    }
+    if (node instanceof IfBlockNode
+        || node instanceof ForBlockNode
+        || node instanceof ExpandNode
+        || node instanceof PopulateNode
+        || node instanceof EmbeddedVariableNode
+        || node instanceof LiteralVariableNode) {
+      return false;
+    }
+    for (SqlNode child : node.getChildren()) {
+      if (!collectVariableNames(child, variableNames)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  String getSql() {
+    return sql;
+  }
+
+  /**
+   * @param variableValues variable values
+   * @param parameterObject a parameter object
+   * @return a bound SQL, or null if a variable is not found
+   */
+  DomaBoundSql createBoundSql(DomaVariableValues variableValues, Object parameterObject) {
+    List<ParameterMapping> mappings = new ArrayList<>(variableNames.length);
+    List<Object> values = new ArrayList<>(variableNames.length);
+    for (int i = 0; i < variableNames.length; i++) {
+      Value value = variableValues.getValue(variableNames[i]);
+      if (value == null) {
+        return null;
+      }
+      mappings.add(getParameterMapping(i, value.getType()));
+      values.add(value.getValue());
+    }
+    return new DomaBoundSql(configuration, sql, mappings, parameterObject, values);
+  }
+
+  private ParameterMapping getParameterMapping(int index, Class<?> valueClass) {
+    CachedMapping cached = parameterMappings.get(index);
+    if (cached == null || cached.valueClass != valueClass) {
+      cached =
+          new CachedMapping(valueClass, typeHandlers.getParameterMapping(index, valueClass));
+      parameterMappings.set(index, cached);
+    }
+    return cached.parameterMapping;
+  }
+
+  private static final class CachedMapping {
+    final Class<?> valueClass;
+    final ParameterMapping parameterMapping;
+
+    CachedMapping(Class<?> valueClass, ParameterMapping parameterMapping) {
+      this.valueClass = valueClass;
+      this.parameterMapping = parameterMapping;
+    }
+  }
+}
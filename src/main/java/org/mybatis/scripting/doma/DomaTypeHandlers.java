@@ -0,0 +1,267 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.ObjectTypeHandler;
+import org.apache.ibatis.type.TypeException;
+import org.apache.ibatis.type.TypeHandler;
+import org.apache.ibatis.type.TypeHandlerRegistry;
+import org.seasar.doma.Domain;
+import org.seasar.doma.internal.expr.Value;
+import org.seasar.doma.wrapper.Wrapper;
+
+/**
+ * Resolves the MyBatis {@link TypeHandler} that binds the values of each class, once per class.
+ *
+ * <p>A class is bound by the type handler registered for it in the {@link TypeHandlerRegistry} of
+ * the configuration, so that dates, decimals, UUIDs and custom types are set with their native
+ * {@link PreparedStatement} setters. Otherwise, a Doma domain class annotated with {@link Domain}
+ * is bound as the value of its accessor method, a Doma {@link Wrapper} or {@link Value} as the
+ * value that it holds, and anything else with {@link PreparedStatement#setObject}.
+ *
+ * <p>The parameter mappings are cached as well, per class and placeholder index.
+ */
+final class DomaTypeHandlers {
+  private static final TypeHandler<Object> OBJECT_TYPE_HANDLER = new ObjectTypeHandler();
+
+  private final Configuration configuration;
+  private final TypeHandlerRegistry registry;
+  private final ConcurrentMap<Class<?>, Binding> bindings = new ConcurrentHashMap<>();
+
+  DomaTypeHandlers(Configuration configuration) {
+    this.configuration = configuration;
+    this.registry = configuration.getTypeHandlerRegistry();
+  }
+
+  /**
+   * @param index the index of the placeholder
+   * @param javaType the class of the value, or null if it is unknown
+   * @return the mapping of the placeholder. Must not be null.
+   */
+  ParameterMapping getParameterMapping(int index, Class<?> javaType) {
+    Binding binding = getBinding(javaType == null ? Object.class : javaType);
+    ParameterMapping[] mappings = binding.mappings;
+    ParameterMapping mapping = index < mappings.length ? mappings[index] : null;
+    if (mapping == null) {
+      mapping =
+          new ParameterMapping.Builder(
+                  configuration, DomaSqlSource.PARAMETER_PREFIX + index, binding.typeHandler)
+              .javaType(binding.javaType)
+              .build();
+      // racing threads may drop each other's mappings, which are created again
+      mappings = index < mappings.length ? mappings.clone() : Arrays.copyOf(mappings, index + 1);
+      mappings[index] = mapping;
+      binding.mappings = mappings;
+    }
+    return mapping;
+  }
+
+  /**
+   * @param javaType the class of a value. Must not be null.
+   * @return the type handler that binds the values of the class. Must not be null.
+   */
+  TypeHandler<?> getTypeHandler(Class<?> javaType) {
+    return getBinding(javaType).typeHandler;
+  }
+
+  private Binding getBinding(Class<?> javaType) {
+    Binding binding = bindings.get(javaType);
+    if (binding == null) {
+      // not computed in the map, since a domain class resolves the class of its value
+      binding = resolve(DomaCompiledExpression.box(javaType));
+      Binding existing = bindings.putIfAbsent(javaType, binding);
+      if (existing != null) {
+        binding = existing;
+      }
+    }
+    return binding;
+  }
+
+  private Binding resolve(Class<?> javaType) {
+    if (javaType != Object.class && registry.hasTypeHandler(javaType)) {
+      return new Binding(javaType, registry.getTypeHandler(javaType));
+    }
+    Domain domain = javaType.getAnnotation(Domain.class);
+    if (domain != null) {
+      try {
+        Method accessor = javaType.getMethod(domain.accessorMethod());
+        return new Binding(
+            javaType,
+            new DomainTypeHandler(
+                javaType, domain, accessor, getTypeHandler(domain.valueType())));
+      } catch (NoSuchMethodException e) {
+        throw new TypeException(
+            "The domain class " + javaType.getName() + " has no accessor method.", e);
+      }
+    }
+    if (Wrapper.class.isAssignableFrom(javaType) || Value.class.isAssignableFrom(javaType)) {
+      return new Binding(javaType, new UnwrappingTypeHandler(this));
+    }
+    return new Binding(Object.class, OBJECT_TYPE_HANDLER);
+  }
+
+  private static final class Binding {
+    final Class<?> javaType;
+    final TypeHandler<?> typeHandler;
+    volatile ParameterMapping[] mappings = new ParameterMapping[0];
+
+    Binding(Class<?> javaType, TypeHandler<?> typeHandler) {
+      this.javaType = javaType;
+      this.typeHandler = typeHandler;
+    }
+  }
+
+  /**
+   * Binds a Doma domain object as the value of its accessor method, and reads a value as a domain
+   * object created by its factory method or constructor.
+   */
+  private static final class DomainTypeHandler implements TypeHandler<Object> {
+    private final Class<?> domainClass;
+    private final Domain domain;
+    private final Method accessor;
+    private final TypeHandler<Object> valueTypeHandler;
+    // resolved on the first read, since most domains are only bound
+    private volatile Executable factory;
+
+    @SuppressWarnings("unchecked")
+    DomainTypeHandler(
+        Class<?> domainClass, Domain domain, Method accessor, TypeHandler<?> valueTypeHandler) {
+      this.domainClass = domainClass;
+      this.domain = domain;
+      this.accessor = accessor;
+      this.valueTypeHandler = (TypeHandler<Object>) valueTypeHandler;
+    }
+
+    @Override
+    public void setParameter(PreparedStatement ps, int i, Object parameter, JdbcType jdbcType)
+        throws SQLException {
+      Object value;
+      try {
+        value = parameter == null ? null : accessor.invoke(parameter);
+      } catch (IllegalAccessException | InvocationTargetException e) {
+        throw new TypeException("Could not get the value of the domain " + parameter, e);
+      }
+      valueTypeHandler.setParameter(ps, i, value, jdbcType);
+    }
+
+    @Override
+    public Object getResult(ResultSet rs, String columnName) throws SQLException {
+      return toDomain(valueTypeHandler.getResult(rs, columnName));
+    }
+
+    @Override
+    public Object getResult(ResultSet rs, int columnIndex) throws SQLException {
+      return toDomain(valueTypeHandler.getResult(rs, columnIndex));
+    }
+
+    @Override
+    public Object getResult(CallableStatement cs, int columnIndex) throws SQLException {
+      return toDomain(valueTypeHandler.getResult(cs, columnIndex));
+    }
+
+    private Object toDomain(Object value) {
+      if (value == null) {
+        return null;
+      }
+      try {
+        Executable executable = getFactory();
+        if (executable instanceof Constructor) {
+          return ((Constructor<?>) executable).newInstance(value);
+        }
+        return ((Method) executable).invoke(null, value);
+      } catch (ReflectiveOperationException e) {
+        throw new TypeException(
+            "Could not create the domain " + domainClass.getName() + " of " + value, e);
+      }
+    }
+
+    private Executable getFactory() throws NoSuchMethodException {
+      Executable result = factory;
+      if (result == null) {
+        // Doma names the constructor "new"
+        result =
+            "new".equals(domain.factoryMethod())
+                ? domainClass.getDeclaredConstructor(domain.valueType())
+                : domainClass.getDeclaredMethod(domain.factoryMethod(), domain.valueType());
+        result.setAccessible(true);
+        factory = result;
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Binds a Doma {@link Wrapper} or {@link Value} as the value that it holds. A read has no wrapper
+   * to fill, so it returns the value as {@link ObjectTypeHandler} reads it.
+   */
+  private static final class UnwrappingTypeHandler implements TypeHandler<Object> {
+    private final DomaTypeHandlers typeHandlers;
+
+    UnwrappingTypeHandler(DomaTypeHandlers typeHandlers) {
+      this.typeHandlers = typeHandlers;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void setParameter(PreparedStatement ps, int i, Object parameter, JdbcType jdbcType)
+        throws SQLException {
+      Object value;
+      Class<?> valueClass;
+      if (parameter instanceof Wrapper) {
+        value = ((Wrapper<?>) parameter).get();
+        valueClass = ((Wrapper<?>) parameter).getBasicClass();
+      } else if (parameter instanceof Value) {
+        value = ((Value) parameter).getValue();
+        valueClass = ((Value) parameter).getType();
+      } else {
+        value = parameter;
+        valueClass = Object.class;
+      }
+      TypeHandler<Object> typeHandler =
+          (TypeHandler<Object>) typeHandlers.getTypeHandler(valueClass);
+      typeHandler.setParameter(ps, i, value, jdbcType);
+    }
+
+    @Override
+    public Object getResult(ResultSet rs, String columnName) throws SQLException {
+      return OBJECT_TYPE_HANDLER.getResult(rs, columnName);
+    }
+
+    @Override
+    public Object getResult(ResultSet rs, int columnIndex) throws SQLException {
+      return OBJECT_TYPE_HANDLER.getResult(rs, columnIndex);
+    }
+
+    @Override
+    public Object getResult(CallableStatement cs, int columnIndex) throws SQLException {
+      return OBJECT_TYPE_HANDLER.getResult(cs, columnIndex);
+    }
+  }
+}
@@ -16,45 +16,87 @@
 package org.mybatis.scripting.doma;
 
 import java.util.function.Function;
-import org.apache.ibatis.reflection.MetaObject;
 import org.apache.ibatis.reflection.ReflectionException;
 import org.apache.ibatis.session.Configuration;
+import org.seasar.doma.internal.expr.Value;
 
 @FunctionalInterface
 public interface ParameterResolver extends Function<String, Object> {
   static final ParameterResolver nullResolver = (name) -> null;
 
-  // TODO FIXME parameterTypeClass???
+  /** The value of a property that exists and is null, which Doma resolves as a null variable. */
+  static final Value NULL_VALUE = new Value(Object.class, null);
 
   public static ParameterResolver of(
       Configuration configuration, Object parameterObject, Class<?> parameterTypeClass) {
     if (parameterObject == null) {
       return nullResolver;
     }
-
-    MetaObject metaObject = configuration.newMetaObject(parameterObject);
-    boolean existsTypeHandler =
-        configuration.getTypeHandlerRegistry().hasTypeHandler(parameterTypeClass);
-    return new BeanResolver(metaObject, existsTypeHandler);
+    return new BeanResolver().reset(configuration, parameterObject, parameterTypeClass);
   }
 
   class BeanResolver implements ParameterResolver {
-    private final MetaObject parameterMetaObject;
-    private final boolean fallbackParameterObject;
+    private Configuration configuration;
+    private Object parameterObject;
+    private PropertyAccessors accessors;
+    private boolean fallbackParameterObject;
+
+    /** Creates a resolver to be {@linkplain #reset reset}. */
+    BeanResolver() {}
+
+    /**
+     * Resolves the properties of another parameter object, so that a resolver is reused by the
+     * variable values that are reused.
+     *
+     * @param configuration a configuration
+     * @param parameterObject a parameter object. Must not be null.
+     * @param parameterTypeClass the declared type of the parameter object
+     * @return this resolver
+     */
+    BeanResolver reset(
+        Configuration configuration, Object parameterObject, Class<?> parameterTypeClass) {
+      // Object means that the parameter type is not declared, so check the actual class
+      Class<?> type =
+          parameterTypeClass == null || parameterTypeClass == Object.class
+              ? parameterObject.getClass()
+              : parameterTypeClass;
+      this.configuration = configuration;
+      this.parameterObject = parameterObject;
+      this.accessors = PropertyAccessors.forClass(parameterObject.getClass());
+      this.fallbackParameterObject = configuration.getTypeHandlerRegistry().hasTypeHandler(type);
+      return this;
+    }
 
-    BeanResolver(MetaObject parameterMetaObject, boolean fallbackParameterObject) {
-      this.parameterMetaObject = parameterMetaObject;
-      this.fallbackParameterObject = fallbackParameterObject;
+    /** Forgets the parameter object. */
+    void clear() {
+      configuration = null;
+      parameterObject = null;
+      accessors = null;
     }
 
     @Override
     public Object apply(String key) {
       try {
-        if (fallbackParameterObject && !parameterMetaObject.hasGetter(key)) {
-          return parameterMetaObject.getOriginalObject();
-        } else {
-          return parameterMetaObject.getValue(key);
+        if (key.indexOf('[') >= 0) {
+          // indexed properties are left to MetaObject
+          return configuration.newMetaObject(parameterObject).getValue(key);
+        }
+        int end = key.indexOf('.');
+        String name = end < 0 ? key : key.substring(0, end);
+        Object value = accessors.getValue(parameterObject, name);
+        if (value == PropertyAccessors.NOT_FOUND) {
+          return fallbackParameterObject ? parameterObject : null;
+        }
+        while (end >= 0 && value != null) {
+          int start = end + 1;
+          end = key.indexOf('.', start);
+          name = end < 0 ? key.substring(start) : key.substring(start, end);
+          value = PropertyAccessors.forClass(value.getClass()).getValue(value, name);
+          if (value == PropertyAccessors.NOT_FOUND) {
+            return null;
+          }
         }
+        return value == null ? NULL_VALUE : value;
       } catch (ReflectionException e) {
         return null;
       }
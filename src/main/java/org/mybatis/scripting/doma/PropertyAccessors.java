@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.ibatis.binding.MapperMethod.ParamMap;
+import org.apache.ibatis.reflection.ReflectionException;
+
+/**
+ * The property accessors of a class, compiled once into {@link MethodHandle}s and cached per class.
+ *
+ * <p>Properties are resolved like the {@code Reflector} of MyBatis: getter methods ({@code getXxx}
+ * and {@code isXxx}) take precedence over fields, and non-public members are made accessible.
+ * Record components are resolved by their accessor methods. {@link Map}s are accessed by key.
+ */
+final class PropertyAccessors {
+  /** Returned by {@link #getValue(Object, String)} when the property does not exist. */
+  static final Object NOT_FOUND = new Object();
+
+  private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+  private static final ClassValue<PropertyAccessors> accessors =
+      new ClassValue<PropertyAccessors>() {
+        @Override
+        protected PropertyAccessors computeValue(Class<?> type) {
+          return new PropertyAccessors(type);
+        }
+      };
+
+  private final Class<?> type;
+  private final Map<String, MethodHandle> getters;
+
+  private PropertyAccessors(Class<?> type) {
+    this.type = type;
+    this.getters = Map.class.isAssignableFrom(type) ? null : collectGetters(type);
+  }
+
+  /**
+   * @param type a class
+   * @return the accessors of the class. Must not be null.
+   */
+  static PropertyAccessors forClass(Class<?> type) {
+    return accessors.get(type);
+  }
+
+  /**
+   * @param target an instance of the class
+   * @param name a property name, not a nested path
+   * @return the value, or {@link #NOT_FOUND} if the property does not exist
+   */
+  Object getValue(Object target, String name) {
+    if (getters == null) {
+      Map<?, ?> map = (Map<?, ?>) target;
+      if (map instanceof ParamMap && !map.containsKey(name)) {
+        return NOT_FOUND;
+      }
+      Object value = map.get(name);
+      // a key mapped to null is found, so that Doma resolves it as a null variable
+      return value == null && !map.containsKey(name) ? NOT_FOUND : value;
+    }
+    MethodHandle getter = getters.get(name);
+    if (getter == null) {
+      return NOT_FOUND;
+    }
+    try {
+      return getter.invokeExact(target);
+    } catch (Throwable t) {
+      throw new ReflectionException(
+          "Could not get property '" + name + "' from " + type + ".  Cause: " + t, t);
+    }
+  }
+
+  private static Map<String, MethodHandle> collectGetters(Class<?> type) {
+    Map<String, MethodHandle> getters = new HashMap<>();
+    boolean isRecord =
+        type.getSuperclass() != null && type.getSuperclass().getName().equals("java.lang.Record");
+    for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Method method : c.getDeclaredMethods()) {
+        String name = getPropertyName(method, isRecord && c == type);
+        if (name != null && !getters.containsKey(name)) {
+          putGetter(getters, name, method);
+        }
+      }
+    }
+    for (Class<?> i : type.getInterfaces()) {
+      for (Method method : i.getMethods()) {
+        String name = getPropertyName(method, false);
+        if (name != null && !getters.containsKey(name)) {
+          putGetter(getters, name, method);
+        }
+      }
+    }
+    for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+      for (Field field : c.getDeclaredFields()) {
+        String name = field.getName();
+        if (!Modifier.isStatic(field.getModifiers())
+            && !field.isSynthetic()
+            && !getters.containsKey(name)) {
+          putGetter(getters, name, field);
+        }
+      }
+    }
+    return getters;
+  }
+
+  private static String getPropertyName(Method method, boolean isRecord) {
+    if (method.getParameterCount() != 0
+        || method.getReturnType() == void.class
+        || method.isBridge()
+        || method.isSynthetic()
+        || Modifier.isStatic(method.getModifiers())) {
+      return null;
+    }
+    String name = method.getName();
+    if (name.startsWith("get") && name.length() > 3) {
+      return decapitalize(name.substring(3));
+    }
+    if (name.startsWith("is") && name.length() > 2) {
+      return decapitalize(name.substring(2));
+    }
+    return isRecord ? name : null;
+  }
+
+  private static String decapitalize(String name) {
+    if (name.length() == 1 || !Character.isUpperCase(name.charAt(1))) {
+      return name.substring(0, 1).toLowerCase(Locale.ENGLISH) + name.substring(1);
+    }
+    return name;
+  }
+
+  private static void putGetter(
+      Map<String, MethodHandle> getters, String name, AccessibleObject member) {
+    try {
+      member.setAccessible(true);
+    } catch (RuntimeException e) {
+      // not accessible, e.g. a member of a module that is not opened
+      return;
+    }
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodHandle getter =
+          member instanceof Method
+              ? lookup.unreflect((Method) member)
+              : lookup.unreflectGetter((Field) member);
+      getters.put(name, getter.asType(GETTER_TYPE));
+    } catch (IllegalAccessException e) {
+      // skip inaccessible members like the Reflector of MyBatis
+    }
+  }
+}
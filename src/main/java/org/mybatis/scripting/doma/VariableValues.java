@@ -15,19 +15,93 @@
  */
 package org.mybatis.scripting.doma;
 
+import java.util.Arrays;
 import org.apache.ibatis.session.Configuration;
 import org.seasar.doma.internal.expr.Value;
 
+/**
+ * The variable values resolved from a parameter object.
+ *
+ * <p>Each distinct name is resolved at most once; the results are memoized in a small
+ * open-addressing table. An instance is meant for a single rendering at a time and is not
+ * thread-safe, but it may be {@linkplain #reset reset} for the next rendering.
+ */
 public class VariableValues implements DomaVariableValues {
-  final ParameterResolver resolver;
+  private static final int INITIAL_CAPACITY = 8;
+  private static final Value NOT_FOUND = new Value(Object.class, null);
+
+  private ParameterResolver resolver;
+  // reused by the values that are reset
+  private ParameterResolver.BeanResolver beanResolver;
+  private String[] names;
+  private Value[] values;
+  private int size;
 
   public VariableValues(
       Configuration configuration, Object parameterObject, Class<?> parameterTypeClass) {
     this.resolver = ParameterResolver.of(configuration, parameterObject, parameterTypeClass);
   }
 
+  /** Creates variable values without a parameter object, to be {@linkplain #reset reset}. */
+  VariableValues() {
+    this.resolver = ParameterResolver.nullResolver;
+  }
+
+  /**
+   * Resolves the values of another parameter object, reusing the memo table.
+   *
+   * @param configuration a configuration
+   * @param parameterObject a parameter object
+   * @param parameterTypeClass the declared type of the parameter object
+   */
+  void reset(Configuration configuration, Object parameterObject, Class<?> parameterTypeClass) {
+    clear();
+    if (parameterObject != null) {
+      if (beanResolver == null) {
+        beanResolver = new ParameterResolver.BeanResolver();
+      }
+      resolver = beanResolver.reset(configuration, parameterObject, parameterTypeClass);
+    }
+  }
+
+  /** Forgets the parameter object and the resolved values. */
+  void clear() {
+    if (size > 0) {
+      Arrays.fill(names, null);
+      Arrays.fill(values, null);
+      size = 0;
+    }
+    resolver = ParameterResolver.nullResolver;
+    if (beanResolver != null) {
+      beanResolver.clear();
+    }
+  }
+
   @Override
   public Value getValue(String name) {
+    if (names == null) {
+      names = new String[INITIAL_CAPACITY];
+      values = new Value[INITIAL_CAPACITY];
+    }
+    int mask = names.length - 1;
+    int index = name.hashCode() & mask;
+    for (String cached = names[index]; cached != null; cached = names[index]) {
+      if (cached == name || cached.equals(name)) {
+        Value value = values[index];
+        return value == NOT_FOUND ? null : value;
+      }
+      index = (index + 1) & mask;
+    }
+    Value value = resolve(name);
+    names[index] = name;
+    values[index] = value == null ? NOT_FOUND : value;
+    if (++size * 2 > names.length) {
+      grow();
+    }
+    return value;
+  }
+
+  private Value resolve(String name) {
     Object obj = resolver.apply(name);
     if (obj == null) {
       return null;
@@ -37,4 +111,22 @@ public class VariableValues implements DomaVariableValues {
     }
     return new Value(obj.getClass(), obj);
   }
+
+  private void grow() {
+    String[] oldNames = names;
+    Value[] oldValues = values;
+    names = new String[oldNames.length * 2];
+    values = new Value[oldValues.length * 2];
+    int mask = names.length - 1;
+    for (int i = 0; i < oldNames.length; i++) {
+      if (oldNames[i] != null) {
+        int index = oldNames[i].hashCode() & mask;
+        while (names[index] != null) {
+          index = (index + 1) & mask;
+        }
+        names[index] = oldNames[i];
+        values[index] = oldValues[i];
+      }
+    }
+  }
 }
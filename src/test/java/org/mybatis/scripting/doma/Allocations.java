@@ -0,0 +1,46 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import java.lang.management.ManagementFactory;
+
+/** Measures the bytes allocated by the current thread, for the allocation budget tests. */
+final class Allocations {
+
+  private Allocations() {}
+
+  /**
+   * Runs a call repeatedly, first to warm it up, and returns the bytes it allocated per call.
+   *
+   * @param call the call to measure
+   * @param warmUpCalls the number of calls before measuring
+   * @param calls the number of calls measured
+   * @return the average bytes allocated per measured call
+   */
+  static long allocatedBytesPerCall(Runnable call, int warmUpCalls, int calls) {
+    com.sun.management.ThreadMXBean threadMXBean =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    long threadId = Thread.currentThread().getId();
+    for (int i = 0; i < warmUpCalls; i++) {
+      call.run();
+    }
+    long start = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < calls; i++) {
+      call.run();
+    }
+    return (threadMXBean.getThreadAllocatedBytes(threadId) - start) / calls;
+  }
+}
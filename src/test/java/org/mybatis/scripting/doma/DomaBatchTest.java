@@ -0,0 +1,205 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.ibatis.datasource.unpooled.UnpooledDataSource;
+import org.apache.ibatis.executor.BatchResult;
+import org.apache.ibatis.mapping.Environment;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ExecutorType;
+import org.apache.ibatis.session.SqlSession;
+import org.apache.ibatis.session.SqlSessionFactory;
+import org.apache.ibatis.session.SqlSessionFactoryBuilder;
+import org.apache.ibatis.transaction.jdbc.JdbcTransactionFactory;
+import org.junit.jupiter.api.Test;
+
+class DomaBatchTest {
+  private static final String URL = "jdbc:hsqldb:mem:batch";
+
+  private static final String INSERT =
+      "insert into person (id, name /*%if note != null*/, note /*%end*/)"
+          + " values (/* id */0, /* name */'' /*%if note != null*/, /* note */'' /*%end*/)";
+
+  private static final int ROWS = 10000;
+
+  private static SqlSessionFactory createSqlSessionFactory(DomaLanguageDriverConfig driverConfig) {
+    Configuration configuration =
+        new Configuration(
+            new Environment(
+                "test",
+                new JdbcTransactionFactory(),
+                new UnpooledDataSource("org.hsqldb.jdbcDriver", URL, "sa", "")));
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    configuration.addMappedStatement(
+        new MappedStatement.Builder(
+                configuration,
+                "insert",
+                driver.createSqlSource(configuration, INSERT, Map.class),
+                SqlCommandType.INSERT)
+            .lang(driver)
+            .build());
+    return new SqlSessionFactoryBuilder().build(configuration);
+  }
+
+  private static List<Map<String, Object>> rows() {
+    List<Map<String, Object>> rows = new ArrayList<>();
+    for (int i = 0; i < ROWS; i++) {
+      Map<String, Object> row = new HashMap<>();
+      row.put("id", i);
+      row.put("name", "name" + i);
+      row.put("note", i % 2 == 0 ? null : "note" + i);
+      rows.add(row);
+    }
+    return rows;
+  }
+
+  private static void recreateTable() throws Exception {
+    try (Connection connection = DriverManager.getConnection(URL, "sa", "");
+        Statement statement = connection.createStatement()) {
+      statement.execute("drop table person if exists");
+      statement.execute(
+          "create table person (id integer primary key, name varchar(20), note varchar(20))");
+    }
+  }
+
+  private static int countRows() throws Exception {
+    try (Connection connection = DriverManager.getConnection(URL, "sa", "");
+        Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("select count(*) from person")) {
+      resultSet.next();
+      return resultSet.getInt(1);
+    }
+  }
+
+  private static int countUpdates(List<BatchResult> batchResults) {
+    int updates = 0;
+    for (BatchResult batchResult : batchResults) {
+      for (int count : batchResult.getUpdateCounts()) {
+        updates += count;
+      }
+    }
+    return updates;
+  }
+
+  @Test
+  void batchInsert() throws Exception {
+    // values inlined as literals: every row renders different SQL
+    recreateTable();
+    SqlSessionFactory inlineFactory =
+        createSqlSessionFactory(DomaLanguageDriverConfig.newInstance(config -> {}));
+    long start = System.nanoTime();
+    List<BatchResult> inlineResults;
+    try (SqlSession sqlSession = inlineFactory.openSession(ExecutorType.BATCH)) {
+      for (Map<String, Object> row : rows()) {
+        sqlSession.insert("insert", row);
+      }
+      inlineResults = sqlSession.flushStatements();
+      sqlSession.commit();
+    }
+    long inlineNanos = System.nanoTime() - start;
+    assertEquals(ROWS, inlineResults.size());
+    assertEquals(ROWS, countRows());
+
+    // bound values grouped by SQL on request: one batch per %if branch
+    recreateTable();
+    SqlSessionFactory batchFactory =
+        createSqlSessionFactory(
+            DomaLanguageDriverConfig.newInstance(
+                config -> {
+                  config.setBindParameters(true);
+                  config.setShapeCacheSize(16);
+                  config.setMetrics(true);
+                }));
+    start = System.nanoTime();
+    List<BatchResult> batchResults;
+    try (SqlSession sqlSession = batchFactory.openSession(ExecutorType.BATCH)) {
+      batchResults = DomaBatch.execute(sqlSession, "insert", rows(), true);
+      sqlSession.commit();
+    }
+    long batchNanos = System.nanoTime() - start;
+    assertEquals(2, batchResults.size());
+    assertEquals(ROWS, countUpdates(batchResults));
+    assertEquals(ROWS, countRows());
+    // each row is rendered once, for the grouping
+    DomaSqlSource sqlSource =
+        (DomaSqlSource) batchFactory.getConfiguration().getMappedStatement("insert").getSqlSource();
+    assertEquals(ROWS, sqlSource.getMetrics().getTotal().getCount());
+
+    assertTrue(
+        batchNanos < inlineNanos,
+        "inline=" + inlineNanos / 1000000 + "ms, batch=" + batchNanos / 1000000 + "ms");
+  }
+
+  @Test
+  void consecutiveRows() throws Exception {
+    recreateTable();
+    SqlSessionFactory factory =
+        createSqlSessionFactory(
+            DomaLanguageDriverConfig.newInstance(
+                config -> {
+                  config.setBindParameters(true);
+                  config.setMetrics(true);
+                }));
+    List<Map<String, Object>> rows = rows().subList(0, 10);
+    // three consecutive rows with a note
+    rows.get(4).put("note", "note4");
+    List<BatchResult> batchResults;
+    try (SqlSession sqlSession = factory.openSession(ExecutorType.BATCH)) {
+      batchResults = DomaBatch.execute(sqlSession, "insert", rows);
+      sqlSession.commit();
+    }
+    // the rows are executed in order, so only consecutive rows with the same SQL share a batch
+    assertEquals(8, batchResults.size());
+    assertEquals(rows.subList(3, 6), batchResults.get(3).getParameterObjects());
+    for (int i = 1; i < batchResults.size(); i++) {
+      assertNotEquals(batchResults.get(i - 1).getSql(), batchResults.get(i).getSql());
+    }
+    assertEquals(10, countUpdates(batchResults));
+    assertEquals(10, countRows());
+    DomaSqlSource sqlSource =
+        (DomaSqlSource) factory.getConfiguration().getMappedStatement("insert").getSqlSource();
+    assertEquals(10, sqlSource.getMetrics().getTotal().getCount());
+  }
+
+  @Test
+  void alternatingShapesWithoutGrouping() throws Exception {
+    recreateTable();
+    SqlSessionFactory factory =
+        createSqlSessionFactory(
+            DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true)));
+    try (SqlSession sqlSession = factory.openSession(ExecutorType.BATCH)) {
+      List<Map<String, Object>> rows = rows().subList(0, 10);
+      for (Map<String, Object> row : rows) {
+        sqlSession.insert("insert", row);
+      }
+      assertEquals(10, sqlSession.flushStatements().size());
+      sqlSession.commit();
+    }
+    assertEquals(10, countRows());
+  }
+}
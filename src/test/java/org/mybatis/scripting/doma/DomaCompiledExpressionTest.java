@@ -0,0 +1,209 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.seasar.doma.internal.expr.EvaluationResult;
+import org.seasar.doma.internal.expr.ExpressionException;
+import org.seasar.doma.internal.expr.ExpressionEvaluator;
+import org.seasar.doma.internal.expr.ExpressionParser;
+import org.seasar.doma.internal.expr.Value;
+import org.seasar.doma.jdbc.ClassHelper;
+import org.seasar.doma.jdbc.dialect.StandardDialect;
+import org.seasar.doma.message.Message;
+
+class DomaCompiledExpressionTest {
+
+  private static final ExpressionEvaluator CONSTANT_EVALUATOR =
+      new ExpressionEvaluator(
+          new StandardDialect().getExpressionFunctions(), new ClassHelper() {});
+
+  private static DomaCompiledExpression compile(String expression) {
+    return DomaCompiledExpression.compile(
+        new ExpressionParser(expression).parse(), CONSTANT_EVALUATOR);
+  }
+
+  private static ExpressionEvaluator evaluator(Map<String, Object> variables) {
+    return new DomaExpressionEvaluator(
+        (name) -> {
+          if (!variables.containsKey(name)) {
+            return null;
+          }
+          Object value = variables.get(name);
+          return new Value(value == null ? Object.class : value.getClass(), value);
+        },
+        new StandardDialect().getExpressionFunctions(),
+        new ClassHelper() {});
+  }
+
+  @Test
+  void sameResultsAsDoma() {
+    List<String> expressions =
+        Arrays.asList(
+            "name != null && name.length() > 2",
+            "name == null || name.isEmpty()",
+            "!flag",
+            "count >= 10 && count < 20",
+            "name == \"x\"",
+            "name.startsWith(\"ab\")",
+            "name.substring(1, 3) == \"bc\"",
+            "count + 1 > 10",
+            "@isNotEmpty(name)",
+            "price > 1.5B",
+            "(flag || count == 0) && name != null");
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("flag", true);
+    variables.put("count", 12);
+    variables.put("price", new java.math.BigDecimal("2.5"));
+    for (Object name : Arrays.asList("abcd", "", null)) {
+      variables.put("name", name);
+      ExpressionEvaluator evaluator = evaluator(variables);
+      for (String expression : expressions) {
+        assertSameAsDoma(expression, evaluator, expression + " with " + name);
+      }
+    }
+  }
+
+  // the compiled expression returns the value of Doma, or throws the same error
+  private static void assertSameAsDoma(
+      String expression, ExpressionEvaluator evaluator, String message) {
+    EvaluationResult expected;
+    try {
+      expected = evaluator.evaluate(new ExpressionParser(expression).parse());
+    } catch (ExpressionException e) {
+      ExpressionException actual =
+          assertThrows(
+              ExpressionException.class, () -> compile(expression).evaluate(evaluator), message);
+      assertEquals(e.getMessageResource(), actual.getMessageResource(), message);
+      return;
+    }
+    assertEquals(expected.getValue(), compile(expression).evaluate(evaluator).getValue(), message);
+  }
+
+  @Test
+  void sameErrorsAsDoma() {
+    List<String> expressions =
+        Arrays.asList(
+            "count < 20L",
+            "count == 12L",
+            "name == 'x'",
+            "missing != null",
+            "name.unknown()",
+            "name.length() > \"a\"",
+            "count / 0 > 1",
+            "name + count",
+            "nothing.length() > 0",
+            "name.charAt(10) == 'c'");
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("count", 12);
+    variables.put("name", "abc");
+    variables.put("nothing", null);
+    ExpressionEvaluator evaluator = evaluator(variables);
+    for (String expression : expressions) {
+      assertThrows(
+          ExpressionException.class,
+          () -> evaluator.evaluate(new ExpressionParser(expression).parse()),
+          expression);
+      assertSameAsDoma(expression, evaluator, expression);
+    }
+  }
+
+  @Test
+  void constantFolding() {
+    assertTrue(compile("1 == 1 && (true || false)").isConstant());
+    assertTrue(compile("'a' != null").isConstant());
+    assertFalse(compile("name != null").isConstant());
+    assertFalse(compile("\"abc\".length() > 2").isConstant());
+    assertEquals(true, compile("!false").evaluate(evaluator(new HashMap<>())).getValue());
+  }
+
+  @Test
+  void methodResolutionPerClass() {
+    DomaCompiledExpression expression = compile("value.length()");
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("value", "abc");
+    assertEquals(3, expression.evaluate(evaluator(variables)).getValue());
+    variables.put("value", new StringBuilder("abcde"));
+    assertEquals(5, expression.evaluate(evaluator(variables)).getValue());
+    variables.put("value", "ab");
+    assertEquals(2, expression.evaluate(evaluator(variables)).getValue());
+  }
+
+  @Test
+  void methodOfNonPublicClass() {
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("list", Arrays.asList(1, 2));
+    assertEquals(false, compile("list.isEmpty()").evaluate(evaluator(variables)).getValue());
+    assertEquals(2, compile("list.size()").evaluate(evaluator(variables)).getValue());
+  }
+
+  @Test
+  void methodCalledOnce() {
+    Counter counter = new Counter();
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("counter", counter);
+    ExpressionEvaluator evaluator = evaluator(variables);
+    // Doma compares the decimals, and takes the non-boolean value for false
+    assertEquals(true, compile("counter.next() > 0.5B").evaluate(evaluator).getValue());
+    assertEquals(false, compile("counter.next() && true").evaluate(evaluator).getValue());
+    assertEquals(2, counter.count);
+    ExpressionException e =
+        assertThrows(
+            ExpressionException.class, () -> compile("counter.fail()").evaluate(evaluator));
+    assertEquals(Message.DOMA3001, e.getMessageResource());
+    assertEquals(3, counter.count);
+  }
+
+  public static class Counter {
+    int count;
+
+    public BigDecimal next() {
+      count++;
+      return BigDecimal.ONE;
+    }
+
+    public boolean fail() {
+      count++;
+      throw new IllegalStateException();
+    }
+  }
+
+  @Test
+  void templateExpressions() {
+    String sql =
+        "select * from emp where /*%if name != null */name = /* name */'' /*%end*/"
+            + " /*%for id : ids */ /* id */1 /*%end*/";
+    DomaSqlTemplate template = new DomaSqlTemplate(sql);
+    Map<String, Object> variables = new HashMap<>();
+    variables.put("name", "abc");
+    variables.put("ids", Arrays.asList(1, 2));
+    DomaSqlShapeEvaluator shapeEvaluator =
+        template.createShapeEvaluator(
+            (name) -> {
+              Object value = variables.get(name);
+              return value == null ? null : new Value(value.getClass(), value);
+            });
+    assertNotNull(shapeEvaluator.evaluate(template.getSqlNode()));
+    assertEquals(Arrays.asList("abc", 1, 2), shapeEvaluator.getParameterValues());
+  }
+}
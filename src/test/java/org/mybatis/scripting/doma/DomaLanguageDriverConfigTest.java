@@ -16,14 +16,19 @@
 package org.mybatis.scripting.doma;
 
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrowsExactly;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.util.Properties;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.seasar.doma.internal.expr.Value;
+import org.seasar.doma.jdbc.SqlLogType;
 import org.seasar.doma.jdbc.dialect.MssqlDialect;
+import org.seasar.doma.jdbc.dialect.StandardDialect;
 
 class DomaLanguageDriverConfigTest {
 
@@ -92,4 +97,74 @@ class DomaLanguageDriverConfigTest {
     config = DomaLanguageDriverConfig.newInstance(properties);
     Assertions.assertEquals(MssqlDialect.class, config.dialect.getClass());
   }
+
+  @Test
+  void newInstanceWithInListProperties() {
+    Properties properties = new Properties();
+    properties.setProperty("inListBuckets", "powerOfTwo");
+    properties.setProperty("inListPadding", "null");
+    DomaLanguageDriverConfig config = DomaLanguageDriverConfig.newInstance(properties);
+    Assertions.assertEquals("powerOfTwo", config.inListBuckets);
+    Assertions.assertEquals("null", config.inListPadding);
+
+    properties.setProperty("inListBuckets", "10,x");
+    assertThrowsExactly(
+        IllegalStateException.class,
+        () -> DomaLanguageDriverConfig.newInstance(properties),
+        "Invalid inListBuckets:10,x");
+  }
+
+  @Test
+  void newInstanceWithSqlLogProperties() {
+    Properties properties = new Properties();
+    properties.setProperty("sqlLogType", "raw");
+    properties.setProperty("sqlLogSampling", "100");
+    DomaLanguageDriverConfig config = DomaLanguageDriverConfig.newInstance(properties);
+    Assertions.assertEquals(SqlLogType.RAW, config.sqlLogType);
+    Assertions.assertEquals(100, config.sqlLogSampling);
+
+    properties.setProperty("sqlLogType", "pretty");
+    assertThrowsExactly(
+        IllegalStateException.class,
+        () -> DomaLanguageDriverConfig.newInstance(properties),
+        "Invalid sqlLogType:pretty");
+    properties.setProperty("sqlLogType", "NONE");
+    properties.setProperty("sqlLogSampling", "0");
+    assertThrowsExactly(
+        IllegalStateException.class,
+        () -> DomaLanguageDriverConfig.newInstance(properties),
+        "Invalid sqlLogSampling:0");
+  }
+
+  @Test
+  void sharedRuntime() {
+    DomaLanguageDriverConfig config = DomaLanguageDriverConfig.newInstance(new Properties());
+    assertSame(DomaRuntime.STANDARD, config.getRuntime());
+
+    config.setDialect("Mssql");
+    DomaRuntime runtime = config.getRuntime();
+    Assertions.assertEquals(MssqlDialect.class, runtime.getDialect().getClass());
+    assertSame(runtime, config.getRuntime());
+    assertSame(config.dialect, runtime.getConfig().getDialect());
+  }
+
+  @Test
+  void sharedRuntimeAllocation() {
+    String sql = "select * from emp where name = /* name */'' and salary = /* salary */0";
+    DomaVariableValues values =
+        (name) -> name.equals("name") ? new Value(String.class, "abc") : new Value(int.class, 1);
+
+    // a template of the shared runtime, as every source of a driver configuration now creates
+    long shared =
+        Allocations.allocatedBytesPerCall(
+            () -> new DomaSqlTemplate(sql, DomaRuntime.STANDARD, null).execute(values),
+            1000,
+            1000);
+    // a template with its own dialect and configuration, as every source created before
+    long perSource =
+        Allocations.allocatedBytesPerCall(
+            () -> new DomaSqlTemplate(sql, new StandardDialect()).execute(values), 1000, 1000);
+
+    assertTrue(shared < perSource, "shared=" + shared + ", perSource=" + perSource);
+  }
 }
@@ -0,0 +1,84 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.session.Configuration;
+import org.junit.jupiter.api.Test;
+
+class DomaRenderEventTest {
+  private static final String EVENT_NAME = "org.mybatis.scripting.doma.Render";
+
+  @Test
+  void renderEvents() throws Exception {
+    Configuration configuration = new Configuration();
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setShapeCacheSize(10);
+            });
+    String sql = "select * from emp where /*%if name != null*/ name = /* name */'' /*%end*/";
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    SqlSource sqlSource = driver.createSqlSource(configuration, sql, Map.class);
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "ns.select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("name", "abc");
+
+    // the id is taken from the statement when it is executed
+    BoundSql boundSql = sqlSource.getBoundSql(parameter);
+    assertNull(((DomaSqlSource) sqlSource).getStatementId());
+    driver.createParameterHandler(mappedStatement, parameter, boundSql);
+    Path file = Files.createTempFile("doma", ".jfr");
+    try (Recording recording = new Recording()) {
+      recording.enable(EVENT_NAME).withThreshold(Duration.ZERO);
+      recording.start();
+      String renderedSql = sqlSource.getBoundSql(parameter).getSql();
+      recording.stop();
+      recording.dump(file);
+
+      List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+      events.removeIf(event -> !event.getEventType().getName().equals(EVENT_NAME));
+      assertEquals(1, events.size());
+      RecordedEvent event = events.get(0);
+      assertEquals("ns.select", event.getString("statementId"));
+      assertEquals(sql.hashCode(), event.getInt("templateHash"));
+      assertEquals(renderedSql.length(), event.getInt("sqlLength"));
+      assertEquals(1, event.getInt("bindValueCount"));
+      assertTrue(event.getBoolean("shapeCacheHit"));
+    } finally {
+      Files.delete(file);
+    }
+
+    assertNull(DomaRenderRecording.begin());
+  }
+}
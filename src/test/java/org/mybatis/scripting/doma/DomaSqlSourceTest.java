@@ -0,0 +1,1386 @@
+/*
+ *    Copyright 2022 the original author or authors.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *       https://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+package org.mybatis.scripting.doma;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+import org.apache.ibatis.builder.BuilderException;
+import org.apache.ibatis.cache.CacheKey;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.executor.SimpleExecutor;
+import org.apache.ibatis.executor.parameter.ParameterHandler;
+import org.apache.ibatis.mapping.BoundSql;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.mapping.ParameterMapping;
+import org.apache.ibatis.mapping.SqlCommandType;
+import org.apache.ibatis.mapping.SqlSource;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.session.Configuration;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+import org.apache.ibatis.type.TypeHandler;
+import org.junit.jupiter.api.Test;
+import org.seasar.doma.Domain;
+import org.seasar.doma.jdbc.SqlLogType;
+
+class DomaSqlSourceTest {
+  private static final String SQL =
+      "select * from emp where name = /* name */'' and salary = /* salary */0";
+
+  Configuration configuration = new Configuration();
+
+  private Map<String, Object> parameter() {
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("name", "abc");
+    parameter.put("salary", 1234);
+    return parameter;
+  }
+
+  @Test
+  void inlineParameters() {
+    DomaLanguageDriverConfig driverConfig = DomaLanguageDriverConfig.newInstance(config -> {});
+    DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, SQL, Map.class);
+    BoundSql boundSql = sqlSource.getBoundSql(parameter());
+    assertEquals("select * from emp where name = 'abc' and salary = 1234", boundSql.getSql());
+    assertTrue(boundSql.getParameterMappings().isEmpty());
+  }
+
+  @Test
+  void bindParameters() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, SQL, Map.class);
+    BoundSql boundSql = sqlSource.getBoundSql(parameter());
+    assertEquals("select * from emp where name = ? and salary = ?", boundSql.getSql());
+    List<ParameterMapping> parameterMappings = boundSql.getParameterMappings();
+    assertEquals(2, parameterMappings.size());
+    assertEquals(String.class, parameterMappings.get(0).getJavaType());
+    assertEquals(Integer.class, parameterMappings.get(1).getJavaType());
+    assertEquals("abc", boundSql.getAdditionalParameter(parameterMappings.get(0).getProperty()));
+    assertEquals(1234, boundSql.getAdditionalParameter(parameterMappings.get(1).getProperty()));
+  }
+
+  @Test
+  void bindParametersWithParameterHandler() throws Exception {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    DomaSqlSource sqlSource =
+        (DomaSqlSource) driver.createSqlSource(configuration, SQL, Map.class);
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    Map<String, Object> parameter = parameter();
+    BoundSql boundSql = sqlSource.getBoundSql(parameter);
+
+    ParameterHandler parameterHandler =
+        driver.createParameterHandler(mappedStatement, parameter, boundSql);
+    assertTrue(parameterHandler instanceof DomaParameterHandler);
+    assertSame(parameter, parameterHandler.getParameterObject());
+
+    List<Object> values = new ArrayList<>();
+    PreparedStatement ps =
+        (PreparedStatement)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {PreparedStatement.class},
+                (proxy, method, args) -> {
+                  if (method.getName().startsWith("set")) {
+                    values.add(args[0]);
+                    values.add(args[1]);
+                  }
+                  return null;
+                });
+    parameterHandler.setParameters(ps);
+    assertEquals(4, values.size());
+    assertEquals(1, values.get(0));
+    assertEquals("abc", values.get(1));
+    assertEquals(2, values.get(2));
+    assertEquals(1234, values.get(3));
+  }
+
+  @Test
+  void typeHandlers() throws Exception {
+    configuration.getTypeHandlerRegistry().register(Code.class, new CodeTypeHandler());
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    String[] templates = {
+      "select * from emp where code = /* code */'' and salary = /* salary */0",
+      "select * from emp where /*%if code != null*/ code = /* code */'' and /*%end*/"
+          + " salary = /* salary */0",
+      // rendered by Doma
+      "select * from emp where /*# \"code\" */ = /* code */'' and salary = /* salary */0",
+    };
+    for (String sql : templates) {
+      DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, sql, Map.class);
+      Map<String, Object> parameter = new HashMap<>();
+      parameter.put("code", new Code("A1"));
+      parameter.put("salary", new Salary(new BigDecimal("12.5")));
+      DomaBoundSql boundSql = (DomaBoundSql) sqlSource.getBoundSql(parameter);
+      assertEquals(
+          "select * from emp where code = ? and salary = ?",
+          boundSql.getSql().replaceAll("\\s+", " "),
+          sql);
+      TypeHandler<?> typeHandler = boundSql.getParameterMappings().get(0).getTypeHandler();
+      assertTrue(typeHandler instanceof CodeTypeHandler);
+
+      List<Object> calls = new ArrayList<>();
+      PreparedStatement ps =
+          (PreparedStatement)
+              Proxy.newProxyInstance(
+                  getClass().getClassLoader(),
+                  new Class<?>[] {PreparedStatement.class},
+                  (proxy, method, args) -> {
+                    calls.add(method.getName());
+                    calls.add(args[1]);
+                    return null;
+                  });
+      MappedStatement mappedStatement =
+          new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+              .build();
+      new DomaParameterHandler(mappedStatement, parameter, boundSql).setParameters(ps);
+      assertEquals(
+          Arrays.asList("setString", "A1", "setBigDecimal", new BigDecimal("12.5")), calls);
+    }
+
+    // a domain is read back through its constructor
+    ResultSet rs =
+        (ResultSet)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {ResultSet.class},
+                (proxy, method, args) ->
+                    method.getName().equals("getBigDecimal") ? new BigDecimal("12.5") : null);
+    Object salary =
+        driverConfig.getTypeHandlers(configuration).getTypeHandler(Salary.class).getResult(rs, 1);
+    assertEquals(new BigDecimal("12.5"), ((Salary) salary).getValue());
+  }
+
+  public static class Code {
+    private final String value;
+
+    public Code(String value) {
+      this.value = value;
+    }
+  }
+
+  public static class CodeTypeHandler extends BaseTypeHandler<Code> {
+    @Override
+    public void setNonNullParameter(
+        PreparedStatement ps, int i, Code parameter, JdbcType jdbcType) throws SQLException {
+      ps.setString(i, parameter.value);
+    }
+
+    @Override
+    public Code getNullableResult(ResultSet rs, String columnName) throws SQLException {
+      return new Code(rs.getString(columnName));
+    }
+
+    @Override
+    public Code getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+      return new Code(rs.getString(columnIndex));
+    }
+
+    @Override
+    public Code getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+      return new Code(cs.getString(columnIndex));
+    }
+  }
+
+  @Domain(valueType = BigDecimal.class)
+  public static class Salary {
+    private final BigDecimal value;
+
+    public Salary(BigDecimal value) {
+      this.value = value;
+    }
+
+    public BigDecimal getValue() {
+      return value;
+    }
+  }
+
+  @Test
+  void staticTemplate() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, SQL, Map.class);
+    assertTrue(sqlSource.isStatic());
+    for (int salary = 0; salary < 3; salary++) {
+      Map<String, Object> parameter = parameter();
+      parameter.put("salary", salary);
+      DomaBoundSql boundSql = (DomaBoundSql) sqlSource.getBoundSql(parameter);
+      assertEquals("select * from emp where name = ? and salary = ?", boundSql.getSql());
+      assertEquals(Arrays.asList("abc", salary), boundSql.getParameterValues());
+      assertEquals(String.class, boundSql.getParameterMappings().get(0).getJavaType());
+      assertEquals(Integer.class, boundSql.getParameterMappings().get(1).getJavaType());
+    }
+
+    // a missing variable is reported by Doma
+    assertThrows(RuntimeException.class, () -> sqlSource.getBoundSql(new HashMap<>()));
+  }
+
+  @Test
+  void dynamicTemplate() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    assertFalse(
+        new DomaSqlSource(
+                driverConfig,
+                configuration,
+                "select * from emp where /*%if flag*/ deleted = 0 /*%end*/",
+                Map.class)
+            .isStatic());
+    assertFalse(
+        new DomaSqlSource(
+                driverConfig,
+                configuration,
+                "select * from emp where id in /* ids */(1)",
+                Map.class)
+            .isStatic());
+    assertFalse(
+        new DomaSqlSource(
+                driverConfig,
+                configuration,
+                "select * from emp where name like /* @prefix(name) */''",
+                Map.class)
+            .isStatic());
+    // inlined literals depend on the values
+    assertFalse(
+        new DomaSqlSource(
+                DomaLanguageDriverConfig.newInstance(config -> {}), configuration, SQL, Map.class)
+            .isStatic());
+  }
+
+  @Test
+  void shapeCache() {
+    String sql =
+        "select * from emp where /*%if byName*/ name = /* name */'' and /*%end*/"
+            + " id in /* ids */(1, 2) and ("
+            + "/*%for salary : salaries*/ salary = /* salary */0"
+            + " /*%if salary_has_next */ /*# \"or\" */ /*%end*/ /*%end*/)";
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setShapeCacheSize(2);
+            });
+    DomaLanguageDriverConfig uncachedDriverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, sql, Map.class);
+    DomaSqlSource uncachedSqlSource =
+        new DomaSqlSource(uncachedDriverConfig, configuration, sql, Map.class);
+    DomaSqlShapeCache shapeCache = sqlSource.getShapeCache();
+
+    List<Map<String, Object>> parameters = new ArrayList<>();
+    parameters.add(shapeParameter(true, "abc", Arrays.asList(1, 2), Arrays.asList(10, 20)));
+    parameters.add(shapeParameter(true, "def", Arrays.asList(3, 4), Arrays.asList(30, 40)));
+    parameters.add(shapeParameter(false, "abc", Arrays.asList(5), Arrays.asList(50)));
+    parameters.add(shapeParameter(false, "def", Arrays.asList(6), Arrays.asList(60)));
+    for (Map<String, Object> parameter : parameters) {
+      DomaBoundSql expected = (DomaBoundSql) uncachedSqlSource.getBoundSql(parameter);
+      DomaBoundSql actual = (DomaBoundSql) sqlSource.getBoundSql(parameter);
+      assertEquals(expected.getSql(), actual.getSql());
+      assertEquals(expected.getParameterValues(), actual.getParameterValues());
+      assertEquals(expected.getParameterMappings().size(), actual.getParameterMappings().size());
+    }
+    assertEquals(2, shapeCache.getMissCount());
+    assertEquals(2, shapeCache.getHitCount());
+    assertEquals(2, shapeCache.size());
+    assertEquals(0, shapeCache.getEvictionCount());
+
+    // a new shape evicts the oldest one
+    sqlSource.getBoundSql(shapeParameter(false, "abc", Arrays.asList(7, 8), Arrays.asList(70)));
+    assertEquals(3, shapeCache.getMissCount());
+    assertEquals(2, shapeCache.size());
+    assertEquals(1, shapeCache.getEvictionCount());
+
+    shapeCache.setMaximumSize(0);
+    assertFalse(shapeCache.isEnabled());
+    assertEquals(0, shapeCache.size());
+    sqlSource.getBoundSql(parameters.get(0));
+    assertEquals(3, shapeCache.getMissCount());
+  }
+
+  @Test
+  void cachedShapeAllocationBudget() {
+    String sql =
+        "select * from emp where /*%if name != null*/ name = /* name */'' and /*%end*/"
+            + " salary = /* salary */0";
+    DomaSqlSource sqlSource =
+        new DomaSqlSource(
+            DomaLanguageDriverConfig.newInstance(
+                config -> {
+                  config.setBindParameters(true);
+                  config.setShapeCacheSize(16);
+                  // the tests log at trace level, and the log messages are not rendering
+                  config.setSqlLogType(SqlLogType.NONE);
+                }),
+            configuration,
+            sql,
+            Map.class);
+    long perCall = allocatedBytesPerCall(sqlSource);
+
+    // only the returned BoundSql, its parameter lists and the MetaObject of its additional
+    // parameters should be left, about 300 bytes
+    assertTrue(perCall < 512, "allocated bytes per call: " + perCall);
+    assertEquals(1, sqlSource.getShapeCache().size());
+  }
+
+  @Test
+  void uncachedShapeAllocationBudget() {
+    String sql =
+        "select * from emp where /*%if name != null*/ name = /* name */'' and /*%end*/"
+            + " salary = /* salary */0";
+    DomaSqlSource sqlSource =
+        new DomaSqlSource(
+            DomaLanguageDriverConfig.newInstance(
+                config -> {
+                  config.setBindParameters(true);
+                  config.setShapeCacheSize(0);
+                  config.setSqlLogType(SqlLogType.NONE);
+                }),
+            configuration,
+            sql,
+            Map.class);
+    long perCall = allocatedBytesPerCall(sqlSource);
+
+    // the pooled builder reuses its SQL buffer and lists, so the SQL string, the evaluation
+    // context and the BoundSql are left, about 600 bytes
+    assertTrue(perCall < 1024, "allocated bytes per call: " + perCall);
+    assertEquals(0, sqlSource.getShapeCache().size());
+  }
+
+  private static long allocatedBytesPerCall(DomaSqlSource sqlSource) {
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("name", "abc");
+    parameter.put("salary", 1234);
+    return Allocations.allocatedBytesPerCall(() -> sqlSource.getBoundSql(parameter), 20000, 10000);
+  }
+
+  // records the other calls, and builds the cache keys as MyBatis does
+  private Executor executor(InvocationHandler handler) {
+    Executor cacheKeyExecutor = new SimpleExecutor(configuration, null);
+    return (Executor)
+        Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] {Executor.class},
+            (proxy, method, args) -> {
+              switch (method.getName()) {
+                case "createCacheKey":
+                  return method.invoke(cacheKeyExecutor, args);
+                case "hashCode":
+                  return System.identityHashCode(proxy);
+                case "equals":
+                  return proxy == args[0];
+                default:
+                  return handler.invoke(proxy, method, args);
+              }
+            });
+  }
+
+  private Map<String, Object> shapeParameter(
+      boolean byName, String name, List<Integer> ids, List<Integer> salaries) {
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("byName", byName);
+    parameter.put("name", name);
+    parameter.put("ids", ids);
+    parameter.put("salaries", salaries);
+    return parameter;
+  }
+
+  private static Map<String, Object> ids(int count) {
+    List<Integer> ids = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      ids.add(i);
+    }
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("ids", ids);
+    return parameter;
+  }
+
+  @Test
+  void inListChunks() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setInListChunkSize(2);
+            });
+    DomaSqlSource sqlSource =
+        new DomaSqlSource(
+            driverConfig, configuration, "select * from emp where id in /* ids */(1)", Map.class);
+
+    List<BoundSql> boundSqls = sqlSource.getChunkedBoundSqls(ids(5));
+    assertEquals(3, boundSqls.size());
+    List<Object> values = new ArrayList<>();
+    for (BoundSql boundSql : boundSqls) {
+      values.addAll(((DomaBoundSql) boundSql).getParameterValues());
+    }
+    assertEquals(Arrays.asList(0, 1, 2, 3, 4), values);
+    assertEquals(1, sqlSource.getChunkedBoundSqls(ids(2)).size());
+
+    // a list within the chunk size is bound as it is
+    BoundSql boundSql = sqlSource.getBoundSql(ids(1));
+    assertEquals("select * from emp where id in (?)", boundSql.getSql());
+    assertEquals(Arrays.asList(0), ((DomaBoundSql) boundSql).getParameterValues());
+
+    // NOT IN lists are bound as a whole
+    sqlSource =
+        new DomaSqlSource(
+            driverConfig,
+            configuration,
+            "select * from emp where id not in /* ids */(1)",
+            Map.class);
+    assertNull(sqlSource.getChunkedBoundSqls(ids(5)));
+    assertEquals(5, ((DomaBoundSql) sqlSource.getBoundSql(ids(5))).getParameterValues().size());
+
+    // a list used twice is not split
+    sqlSource =
+        new DomaSqlSource(
+            driverConfig,
+            configuration,
+            "select * from emp where id in /* ids */(1) and boss in /* ids */(1)",
+            Map.class);
+    assertNull(sqlSource.getChunkedBoundSqls(ids(5)));
+
+    // statements whose chunks would not add up to the statement are executed as a whole
+    for (String sql :
+        new String[] {
+          "select count(*) from emp where id in /* ids */(1)",
+          "select distinct boss from emp where id in /* ids */(1)",
+          "select boss from emp where id in /* ids */(1) group by boss",
+          "select * from emp where id in /* ids */(1) order by name",
+          "select * from emp where id in /* ids */(1) limit 10",
+          "select * from emp where status = 'A' or id in /* ids */(1)",
+          "select * from emp where (id in /* ids */(1) and salary > 0) or status = 'A'",
+          "select * from emp where not id in /* ids */(1)",
+          "select * from emp where 2 = (select count(*) from dept where id in /* ids */(1))",
+          "select * from emp where id in /* ids */(1) /*# orderBy */",
+          "insert into emp_log select * from emp where id in /* ids */(1)"
+        }) {
+      sqlSource = new DomaSqlSource(driverConfig, configuration, sql, Map.class);
+      assertNull(sqlSource.getChunkedBoundSqls(ids(5)), sql);
+    }
+    for (String sql :
+        new String[] {
+          "select * from emp where status = 'A' and (id in /* ids */(1) and salary > 0)",
+          "select * from emp where id in /* ids */(1) and (status = 'A' or salary > 0)",
+          "select * from emp where name is not null and id in /* ids */(1)",
+          "update emp set salary = salary + 1 where id in /* ids */(1)",
+          "delete from emp where id in /* ids */(1)"
+        }) {
+      sqlSource = new DomaSqlSource(driverConfig, configuration, sql, Map.class);
+      List<BoundSql> chunks = sqlSource.getChunkedBoundSqls(ids(5));
+      assertNotNull(chunks, sql);
+      assertEquals(3, chunks.size(), sql);
+    }
+
+    // the NOT IN list of each chunk is padded with its last value
+    sqlSource =
+        new DomaSqlSource(
+            DomaLanguageDriverConfig.newInstance(
+                config -> {
+                  config.setBindParameters(true);
+                  config.setInListChunkSize(2);
+                  config.setInListBuckets("4");
+                  config.setInListPadding("null");
+                }),
+            configuration,
+            "select * from emp where id in /* ids */(1) and id not in /* excluded */(1)",
+            Map.class);
+    Map<String, Object> parameter = ids(3);
+    parameter.put("excluded", Arrays.asList(7, 8, 9));
+    boundSqls = sqlSource.getChunkedBoundSqls(parameter);
+    assertEquals(2, boundSqls.size());
+    assertEquals(
+        Arrays.asList(0, 1, null, null, 7, 8, 9, 9),
+        ((DomaBoundSql) boundSqls.get(0)).getParameterValues());
+    assertEquals(
+        Arrays.asList(2, 7, 8, 9, 9), ((DomaBoundSql) boundSqls.get(1)).getParameterValues());
+  }
+
+  @Test
+  void inListChunkInterceptor() throws Throwable {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setInListChunkSize(2));
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    SqlSource sqlSource =
+        driver.createSqlSource(
+            configuration, "select * from emp where id in /* ids */(1)", Map.class);
+    assertTrue(
+        configuration.getInterceptors().stream()
+            .anyMatch(interceptor -> interceptor instanceof DomaExecutorInterceptor));
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    List<String> sqls = new ArrayList<>();
+    Executor executor =
+        (Executor)
+            Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] {Executor.class},
+                (proxy, method, args) -> {
+                  MappedStatement statement = (MappedStatement) args[0];
+                  sqls.add(statement.getBoundSql(args[1]).getSql());
+                  return method.getName().equals("query") ? Arrays.asList(sqls.size()) : 1;
+                });
+
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+    Object result =
+        new DomaExecutorInterceptor()
+            .intercept(
+                new Invocation(
+                    executor,
+                    query,
+                    new Object[] {mappedStatement, ids(5), RowBounds.DEFAULT, null}));
+    assertEquals(Arrays.asList(1, 2, 3), result);
+    assertEquals(
+        Arrays.asList(
+            "select * from emp where id in (0, 1)",
+            "select * from emp where id in (2, 3)",
+            "select * from emp where id in (4)"),
+        sqls);
+
+    mappedStatement =
+        new MappedStatement.Builder(configuration, "delete", sqlSource, SqlCommandType.DELETE)
+            .build();
+    Method update = Executor.class.getMethod("update", MappedStatement.class, Object.class);
+    result =
+        new DomaExecutorInterceptor()
+            .intercept(new Invocation(executor, update, new Object[] {mappedStatement, ids(5)}));
+    assertEquals(3, result);
+  }
+
+  @Test
+  void unsplittableInLists() throws Throwable {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setInListChunkSize(2);
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+
+    try (Connection connection =
+            DriverManager.getConnection("jdbc:hsqldb:mem:unsplittableInLists", "sa", "");
+        Statement statement = connection.createStatement()) {
+      statement.execute("create table emp (id integer primary key, status char(1))");
+      for (int i = 0; i < 10; i++) {
+        statement.execute("insert into emp values (" + i + ", '" + (i < 6 ? 'B' : 'A') + "')");
+      }
+      List<String> sqls = new ArrayList<>();
+      Executor executor =
+          executor(
+              (proxy, method, args) -> {
+                MappedStatement mappedStatement = (MappedStatement) args[0];
+                BoundSql boundSql = mappedStatement.getBoundSql(args[1]);
+                sqls.add(boundSql.getSql());
+                List<Object> rows = new ArrayList<>();
+                try (PreparedStatement ps = connection.prepareStatement(boundSql.getSql())) {
+                  driver
+                      .createParameterHandler(mappedStatement, args[1], boundSql)
+                      .setParameters(ps);
+                  try (ResultSet resultSet = ps.executeQuery()) {
+                    while (resultSet.next()) {
+                      rows.add(resultSet.getObject(1));
+                    }
+                  }
+                }
+                return rows;
+              });
+
+      String[][] cases = {
+        // the count of all the ids, not one count per chunk
+        {"select count(*) from emp where id in /* ids */(1)", "[5]", "1"},
+        // the rows with the status once, not once per chunk
+        {
+          "select id from emp where status = 'A' or id in /* ids */(1)",
+          "[0, 1, 2, 3, 4, 6, 7, 8, 9]",
+          "1"
+        },
+        {"select id from emp where status = 'B' and id in /* ids */(1)", "[0, 1, 2, 3, 4]", "3"}
+      };
+      for (String[] c : cases) {
+        MappedStatement mappedStatement =
+            new MappedStatement.Builder(
+                    configuration,
+                    "select",
+                    driver.createSqlSource(configuration, c[0], Map.class),
+                    SqlCommandType.SELECT)
+                .build();
+        sqls.clear();
+        Object result =
+            new DomaExecutorInterceptor()
+                .intercept(
+                    new Invocation(
+                        executor,
+                        query,
+                        new Object[] {mappedStatement, ids(5), RowBounds.DEFAULT, null}));
+        assertEquals(c[1], result.toString(), c[0]);
+        assertEquals(Integer.parseInt(c[2]), sqls.size(), c[0]);
+      }
+    }
+  }
+
+  @Test
+  void cacheKeyInterceptor() throws Throwable {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setShapeCacheSize(4);
+              config.setCompactCacheKeys(true);
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    SqlSource sqlSource =
+        driver.createSqlSource(
+            configuration,
+            "select * from emp where /*%if name != null*/name = /* name */'a' and /*%end*/"
+                + "id = /* id */1",
+            Map.class);
+    assertTrue(
+        configuration.getInterceptors().stream()
+            .anyMatch(interceptor -> interceptor instanceof DomaExecutorInterceptor));
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    List<CacheKey> cacheKeys = new ArrayList<>();
+    List<BoundSql> boundSqls = new ArrayList<>();
+    Executor executor =
+        executor(
+            (proxy, method, args) -> {
+              cacheKeys.add((CacheKey) args[4]);
+              boundSqls.add((BoundSql) args[5]);
+              return new ArrayList<>();
+            });
+
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+    Executor baseExecutor = new SimpleExecutor(configuration, null);
+    Object[][] parameters = {{"a", 1}, {"a", 1}, {"b", 1}, {null, 1}, {"a", 2}};
+    for (int i = 0; i < parameters.length; i++) {
+      Map<String, Object> parameter = new HashMap<>();
+      parameter.put("name", parameters[i][0]);
+      parameter.put("id", parameters[i][1]);
+      new DomaExecutorInterceptor()
+          .intercept(
+              new Invocation(
+                  executor,
+                  query,
+                  new Object[] {mappedStatement, parameter, RowBounds.DEFAULT, null}));
+      // the key is the one the executor builds for the same call
+      assertEquals(
+          baseExecutor.createCacheKey(
+              mappedStatement,
+              parameter,
+              RowBounds.DEFAULT,
+              mappedStatement.getBoundSql(parameter)),
+          cacheKeys.get(i));
+    }
+    assertEquals("select * from emp where name = ? and id = ?", boundSqls.get(0).getSql());
+    assertSame(boundSqls.get(0).getSql(), boundSqls.get(1).getSql());
+    assertEquals(cacheKeys.get(0), cacheKeys.get(1));
+    assertEquals(cacheKeys.get(0).hashCode(), cacheKeys.get(1).hashCode());
+    for (int i = 2; i < cacheKeys.size(); i++) {
+      assertNotEquals(cacheKeys.get(0), cacheKeys.get(i));
+    }
+    assertNotEquals(
+        cacheKeys.get(0),
+        DomaExecutorInterceptor.createCacheKey(
+            mappedStatement, new RowBounds(0, 10), (DomaBoundSql) boundSqls.get(0)));
+  }
+
+  @Test
+  void resultCacheInterceptor() throws Throwable {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    DomaSqlSource sqlSource =
+        (DomaSqlSource)
+            driver.createSqlSource(
+                configuration,
+                "/*%cache ttl=60s maxEntries=2*/select * from emp where id = /* id */1",
+                Map.class);
+    assertTrue(
+        configuration.getInterceptors().stream()
+            .anyMatch(interceptor -> interceptor instanceof DomaExecutorInterceptor));
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", 1);
+    assertEquals("select * from emp where id = ?", sqlSource.getBoundSql(parameter).getSql());
+    DomaResultCache resultCache = sqlSource.getResultCache();
+    assertEquals(60000, resultCache.getTtlMillis());
+    assertEquals(2, resultCache.getMaxEntries());
+
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "emp.select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    List<Object> queried = new ArrayList<>();
+    Executor executor =
+        executor(
+            (proxy, method, args) -> {
+              queried.add(args[1]);
+              return method.getName().equals("query") ? Arrays.asList(queried.size()) : 1;
+            });
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+    DomaExecutorInterceptor interceptor = new DomaExecutorInterceptor();
+    Object[] results = new Object[4];
+    int[] ids = {1, 1, 2, 3};
+    for (int i = 0; i < ids.length; i++) {
+      parameter = new HashMap<>();
+      parameter.put("id", ids[i]);
+      results[i] =
+          interceptor.intercept(
+              new Invocation(
+                  executor,
+                  query,
+                  new Object[] {mappedStatement, parameter, RowBounds.DEFAULT, null}));
+    }
+    assertEquals(3, queried.size());
+    assertEquals(Arrays.asList(1), results[0]);
+    assertEquals(results[0], results[1]);
+    assertEquals(Arrays.asList(3), results[3]);
+    assertEquals(1, resultCache.getHitCount());
+    assertEquals(3, resultCache.getMissCount());
+    assertEquals(1, resultCache.getEvictionCount());
+    assertEquals(2, resultCache.size());
+
+    interceptor.invalidate("dept");
+    assertEquals(2, resultCache.size());
+    MappedStatement update =
+        new MappedStatement.Builder(configuration, "emp.update", sqlSource, SqlCommandType.UPDATE)
+            .flushCacheRequired(true)
+            .build();
+    interceptor.intercept(
+        new Invocation(
+            executor,
+            Executor.class.getMethod("update", MappedStatement.class, Object.class),
+            new Object[] {update, ids(1)}));
+    assertEquals(0, resultCache.size());
+
+    assertThrows(
+        BuilderException.class,
+        () ->
+            driver
+                .createSqlSource(configuration, "/*%cache ttl=soon*/select * from emp", Map.class)
+                .getBoundSql(null));
+  }
+
+  @Test
+  void executorInterceptorOrder() throws Throwable {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setInListChunkSize(2);
+              config.setRowBoundsPaging(true);
+              config.setCompactCacheKeys(true);
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    SqlSource sqlSource =
+        driver.createSqlSource(
+            configuration,
+            "/*%cache*/select * from emp where id in /* ids */(1)",
+            Map.class);
+    SqlSource orderedSqlSource =
+        driver.createSqlSource(
+            configuration,
+            "/*%cache*/select * from emp where id in /* ids */(1) order by id",
+            Map.class);
+    assertEquals(
+        1,
+        configuration.getInterceptors().stream()
+            .filter(interceptor -> interceptor instanceof DomaExecutorInterceptor)
+            .count());
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "emp.select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    List<String> sqls = new ArrayList<>();
+    Executor executor =
+        executor(
+            (proxy, method, args) -> {
+              BoundSql boundSql =
+                  args.length == 6
+                      ? (BoundSql) args[5]
+                      : ((MappedStatement) args[0]).getBoundSql(args[1]);
+              sqls.add(boundSql.getSql());
+              return Arrays.asList(sqls.size());
+            });
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+    DomaExecutorInterceptor interceptor = new DomaExecutorInterceptor();
+
+    // the chunks are executed once, and their rows are cached as a whole
+    for (int i = 0; i < 2; i++) {
+      Object rows =
+          interceptor.intercept(
+              new Invocation(
+                  executor,
+                  query,
+                  new Object[] {mappedStatement, ids(3), RowBounds.DEFAULT, null}));
+      assertEquals(Arrays.asList(1, 2), rows);
+    }
+    assertEquals(
+        Arrays.asList(
+            "select * from emp where id in (?, ?)", "select * from emp where id in (?)"),
+        sqls);
+
+    // a page is selected by the database and cached by its row bounds
+    mappedStatement =
+        new MappedStatement.Builder(
+                configuration, "emp.selectOrdered", orderedSqlSource, SqlCommandType.SELECT)
+            .build();
+    sqls.clear();
+    for (int i = 0; i < 2; i++) {
+      interceptor.intercept(
+          new Invocation(
+              executor, query, new Object[] {mappedStatement, ids(3), new RowBounds(0, 2), null}));
+    }
+    assertEquals(1, sqls.size());
+    assertTrue(sqls.get(0).endsWith("doma_rownumber_ <= 2"), sqls.get(0));
+    assertEquals(1, ((DomaSqlSource) orderedSqlSource).getResultCache().size());
+  }
+
+  @Test
+  void resultCacheWrites() throws Throwable {
+    DomaLanguageDriver driver =
+        new DomaLanguageDriver(
+            DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true)));
+    DomaSqlSource sqlSource =
+        (DomaSqlSource)
+            driver.createSqlSource(
+                configuration, "/*%cache*/select * from emp where id = /* id */1", Map.class);
+    DomaResultCache resultCache = sqlSource.getResultCache();
+    MappedStatement select =
+        new MappedStatement.Builder(configuration, "emp.select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    MappedStatement update =
+        new MappedStatement.Builder(configuration, "emp.update", sqlSource, SqlCommandType.UPDATE)
+            .flushCacheRequired(true)
+            .build();
+    int[] version = {1};
+    List<String> calls = new ArrayList<>();
+    InvocationHandler handler =
+        (proxy, method, args) -> {
+          calls.add(method.getName());
+          if (method.getName().equals("update")) {
+            version[0]++;
+            return 1;
+          }
+          return method.getName().equals("query") ? Arrays.asList(version[0]) : null;
+        };
+    Executor session = executor(handler);
+    Executor otherSession = executor(handler);
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+    DomaExecutorInterceptor interceptor = new DomaExecutorInterceptor();
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", 1);
+    Object[] queryArgs = {select, parameter, RowBounds.DEFAULT, null};
+
+    assertEquals(
+        Arrays.asList(1), interceptor.intercept(new Invocation(session, query, queryArgs)));
+    interceptor.intercept(
+        new Invocation(
+            session,
+            Executor.class.getMethod("update", MappedStatement.class, Object.class),
+            new Object[] {update, parameter}));
+    assertEquals(0, resultCache.size());
+
+    // the writing session reads its own write, which is not cached until it commits
+    assertEquals(
+        Arrays.asList(2), interceptor.intercept(new Invocation(session, query, queryArgs)));
+    assertEquals(0, resultCache.size());
+    // the rows another session selects before the commit are cleared by the commit
+    interceptor.intercept(new Invocation(otherSession, query, queryArgs));
+    assertEquals(1, resultCache.size());
+    Method commit = Executor.class.getMethod("commit", boolean.class);
+    interceptor.intercept(new Invocation(session, commit, new Object[] {true}));
+    assertEquals(0, resultCache.size());
+    calls.clear();
+    assertEquals(
+        Arrays.asList(2), interceptor.intercept(new Invocation(session, query, queryArgs)));
+    assertEquals(
+        Arrays.asList(2), interceptor.intercept(new Invocation(otherSession, query, queryArgs)));
+    assertEquals(Arrays.asList("query"), calls);
+  }
+
+  @Test
+  void resultCacheExpiryAndRows() throws Exception {
+    DomaResultCache resultCache = new DomaResultCache(1, TimeUnit.MILLISECONDS, 10, 3);
+    CacheKey first = new CacheKey(new Object[] {1});
+    resultCache.put(first, Arrays.asList("a", "b"));
+    Thread.sleep(5);
+    assertNull(resultCache.get(first));
+    assertEquals(1, resultCache.getExpirationCount());
+    assertEquals(0, resultCache.getRowCount());
+
+    resultCache = DomaResultCache.of(" maxRows=3 ");
+    resultCache.put(first, Arrays.asList("a", "b"));
+    CacheKey second = new CacheKey(new Object[] {2});
+    resultCache.put(second, Arrays.asList("c", "d"));
+    assertNull(resultCache.get(first));
+    assertEquals(Arrays.asList("c", "d"), resultCache.get(second));
+    assertEquals(2, resultCache.getRowCount());
+    resultCache.put(first, Arrays.asList("a", "b", "c", "d"));
+    assertNull(resultCache.get(first));
+    assertThrows(IllegalArgumentException.class, () -> DomaResultCache.of("size=1"));
+
+    // the rows selected before the cache is cleared are not cached after
+    long generation = resultCache.getGeneration();
+    resultCache.clear();
+    resultCache.put(first, Arrays.asList("a"), generation);
+    assertNull(resultCache.get(first));
+    assertEquals(60000, DomaResultCache.of(null).getTtlMillis());
+    assertEquals(0, DomaResultCache.of("ttl=0").getTtlMillis());
+  }
+
+  @Test
+  void rowBoundsPaging() throws Throwable {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setRowBoundsPaging(true);
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    DomaSqlSource sqlSource =
+        (DomaSqlSource)
+            driver.createSqlSource(
+                configuration, "select * from emp where id > /* id */0 order by id", Map.class);
+    assertTrue(
+        configuration.getInterceptors().stream()
+            .anyMatch(interceptor -> interceptor instanceof DomaExecutorInterceptor));
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", 1);
+    assertNull(sqlSource.getPagedBoundSql(parameter, RowBounds.DEFAULT));
+    // the default dialect pages with row_number()
+    assertEquals(
+        "select * from ( select temp_.*, row_number() over( order by id ) as doma_rownumber_"
+            + " from ( select * from emp where id > ? ) as temp_ ) as temp2_"
+            + " where doma_rownumber_ > 10 and doma_rownumber_ <= 15",
+        sqlSource.getPagedBoundSql(parameter, new RowBounds(10, 5)).getSql());
+    assertEquals(
+        "select * from ( select temp_.*, row_number() over( order by id ) as doma_rownumber_"
+            + " from ( select * from emp where id > ? ) as temp_ ) as temp2_"
+            + " where doma_rownumber_ <= 5",
+        sqlSource.getPagedBoundSql(parameter, new RowBounds(0, 5)).getSql());
+
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    List<Object[]> queries = new ArrayList<>();
+    Executor executor =
+        executor(
+            (proxy, method, args) -> {
+                queries.add(args);
+                return new ArrayList<>();
+            });
+    Method query =
+        Executor.class.getMethod(
+            "query", MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class);
+    new DomaExecutorInterceptor()
+        .intercept(
+            new Invocation(
+                executor,
+                query,
+                new Object[] {mappedStatement, parameter, new RowBounds(10, 5), null}));
+    assertEquals(1, queries.size());
+    assertEquals(6, queries.get(0).length);
+    assertSame(RowBounds.DEFAULT, queries.get(0)[2]);
+    assertTrue(
+        ((BoundSql) queries.get(0)[5]).getSql().endsWith("doma_rownumber_ <= 15"),
+        ((BoundSql) queries.get(0)[5]).getSql());
+
+    SqlSource updateSource =
+        driver.createSqlSource(
+            configuration, "update emp set name = 'a' where id = /* id */0", Map.class);
+    assertNull(((DomaSqlSource) updateSource).getPagedBoundSql(parameter, new RowBounds(10, 5)));
+
+    driverConfig.setDialect("Mssql2008");
+    sqlSource =
+        (DomaSqlSource)
+            driver.createSqlSource(
+                configuration, "select * from emp where id > /* id */0", Map.class);
+    // paging with ROW_NUMBER() needs an ORDER BY
+    assertNull(sqlSource.getPagedBoundSql(parameter, new RowBounds(10, 5)));
+  }
+
+  @Test
+  void countSqlSource() throws SQLException {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setBindParameters(true));
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    DomaSqlSource sqlSource =
+        (DomaSqlSource)
+            driver.createSqlSource(
+                configuration,
+                "select * from emp where id > /* id */0 "
+                    + "/*%if name != null*/and name = /* name */'a'/*%end*/ order by id",
+                Map.class);
+    SqlSource countSqlSource = sqlSource.getCountSqlSource();
+    assertSame(countSqlSource, sqlSource.getCountSqlSource());
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", 1);
+    parameter.put("name", null);
+    BoundSql boundSql = countSqlSource.getBoundSql(parameter);
+    // the ORDER BY clause and the skipped condition are dropped
+    assertEquals("select count(*) from ( select * from emp where id > ?  ) t_", boundSql.getSql());
+    assertEquals(Arrays.asList(1), ((DomaBoundSql) boundSql).getParameterValues());
+
+    configuration.addMappedStatement(
+        new MappedStatement.Builder(configuration, "emp.select", sqlSource, SqlCommandType.SELECT)
+            .build());
+    // the count statements are added when the mappers are loaded, not when they are asked for
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> DomaSqlSource.getCountStatementId(configuration, "emp.select"));
+    DomaLanguageDriver.addCountStatements(configuration);
+    DomaLanguageDriver.addCountStatements(configuration);
+    String countStatementId = DomaSqlSource.getCountStatementId(configuration, "emp.select");
+    assertEquals("emp.select" + DomaSqlSource.COUNT_STATEMENT_SUFFIX, countStatementId);
+    MappedStatement countStatement = configuration.getMappedStatement(countStatementId);
+    assertEquals(Long.class, countStatement.getResultMaps().get(0).getType());
+    assertEquals(boundSql.getSql(), countStatement.getBoundSql(parameter).getSql());
+
+    try (Connection connection =
+            DriverManager.getConnection("jdbc:hsqldb:mem:countSqlSource", "sa", "");
+        Statement statement = connection.createStatement()) {
+      statement.execute("create table emp (id integer primary key, name varchar(10))");
+      for (int i = 0; i < 4; i++) {
+        statement.execute("insert into emp values (" + i + ", 'name" + i + "')");
+      }
+      try (PreparedStatement preparedStatement = connection.prepareStatement(boundSql.getSql())) {
+        driver
+            .createParameterHandler(countStatement, parameter, boundSql)
+            .setParameters(preparedStatement);
+        try (ResultSet resultSet = preparedStatement.executeQuery()) {
+          assertTrue(resultSet.next());
+          assertEquals(2, resultSet.getLong(1));
+        }
+      }
+    }
+
+    SqlSource updateSource =
+        driver.createSqlSource(
+            configuration, "update emp set name = 'a' where id = /* id */0", Map.class);
+    assertNull(((DomaSqlSource) updateSource).getCountSqlSource());
+    configuration.addMappedStatement(
+        new MappedStatement.Builder(
+                configuration, "emp.update", updateSource, SqlCommandType.UPDATE)
+            .build());
+    DomaLanguageDriver.addCountStatements(configuration);
+    assertThrows(
+        IllegalArgumentException.class,
+        () -> DomaSqlSource.getCountStatementId(configuration, "emp.update"));
+  }
+
+  @Test
+  void negatedInListPadding() throws Exception {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setInListBuckets("4");
+              config.setInListPadding("null");
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    SqlSource sqlSource =
+        driver.createSqlSource(
+            configuration,
+            "select id from emp where id in /* ids */(1) and id not in /* excluded */(1)",
+            Map.class);
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+            .build();
+    Map<String, Object> parameter = ids(3);
+    parameter.put("excluded", Arrays.asList(0, 5));
+    BoundSql boundSql = sqlSource.getBoundSql(parameter);
+    assertEquals(
+        "select id from emp where id in (?, ?, ?, ?) and id not in (?, ?, ?, ?)",
+        boundSql.getSql());
+    // the NOT IN list is padded with its last value, since it never matches with a null
+    assertEquals(
+        Arrays.asList(0, 1, 2, null, 0, 5, 5, 5),
+        ((DomaBoundSql) boundSql).getParameterValues());
+
+    try (Connection connection =
+            DriverManager.getConnection("jdbc:hsqldb:mem:negatedInListPadding", "sa", "");
+        Statement statement = connection.createStatement()) {
+      statement.execute("create table emp (id integer primary key)");
+      for (int i = 0; i < 10; i++) {
+        statement.execute("insert into emp values (" + i + ")");
+      }
+      try (PreparedStatement ps = connection.prepareStatement(boundSql.getSql())) {
+        driver.createParameterHandler(mappedStatement, parameter, boundSql).setParameters(ps);
+        List<Integer> ids = new ArrayList<>();
+        try (ResultSet resultSet = ps.executeQuery()) {
+          while (resultSet.next()) {
+            ids.add(resultSet.getInt(1));
+          }
+        }
+        assertEquals(Arrays.asList(1, 2), ids);
+      }
+    }
+  }
+
+  @Test
+  void arrayParameters() throws Exception {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setDialect("Hsqldb");
+              config.setBindParameters(true);
+              config.setArrayParameters(true);
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    SqlSource sqlSource =
+        driver.createSqlSource(
+            configuration,
+            "select id from emp where id in /* ids */(1) and id not in /* excluded */(1)",
+            Map.class);
+    MappedStatement mappedStatement =
+        new MappedStatement.Builder(configuration, "select", sqlSource, SqlCommandType.SELECT)
+            .build();
+
+    try (Connection connection =
+            DriverManager.getConnection("jdbc:hsqldb:mem:arrayParameters", "sa", "");
+        Statement statement = connection.createStatement()) {
+      statement.execute("create table emp (id integer primary key)");
+      for (int i = 0; i < 10; i++) {
+        statement.execute("insert into emp values (" + i + ")");
+      }
+
+      for (int count : new int[] {1, 3, 7}) {
+        Map<String, Object> parameter = ids(count);
+        parameter.put("excluded", Arrays.asList(0));
+        BoundSql boundSql = sqlSource.getBoundSql(parameter);
+        assertEquals(
+            "select id from emp where id in (UNNEST(?)) and id not in (UNNEST(?))",
+            boundSql.getSql());
+        ParameterHandler parameterHandler =
+            driver.createParameterHandler(mappedStatement, parameter, boundSql);
+        try (PreparedStatement ps = connection.prepareStatement(boundSql.getSql())) {
+          parameterHandler.setParameters(ps);
+          int rows = 0;
+          try (ResultSet resultSet = ps.executeQuery()) {
+            while (resultSet.next()) {
+              rows++;
+            }
+          }
+          assertEquals(count - 1, rows);
+        }
+      }
+    }
+  }
+
+  @Test
+  void lazyParsing() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setLazyParsing(true));
+    String sql = "select * from emp /*%if true*/";
+    DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, sql, Map.class);
+    assertFalse(sqlSource.isPrepared());
+    assertThrows(BuilderException.class, () -> sqlSource.getBoundSql(parameter()));
+
+    DomaSqlSource eager =
+        new DomaSqlSource(DomaLanguageDriverConfig.newInstance(), configuration, SQL, Map.class);
+    assertTrue(eager.isPrepared());
+    assertThrows(
+        BuilderException.class,
+        () -> new DomaSqlSource(DomaLanguageDriverConfig.newInstance(), configuration, sql, null));
+  }
+
+  @Test
+  void precompile() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setLazyParsing(true));
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    String[][] statements = {
+      {"ns.good", SQL},
+      {"ns.badIf", "select * from emp /*%if true*/"},
+      {"ns.badFor", "select * from emp /*%for id : ids*/"},
+    };
+    List<DomaSqlSource> sqlSources = new ArrayList<>();
+    for (String[] statement : statements) {
+      SqlSource sqlSource = driver.createSqlSource(configuration, statement[1], Map.class);
+      configuration.addMappedStatement(
+          new MappedStatement.Builder(configuration, statement[0], sqlSource, SqlCommandType.SELECT)
+              .build());
+      sqlSources.add((DomaSqlSource) sqlSource);
+    }
+
+    BuilderException e =
+        assertThrows(BuilderException.class, () -> DomaLanguageDriver.precompile(configuration));
+    assertTrue(e.getMessage().contains("Error precompiling 2 doma statement(s):"), e.getMessage());
+    assertTrue(e.getMessage().contains("ns.badFor"), e.getMessage());
+    assertTrue(e.getMessage().contains("ns.badIf"), e.getMessage());
+    assertEquals(2, e.getSuppressed().length);
+    assertTrue(sqlSources.get(0).isPrepared());
+    assertFalse(sqlSources.get(1).isPrepared());
+  }
+
+  @Test
+  void sharedScripts() {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setLazyParsing(true));
+    String resource = "//mappers/CityMapper-findByState.sql";
+    DomaSqlSource sqlSource1 = new DomaSqlSource(driverConfig, configuration, resource, Map.class);
+    DomaSqlSource sqlSource2 = new DomaSqlSource(driverConfig, configuration, resource, Map.class);
+    assertEquals(0, driverConfig.scriptRegistry.getResourceCount());
+
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("state", "CA");
+    String sql = sqlSource1.getBoundSql(parameter).getSql();
+    assertTrue(sql.contains("state = 'CA'"), sql);
+    assertEquals(sql, sqlSource2.getBoundSql(parameter).getSql());
+    assertEquals(1, driverConfig.scriptRegistry.getResourceCount());
+    assertSame(
+        driverConfig.scriptRegistry.getScript(resource),
+        driverConfig.scriptRegistry.intern(new String(DomaSqlSource.getScript(resource))));
+
+    DomaSqlSource missing =
+        new DomaSqlSource(driverConfig, configuration, "//mappers/missing.sql", Map.class);
+    assertThrows(BuilderException.class, missing::prepare);
+    assertEquals(1, driverConfig.scriptRegistry.getResourceCount());
+  }
+
+  @Test
+  void sqlLogType() {
+    for (SqlLogType sqlLogType : SqlLogType.values()) {
+      DomaLanguageDriverConfig driverConfig =
+          DomaLanguageDriverConfig.newInstance(
+              config -> {
+                config.setBindParameters(true);
+                config.setSqlLogType(sqlLogType);
+                config.setSqlLogSampling(3);
+              });
+      DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, SQL, Map.class);
+      for (int i = 0; i < 5; i++) {
+        DomaBoundSql boundSql = (DomaBoundSql) sqlSource.getBoundSql(parameter());
+        assertEquals("select * from emp where name = ? and salary = ?", boundSql.getSql());
+        assertEquals(Arrays.asList("abc", 1234), boundSql.getParameterValues());
+      }
+    }
+
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(config -> config.setSqlLogType(SqlLogType.NONE));
+    DomaSqlSource sqlSource = new DomaSqlSource(driverConfig, configuration, SQL, Map.class);
+    assertEquals(
+        "select * from emp where name = 'abc' and salary = 1234",
+        sqlSource.getBoundSql(parameter()).getSql());
+  }
+
+  @Test
+  void metrics() throws Exception {
+    DomaLanguageDriverConfig driverConfig =
+        DomaLanguageDriverConfig.newInstance(
+            config -> {
+              config.setBindParameters(true);
+              config.setShapeCacheSize(10);
+              config.setMetrics(true);
+            });
+    DomaLanguageDriver driver = new DomaLanguageDriver(driverConfig);
+    DomaMetrics metrics = driver.getMetrics(configuration);
+    try {
+      SqlSource sqlSource =
+          driver.createSqlSource(
+              configuration,
+              "select * from emp where /*%if name != null*/ name = /* name */'' /*%end*/",
+              Map.class);
+      configuration.addMappedStatement(
+          new MappedStatement.Builder(configuration, "ns.select", sqlSource, SqlCommandType.SELECT)
+              .build());
+      for (int i = 0; i < 10; i++) {
+        sqlSource.getBoundSql(parameter());
+      }
+
+      DomaStatementMetrics statementMetrics = metrics.getStatements().get("ns.select");
+      assertEquals(10, statementMetrics.getTotal().getCount());
+      assertEquals(1, statementMetrics.getParse().getCount());
+      assertEquals(10, statementMetrics.getEvaluate().getCount());
+      assertEquals(1, statementMetrics.getBuild().getCount());
+      assertEquals(10, statementMetrics.getParameters().getCount());
+      DomaLatencyHistogram total = statementMetrics.getTotal();
+      assertTrue(total.getP50Nanos() <= total.getP99Nanos());
+      assertTrue(total.getP99Nanos() <= total.getMaxNanos());
+
+      TabularData statements =
+          (TabularData)
+              ManagementFactory.getPlatformMBeanServer()
+                  .getAttribute(metrics.getObjectName(), "Statements");
+      CompositeData row = statements.get(new Object[] {"ns.select"});
+      CompositeData totalData = (CompositeData) ((CompositeData) row.get("value")).get("total");
+      assertEquals(10L, totalData.get("count"));
+
+      metrics.reset();
+      assertEquals(0, statementMetrics.getTotal().getCount());
+
+      // one MBean per configuration, whatever the number of drivers
+      assertSame(metrics, new DomaLanguageDriver(driverConfig).getMetrics(configuration));
+      DomaMetrics otherMetrics = driver.getMetrics(new Configuration());
+      try {
+        assertNotEquals(metrics.getObjectName(), otherMetrics.getObjectName());
+      } finally {
+        otherMetrics.unregister();
+      }
+    } finally {
+      metrics.unregister();
+    }
+    assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(metrics.getObjectName()));
+    assertNotSame(metrics, driver.getMetrics(configuration));
+    driver.getMetrics(configuration).unregister();
+
+    assertNull(
+        new DomaLanguageDriver(DomaLanguageDriverConfig.newInstance()).getMetrics(configuration));
+    assertFalse(
+        new DomaSqlSource(DomaLanguageDriverConfig.newInstance(), configuration, SQL, Map.class)
+            .getMetrics()
+            .isEnabled());
+  }
+}
@@ -17,13 +17,23 @@ package org.mybatis.scripting.doma;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.ibatis.session.Configuration;
 import org.junit.jupiter.api.Test;
 import org.seasar.doma.internal.expr.Value;
 import org.seasar.doma.jdbc.InParameter;
+import org.seasar.doma.jdbc.JdbcException;
 import org.seasar.doma.jdbc.PreparedSql;
+import org.seasar.doma.jdbc.SqlNode;
 import org.seasar.doma.jdbc.dialect.MssqlDialect;
+import org.seasar.doma.jdbc.dialect.StandardDialect;
 
 class DomaSqlTemplateTest {
 
@@ -143,4 +153,176 @@ class DomaSqlTemplateTest {
         },
         "The '%populate' directive is not supported.");
   }
+
+  @Test
+  void parseOnce() {
+    String sql = "select * from emp where name = /* name */''";
+    DomaSqlTemplate template = new DomaSqlTemplate(sql);
+    SqlNode sqlNode = template.getSqlNode();
+    for (String value : new String[] {"abc", "def"}) {
+      PreparedSql preparedSql = template.execute((name) -> new Value(String.class, value));
+      assertEquals("select * from emp where name = ?", preparedSql.getRawSql());
+      assertEquals(value, preparedSql.getParameters().get(0).getWrapper().get());
+    }
+    assertSame(sqlNode, template.getSqlNode());
+  }
+
+  @Test
+  void parseErrorOnConstruction() {
+    assertThrows(JdbcException.class, () -> new DomaSqlTemplate("select * from emp /*%if true*/"));
+  }
+
+  @Test
+  void executeWithoutParseAllocation() {
+    String sql =
+        "select * from emp where /*%if name != null*/ name = /* name */'' /*%end*/"
+            + " and salary = /* salary */0 order by name";
+    DomaVariableValues values =
+        (name) -> name.equals("name") ? new Value(String.class, "abc") : new Value(int.class, 1);
+    DomaSqlTemplate template = new DomaSqlTemplate(sql);
+
+    long parsedOnce =
+        Allocations.allocatedBytesPerCall(() -> template.execute(values), 1000, 1000);
+    long parsedEveryCall =
+        Allocations.allocatedBytesPerCall(
+            () -> new DomaSqlTemplate(sql).execute(values), 1000, 1000);
+
+    assertTrue(
+        parsedOnce < parsedEveryCall,
+        "parsedOnce=" + parsedOnce + ", parsedEveryCall=" + parsedEveryCall);
+  }
+
+  @Test
+  void boundSqlBuilder() {
+    Configuration configuration = new Configuration();
+    DomaTypeHandlers typeHandlers = new DomaTypeHandlers(configuration);
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("name", "abc");
+    parameter.put("salary", 1234);
+    parameter.put("ids", Arrays.asList(1, 2, 3));
+    String[] direct = {
+      "select * from emp where name = /* name */'' and salary = /* salary */0",
+      "select * from emp where /*%if name != null*/ name = /* name */'' and /*%end*/"
+          + " salary = /* salary */0",
+      "select * from emp where id in /* ids */(1, 2) order by id",
+      "select * from emp where (name = /* name */'' or salary > 0)",
+      "select * from emp where /*%for id : ids*/ id = /* id */0"
+          + " /*%if id_has_next */ /*# \"or\" */ /*%end*/ /*%end*/",
+    };
+    for (String sql : direct) {
+      DomaSqlTemplate template = new DomaSqlTemplate(sql);
+      VariableValues values = new VariableValues(configuration, parameter, Map.class);
+      PreparedSql preparedSql = template.execute(values);
+      DomaBoundSqlBuilder builder = template.createBoundSqlBuilder(typeHandlers, values);
+      assertTrue(builder.build(template.getSqlNode()), sql);
+      assertEquals(preparedSql.getRawSql(), builder.getSql());
+      List<Object> parameterValues = new ArrayList<>();
+      for (InParameter<?> inParameter : preparedSql.getParameters()) {
+        parameterValues.add(inParameter.getWrapper().get());
+      }
+      assertEquals(parameterValues, builder.getParameterValues());
+      assertEquals(parameterValues.size(), builder.getParameterMappings().size());
+    }
+
+    // Doma removes the WHERE keyword and the AND operator, so it renders these itself
+    String[] rendered = {
+      "select * from emp where /*%if name == null*/ name is null /*%end*/",
+      "select * from emp where /*%if name == null*/ name is null /*%end*/ and salary = 0",
+      "select * from emp where id in /* ids */(1, 2) and name = /*^ name */''",
+    };
+    for (String sql : rendered) {
+      DomaSqlTemplate template = new DomaSqlTemplate(sql);
+      VariableValues values = new VariableValues(configuration, parameter, Map.class);
+      assertFalse(
+          template.createBoundSqlBuilder(typeHandlers, values).build(template.getSqlNode()), sql);
+    }
+  }
+
+  @Test
+  void loopVariableShadowsParameter() {
+    Configuration configuration = new Configuration();
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("id", 99);
+    parameter.put("ids", Arrays.asList(1, 2));
+    String sql =
+        "select * from emp where /*%for id : ids*/ id = /* id */0"
+            + " /*%if id_has_next */ /*# \"or\" */ /*%end*/ /*%end*/ and 99 = /* id */0";
+    DomaSqlTemplate template = new DomaSqlTemplate(sql);
+    VariableValues values = new VariableValues(configuration, parameter, Map.class);
+    PreparedSql preparedSql = template.execute(values);
+    assertEquals(
+        "select * from emp where id = 1 or id = 2 and 99 = 99",
+        preparedSql.getFormattedSql().replaceAll("\\s+", " "));
+
+    DomaBoundSqlBuilder builder =
+        template.createBoundSqlBuilder(new DomaTypeHandlers(configuration), values);
+    assertTrue(builder.build(template.getSqlNode()));
+    assertEquals(Arrays.asList(1, 2, 99), builder.getParameterValues());
+  }
+
+  @Test
+  void inListPadding() {
+    String sql =
+        "select * from emp where id in /* ids */(1)"
+            + " /*%if ids.size() == 3 */ and 1 = 1 /*%end*/";
+    DomaVariableValues values = (name) -> new Value(List.class, Arrays.asList(1, 2, 3));
+    DomaSqlTemplate template =
+        new DomaSqlTemplate(
+            sql,
+            DomaSqlTemplate.createConfig(new StandardDialect()),
+            DomaInListPadding.of("powerOfTwo", "last"));
+    PreparedSql preparedSql = template.execute(values);
+    assertTrue(preparedSql.getRawSql().startsWith("select * from emp where id in (?, ?, ?, ?)"));
+    assertTrue(preparedSql.getRawSql().contains("and 1 = 1"));
+    assertEquals(sql, template.getSql());
+    List<Object> parameterValues = new ArrayList<>();
+    for (InParameter<?> parameter : preparedSql.getParameters()) {
+      parameterValues.add(parameter.getWrapper().get());
+    }
+    assertEquals(Arrays.asList(1, 2, 3, 3), parameterValues);
+
+    template =
+        new DomaSqlTemplate(
+            sql,
+            DomaSqlTemplate.createConfig(new StandardDialect()),
+            DomaInListPadding.of("2, 5", "null"));
+    preparedSql = template.execute(values);
+    assertTrue(preparedSql.getRawSql().contains("in (?, ?, ?, ?, ?)"));
+    assertNull(preparedSql.getParameters().get(4).getWrapper().get());
+  }
+
+  @Test
+  void padInLists() {
+    Set<String> expressions = Collections.singleton("ids");
+    assertEquals(
+        "id in /* __doma_inList.pad(ids) */(1) and x = '/* ids */(1)' -- /*ids*/(1)\n",
+        DomaSqlTemplate.padInLists(
+            "id in /*ids*/(1) and x = '/* ids */(1)' -- /*ids*/(1)\n", expressions, null));
+    assertEquals(
+        "id = /* ids */1", DomaSqlTemplate.padInLists("id = /* ids */1", expressions, null));
+    assertEquals(
+        "id in (UNNEST(/* __doma_inList.array(ids) */'')) and 1 = 1",
+        DomaSqlTemplate.padInLists(
+            "id in /* ids */(1, (2), ')') and 1 = 1", expressions, "(UNNEST(%s))"));
+  }
+
+  @Test
+  void inListBucketSize() {
+    DomaInListPadding powerOfTwo = DomaInListPadding.of("powerOfTwo", null);
+    assertEquals(0, powerOfTwo.bucketSize(0));
+    assertEquals(1, powerOfTwo.bucketSize(1));
+    assertEquals(4, powerOfTwo.bucketSize(3));
+    assertEquals(1024, powerOfTwo.bucketSize(1000));
+    DomaInListPadding series = DomaInListPadding.of("10,50,100", null);
+    assertEquals(10, series.bucketSize(2));
+    assertEquals(50, series.bucketSize(11));
+    assertEquals(100, series.bucketSize(100));
+    assertEquals(200, series.bucketSize(101));
+    assertEquals(400, series.bucketSize(201));
+    assertEquals(6400, series.bucketSize(5000));
+    assertEquals(Integer.MAX_VALUE, series.bucketSize(Integer.MAX_VALUE));
+    assertNull(DomaInListPadding.of("", null));
+    assertThrows(IllegalStateException.class, () -> DomaInListPadding.of("10,5", null));
+    assertThrows(IllegalStateException.class, () -> DomaInListPadding.of("10", "first"));
+  }
 }
@@ -16,8 +16,13 @@
 package org.mybatis.scripting.doma;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
+import org.apache.ibatis.binding.MapperMethod.ParamMap;
 import org.apache.ibatis.session.Configuration;
 import org.junit.jupiter.api.Test;
 import org.seasar.doma.internal.expr.Value;
@@ -37,6 +42,25 @@ public class VariableValuesTest {
     assertEquals(null, variableValues.getValue("null"));
   }
 
+  @Test
+  void testGetValueForNull() {
+    Map<String, Object> parameter = new HashMap<>();
+    parameter.put("name", null);
+    VariableValues variableValues = new VariableValues(configuration, parameter, Map.class);
+    // a null value is resolved, unlike a missing key
+    Value value = variableValues.getValue("name");
+    assertNull(value.getValue());
+    assertNull(variableValues.getValue("missing"));
+    assertEquals(
+        "select * from emp where id = 1",
+        new DomaSqlTemplate(
+                "select * from emp where id = 1 "
+                    + "/*%if name != null*/and name = /* name */''/*%end*/")
+            .execute(variableValues)
+            .getRawSql()
+            .trim());
+  }
+
   class Bean {
     String name;
 
@@ -61,4 +85,105 @@ public class VariableValuesTest {
     // not found
     assertEquals(null, variableValues.getValue("null"));
   }
+
+  public static class Child {
+    public String value = "field";
+    private boolean active = true;
+
+    public String getValue() {
+      return "getter";
+    }
+
+    public boolean isActive() {
+      return active;
+    }
+  }
+
+  public static class Parent {
+    private final Child child = new Child();
+    private final Map<String, Object> attributes = new HashMap<>();
+  }
+
+  @Test
+  void testGetValueForNestedPath() {
+    Parent parent = new Parent();
+    parent.attributes.put("key", "value");
+    VariableValues variableValues = new VariableValues(configuration, parent, Parent.class);
+    // getter takes precedence over field
+    assertEquals("getter", variableValues.getValue("child.value").getValue());
+    assertEquals(true, variableValues.getValue("child.active").getValue());
+    // map key
+    assertEquals("value", variableValues.getValue("attributes.key").getValue());
+    // not found
+    assertEquals(null, variableValues.getValue("child.null"));
+    assertEquals(null, variableValues.getValue("attributes.null"));
+  }
+
+  @Test
+  void testGetValueForParamMap() {
+    ParamMap<Object> paramMap = new ParamMap<>();
+    paramMap.put("id", 1);
+    VariableValues variableValues = new VariableValues(configuration, paramMap, ParamMap.class);
+    assertEquals(1, variableValues.getValue("id").getValue());
+    // not found without BindingException
+    assertEquals(null, variableValues.getValue("null"));
+  }
+
+  @Test
+  void testGetValueForScalar() {
+    VariableValues variableValues = new VariableValues(configuration, "value", String.class);
+    assertEquals("value", variableValues.getValue("any").getValue());
+    // the actual class is checked when the parameter type is not declared
+    variableValues = new VariableValues(configuration, "value", Object.class);
+    assertEquals("value", variableValues.getValue("any").getValue());
+    variableValues = new VariableValues(configuration, new HashMap<>(), Object.class);
+    assertEquals(null, variableValues.getValue("any"));
+  }
+
+  private static Map<String, Object> countingMap(Map<String, Integer> counts) {
+    return new HashMap<String, Object>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      public Object get(Object key) {
+        counts.merge((String) key, 1, Integer::sum);
+        return super.get(key);
+      }
+    };
+  }
+
+  @Test
+  void testGetValueMemoized() {
+    Map<String, Integer> counts = new HashMap<>();
+    Map<String, Object> parameter = countingMap(counts);
+    parameter.put("name", "value");
+    VariableValues variableValues = new VariableValues(configuration, parameter, Map.class);
+    Value value = variableValues.getValue("name");
+    assertSame(value, variableValues.getValue(new String("name")));
+    assertNull(variableValues.getValue("null"));
+    assertNull(variableValues.getValue("null"));
+    // grow the table
+    for (int i = 0; i < 20; i++) {
+      assertNull(variableValues.getValue("name" + i));
+    }
+    assertSame(value, variableValues.getValue("name"));
+    assertEquals(1, counts.get("name"));
+    assertEquals(1, counts.get("null"));
+  }
+
+  @Test
+  void testGetValueMemoizedInLoop() {
+    Map<String, Integer> counts = new HashMap<>();
+    Map<String, Object> parameter = countingMap(counts);
+    parameter.put("ids", Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10));
+    parameter.put("type", "a");
+    String sql =
+        "select * from emp where /*%for id : ids*/ id = /* id */0 and type = /* type */''"
+            + " /*%if id_has_next */ /*# \"or\" */ /*%end*/ /*%end*/";
+    new DomaSqlTemplate(sql).execute(new VariableValues(configuration, parameter, Map.class));
+    assertEquals(1, counts.get("ids"));
+    assertEquals(1, counts.get("type"));
+    // the loop variable shadows the parameters, so it is never looked up
+    assertNull(counts.get("id"));
+  }
 }